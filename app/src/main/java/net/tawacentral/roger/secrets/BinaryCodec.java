@@ -0,0 +1,117 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Helpers for the binary file format (F4), see IndexedSecretsFile.
+ *
+ * Integers are written as varints: seven bits per byte, least significant
+ * group first, with the high bit set on all bytes but the last.  Signed
+ * integers are zigzag encoded first so that small negative values stay short.
+ * Strings are written as a varint holding the length of their UTF-8 encoding
+ * plus one, followed by the UTF-8 bytes.  A length of zero means null.
+ */
+public class BinaryCodec {
+  /** Longest possible varint, for a 64 bit value. */
+  private static final int MAX_VARINT_SIZE = 10;
+
+  /** Writes a non-negative integer as a varint. */
+  public static void writeVarint(OutputStream output, long value)
+      throws IOException {
+    while ((value & ~0x7fL) != 0) {
+      output.write((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    output.write((int) value);
+  }
+
+  /** Reads a varint written by writeVarint(). */
+  public static long readVarint(InputStream input) throws IOException {
+    long value = 0;
+    for (int i = 0; i < MAX_VARINT_SIZE; ++i) {
+      int b = input.read();
+      if (-1 == b)
+        throw new EOFException();
+
+      value |= (long) (b & 0x7f) << (7 * i);
+      if (0 == (b & 0x80))
+        return value;
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  /** Reads a varint that must fit in a non-negative int. */
+  public static int readVarint32(InputStream input) throws IOException {
+    long value = readVarint(input);
+    if (value < 0 || value > Integer.MAX_VALUE)
+      throw new IOException("Varint out of range: " + value);
+    return (int) value;
+  }
+
+  /** Writes a signed integer as a zigzag encoded varint. */
+  public static void writeSignedVarint(OutputStream output, long value)
+      throws IOException {
+    writeVarint(output, (value << 1) ^ (value >> 63));
+  }
+
+  /** Reads a varint written by writeSignedVarint(). */
+  public static long readSignedVarint(InputStream input) throws IOException {
+    long value = readVarint(input);
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /** Writes a string, which may be null. */
+  public static void writeString(OutputStream output, String value)
+      throws IOException {
+    if (null == value) {
+      writeVarint(output, 0);
+      return;
+    }
+
+    byte[] bytes = value.getBytes("UTF-8");
+    writeVarint(output, bytes.length + 1L);
+    output.write(bytes);
+  }
+
+  /** Reads a string written by writeString(). */
+  public static String readString(InputStream input) throws IOException {
+    int length = readVarint32(input);
+    if (0 == length)
+      return null;
+
+    byte[] bytes = new byte[length - 1];
+    int offset = 0;
+    while (offset < bytes.length) {
+      int n = input.read(bytes, offset, bytes.length - offset);
+      if (n < 0)
+        throw new EOFException();
+      offset += n;
+    }
+    return new String(bytes, "UTF-8");
+  }
+
+  /** Reads one byte, which must be present. */
+  public static int readByte(InputStream input) throws IOException {
+    int b = input.read();
+    if (-1 == b)
+      throw new EOFException();
+    return b;
+  }
+}
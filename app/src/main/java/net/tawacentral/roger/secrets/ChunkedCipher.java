@@ -0,0 +1,555 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts and decrypts data as a sequence of independent chunks, so that the
+ * chunks can be processed on all cores at once.  This is used for the chunked
+ * cipher format (C4) of the secrets file, see FileUtils.
+ *
+ * Each chunk holds up to CHUNK_SIZE bytes of plain text and is written as:
+ *
+ *   - a flags byte, FLAG_FINAL for the last chunk of the stream
+ *   - the length of the encrypted data, as an int
+ *   - a random initial vector
+ *   - the encrypted data, AES/CBC/PKCS5Padding
+ *   - an HMAC-SHA256 of the chunk index, flags, initial vector and encrypted
+ *     data
+ *
+ * The MAC covers the chunk index and final flag, so chunks cannot be
+ * reordered, dropped or truncated without detection.  The encryption and MAC
+ * keys are derived from the bcrypt key of the secrets file, so a wrong
+ * password is detected when the first chunk is read.
+ *
+ * Single records can also be sealed on their own, see sealRecord().  Records
+ * are flagged with FLAG_RECORD so that they cannot be mistaken for chunks of a
+ * stream.  A record can be bound to its position in a sequence of records by
+ * sealing it with an index, which is covered by its MAC like the index of a
+ * chunk.  Records can be sealed on all cores at once with submitRecord().
+ *
+ * Android 2.3 does not have a fork-join pool, so a plain thread pool with one
+ * thread per core is used instead.  Only a bounded number of chunks are in
+ * flight at a time, so memory use does not grow with the size of the data.
+ */
+public class ChunkedCipher {
+  /** Maximum number of plain text bytes in one chunk. */
+  public static final int CHUNK_SIZE = 64 * 1024;
+
+  private static final int FLAG_FINAL = 1;
+  private static final int FLAG_RECORD = 2;
+
+  private static final int IV_SIZE = 16;
+  private static final int MAC_SIZE = 32;
+
+  private static final String CIPHER_FACTORY = "AES/CBC/PKCS5Padding";
+  private static final String KEY_FACTORY = "AES";
+  private static final String MAC_FACTORY = "HmacSHA256";
+
+  private static final byte[] ENCRYPTION_KEY_LABEL = {
+    's', 'e', 'c', 'r', 'e', 't', 's', '-', 'e', 'n', 'c'
+  };
+  private static final byte[] MAC_KEY_LABEL = {
+    's', 'e', 'c', 'r', 'e', 't', 's', '-', 'm', 'a', 'c'
+  };
+  private static final byte[] KEY_CHECK_LABEL = {
+    's', 'e', 'c', 'r', 'e', 't', 's', '-', 'k', 'c', 'v'
+  };
+  private static final byte[] KEY_CHECK_CONSTANT = {
+    'k', 'e', 'y', '-', 'c', 'h', 'e', 'c', 'k'
+  };
+
+  /** Size of the value returned by computeKeyCheck(). */
+  public static final int KEY_CHECK_SIZE = 16;
+
+  private static ThreadPoolExecutor executor;
+  private static SecureRandom random;
+
+  // Cipher and Mac objects are not thread safe, so each worker has its own.
+  private static final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>();
+  private static final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+
+  private final SecretKeySpec encryptionKey;
+  private final SecretKeySpec macKey;
+
+  /**
+   * Creates a chunked cipher from the raw key derived from the user's password.
+   *
+   * @param key The raw bcrypt key, as in SecurityUtils.CipherInfo.
+   */
+  public ChunkedCipher(byte[] key) throws IOException {
+    try {
+      SecretKeySpec master = new SecretKeySpec(key, MAC_FACTORY);
+      Mac mac = Mac.getInstance(MAC_FACTORY);
+      mac.init(master);
+      encryptionKey = new SecretKeySpec(mac.doFinal(ENCRYPTION_KEY_LABEL),
+                                        KEY_FACTORY);
+      mac.init(master);
+      macKey = new SecretKeySpec(mac.doFinal(MAC_KEY_LABEL), MAC_FACTORY);
+    } catch (Exception ex) {
+      throw new IOException("ChunkedCipher failed: " + ex.getMessage());
+    }
+  }
+
+  /**
+   * Computes the key check value of the raw key derived from the user's
+   * password.  It is an HMAC of a constant under its own key derived from the
+   * raw key, so it tells whether a password is right without decrypting
+   * anything, and reveals nothing about the encryption and MAC keys.
+   *
+   * @param key The raw bcrypt key, as in SecurityUtils.CipherInfo.
+   */
+  public static byte[] computeKeyCheck(byte[] key) throws IOException {
+    try {
+      Mac mac = Mac.getInstance(MAC_FACTORY);
+      mac.init(new SecretKeySpec(key, MAC_FACTORY));
+      byte[] checkKey = mac.doFinal(KEY_CHECK_LABEL);
+      mac.init(new SecretKeySpec(checkKey, MAC_FACTORY));
+      return Arrays.copyOf(mac.doFinal(KEY_CHECK_CONSTANT), KEY_CHECK_SIZE);
+    } catch (Exception ex) {
+      throw new IOException("computeKeyCheck failed: " + ex.getMessage());
+    }
+  }
+
+  /**
+   * Returns a stream that encrypts everything written to it into output.
+   * Closing the returned stream writes the final chunk, but does not close
+   * output.
+   */
+  public OutputStream newOutputStream(OutputStream output) {
+    return new ChunkedOutputStream(output);
+  }
+
+  /**
+   * Returns a stream that decrypts the chunks read from input.  Closing the
+   * returned stream closes input.
+   */
+  public InputStream newInputStream(InputStream input) {
+    return new ChunkedInputStream(input);
+  }
+
+  /**
+   * Encrypts one record into a self contained block, in the same form as a
+   * chunk.  Unlike the chunks of a stream, there is no limit on the size of a
+   * record.  The record can later be located with getRecordId() and decrypted
+   * with openRecord().
+   */
+  public byte[] sealRecord(byte[] plain) throws IOException {
+    return sealRecord(0, plain);
+  }
+
+  /**
+   * Encrypts one record like sealRecord(byte[]), bound to the given index.
+   * The record can only be opened with the same index, see
+   * openRecord(ByteBuffer, long).
+   */
+  public byte[] sealRecord(long index, byte[] plain) throws IOException {
+    try {
+      return encryptChunk(index, FLAG_FINAL | FLAG_RECORD, plain,
+                          plain.length);
+    } catch (IOException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      throw new IOException("sealRecord failed: " + ex.getMessage());
+    }
+  }
+
+  /**
+   * Seals a record like sealRecord(byte[]), on the thread pool used for the
+   * chunks of streams, so that many records can be sealed at once.  The
+   * sealed record is collected with await().  Callers should keep no more
+   * than getWindow() records in flight.
+   */
+  Future<byte[]> submitRecord(final byte[] plain) {
+    return getExecutor().submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception {
+        return sealRecord(plain);
+      }
+    });
+  }
+
+  /**
+   * Returns the random initial vector of a sealed record.  It is covered by
+   * the record's MAC, so it identifies the record: a record cannot be
+   * swapped for another one without changing its id.
+   *
+   * @param sealed Buffer positioned at the start of the sealed record.
+   */
+  public static byte[] getRecordId(ByteBuffer sealed) {
+    byte[] id = new byte[IV_SIZE];
+    ByteBuffer view = sealed.duplicate();
+    view.position(view.position() + 1 + 4);
+    view.get(id);
+    return id;
+  }
+
+  /** Returns the total size of the sealed record at the buffer's position. */
+  public static int getRecordSize(ByteBuffer sealed) {
+    return 1 + 4 + IV_SIZE + sealed.getInt(sealed.position() + 1) + MAC_SIZE;
+  }
+
+  /**
+   * Verifies and decrypts a record written by sealRecord().
+   *
+   * @param sealed Buffer positioned at the start of the sealed record.  The
+   *     position of the buffer is not changed.
+   * @param id The id of the record expected at this position.
+   */
+  public byte[] openRecord(ByteBuffer sealed, byte[] id) throws IOException {
+    return openRecord(sealed, 0, id);
+  }
+
+  /**
+   * Verifies and decrypts a record written by sealRecord(long, byte[]).
+   *
+   * @param sealed Buffer positioned at the start of the sealed record.  The
+   *     position of the buffer is not changed.
+   * @param index The index the record was sealed with.
+   */
+  public byte[] openRecord(ByteBuffer sealed, long index) throws IOException {
+    return openRecord(sealed, index, null);
+  }
+
+  private byte[] openRecord(ByteBuffer sealed, long index, byte[] id)
+      throws IOException {
+    try {
+      ByteBuffer view = sealed.duplicate();
+      int flags = view.get() & 0xff;
+      int length = view.getInt();
+      if (flags != (FLAG_FINAL | FLAG_RECORD) || length < 0 ||
+          length > view.remaining())
+        throw new IOException("Invalid record");
+
+      byte[] iv = new byte[IV_SIZE];
+      byte[] data = new byte[length];
+      byte[] mac = new byte[MAC_SIZE];
+      view.get(iv);
+      view.get(data);
+      view.get(mac);
+      if (null != id && !MessageDigest.isEqual(iv, id))
+        throw new IOException("Unexpected record");
+
+      return decryptChunk(index, flags, iv, data, mac);
+    } catch (IOException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      throw new IOException("openRecord failed: " + ex.getMessage());
+    }
+  }
+
+  /** Does this cipher use the same keys as the given one? */
+  public boolean hasSameKey(ChunkedCipher other) {
+    return MessageDigest.isEqual(encryptionKey.getEncoded(),
+                                 other.encryptionKey.getEncoded()) &&
+        MessageDigest.isEqual(macKey.getEncoded(), other.macKey.getEncoded());
+  }
+
+  private static synchronized ThreadPoolExecutor getExecutor() {
+    if (null == executor) {
+      int threads = Runtime.getRuntime().availableProcessors();
+      executor = new ThreadPoolExecutor(threads, threads, 5, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "chunkedCipher");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      executor.allowCoreThreadTimeOut(true);
+    }
+
+    return executor;
+  }
+
+  /** Maximum number of chunks queued or being processed per stream. */
+  static int getWindow() {
+    return 2 * Runtime.getRuntime().availableProcessors();
+  }
+
+  private static synchronized byte[] newIv() {
+    if (null == random)
+      random = new SecureRandom();
+
+    byte[] iv = new byte[IV_SIZE];
+    random.nextBytes(iv);
+    return iv;
+  }
+
+  private static Cipher getCipher() throws Exception {
+    Cipher cipher = ciphers.get();
+    if (null == cipher) {
+      cipher = Cipher.getInstance(CIPHER_FACTORY);
+      ciphers.set(cipher);
+    }
+    return cipher;
+  }
+
+  private Mac getMac() throws Exception {
+    Mac mac = macs.get();
+    if (null == mac) {
+      mac = Mac.getInstance(MAC_FACTORY);
+      macs.set(mac);
+    }
+    mac.init(macKey);
+    return mac;
+  }
+
+  private byte[] computeMac(long index, int flags, byte[] iv, byte[] data,
+                            int offset, int length) throws Exception {
+    Mac mac = getMac();
+    for (int shift = 56; shift >= 0; shift -= 8)
+      mac.update((byte) (index >>> shift));
+    mac.update((byte) flags);
+    mac.update(iv);
+    mac.update(data, offset, length);
+    return mac.doFinal();
+  }
+
+  /** Encrypts one chunk into its on-disk form. */
+  private byte[] encryptChunk(long index, int flags, byte[] plain, int length)
+      throws Exception {
+    byte[] iv = newIv();
+    Cipher cipher = getCipher();
+    cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+    int encryptedLength = cipher.getOutputSize(length);
+
+    byte[] chunk = new byte[1 + 4 + IV_SIZE + encryptedLength + MAC_SIZE];
+    int offset = 0;
+    chunk[offset++] = (byte) flags;
+    chunk[offset++] = (byte) (encryptedLength >>> 24);
+    chunk[offset++] = (byte) (encryptedLength >>> 16);
+    chunk[offset++] = (byte) (encryptedLength >>> 8);
+    chunk[offset++] = (byte) encryptedLength;
+    System.arraycopy(iv, 0, chunk, offset, IV_SIZE);
+    offset += IV_SIZE;
+    encryptedLength = cipher.doFinal(plain, 0, length, chunk, offset);
+
+    byte[] mac = computeMac(index, flags, iv, chunk, offset, encryptedLength);
+    System.arraycopy(mac, 0, chunk, offset + encryptedLength, MAC_SIZE);
+    return chunk;
+  }
+
+  /** Verifies and decrypts one chunk. */
+  private byte[] decryptChunk(long index, int flags, byte[] iv, byte[] data,
+                              byte[] expectedMac) throws Exception {
+    byte[] mac = computeMac(index, flags, iv, data, 0, data.length);
+    if (!MessageDigest.isEqual(mac, expectedMac))
+      throw new IOException("Chunk " + index + " failed verification");
+
+    Cipher cipher = getCipher();
+    cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+    return cipher.doFinal(data);
+  }
+
+  /** Waits for a chunk task, unwrapping any error it threw. */
+  static byte[] await(Future<byte[]> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted");
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      throw new IOException("Chunk failed: " + cause);
+    }
+  }
+
+  private class ChunkedOutputStream extends OutputStream {
+    private final OutputStream output;
+    private final LinkedList<Future<byte[]>> pending =
+        new LinkedList<Future<byte[]>>();
+    private byte[] buffer = new byte[CHUNK_SIZE];
+    private int count;
+    private long index;
+    private boolean closed;
+
+    ChunkedOutputStream(OutputStream output) {
+      this.output = output;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (count == CHUNK_SIZE)
+        submit(0);
+      buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int length) throws IOException {
+      while (length > 0) {
+        if (count == CHUNK_SIZE)
+          submit(0);
+
+        int n = Math.min(length, CHUNK_SIZE - count);
+        System.arraycopy(b, offset, buffer, count, n);
+        count += n;
+        offset += n;
+        length -= n;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed)
+        return;
+
+      closed = true;
+      submit(FLAG_FINAL);
+      while (!pending.isEmpty())
+        output.write(await(pending.removeFirst()));
+      output.flush();
+    }
+
+    /** Queues the buffered chunk for encryption. */
+    private void submit(final int flags) throws IOException {
+      final byte[] plain = buffer;
+      final int length = count;
+      final long chunkIndex = index++;
+      pending.add(getExecutor().submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws Exception {
+          return encryptChunk(chunkIndex, flags, plain, length);
+        }
+      }));
+
+      buffer = new byte[CHUNK_SIZE];
+      count = 0;
+
+      // Write out finished chunks in order, waiting if too many are queued.
+      while (!pending.isEmpty() &&
+             (pending.size() > getWindow() || pending.getFirst().isDone())) {
+        output.write(await(pending.removeFirst()));
+      }
+    }
+  }
+
+  private class ChunkedInputStream extends InputStream {
+    private final DataInputStream input;
+    private final LinkedList<Future<byte[]>> pending =
+        new LinkedList<Future<byte[]>>();
+    private byte[] current = new byte[0];
+    private int pos;
+    private long index;
+    private boolean sawFinal;
+
+    ChunkedInputStream(InputStream input) {
+      this.input = new DataInputStream(input);
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!fill())
+        return -1;
+      return current[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int length) throws IOException {
+      if (0 == length)
+        return 0;
+      if (!fill())
+        return -1;
+
+      int n = Math.min(length, current.length - pos);
+      System.arraycopy(current, pos, b, offset, n);
+      pos += n;
+      return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (Future<byte[]> future : pending)
+        future.cancel(true);
+      pending.clear();
+      input.close();
+    }
+
+    /** Makes sure current has bytes to read, returns false at the end. */
+    private boolean fill() throws IOException {
+      while (pos == current.length) {
+        queueChunks();
+        if (pending.isEmpty())
+          return false;
+
+        current = await(pending.removeFirst());
+        pos = 0;
+      }
+      return true;
+    }
+
+    /** Reads chunks from the file and queues them for decryption. */
+    private void queueChunks() throws IOException {
+      while (!sawFinal && pending.size() < getWindow()) {
+        final int flags;
+        try {
+          flags = input.readUnsignedByte();
+        } catch (EOFException ex) {
+          throw new IOException("Missing final chunk");
+        }
+
+        // Sealed records have flags of their own, so they cannot be passed
+        // off as chunks of a stream.
+        if (0 != (flags & ~FLAG_FINAL))
+          throw new IOException("Invalid chunk flags " + flags);
+
+        int length = input.readInt();
+        if (length < 0 || length > CHUNK_SIZE + IV_SIZE)
+          throw new IOException("Invalid chunk length " + length);
+
+        final byte[] iv = new byte[IV_SIZE];
+        final byte[] data = new byte[length];
+        final byte[] mac = new byte[MAC_SIZE];
+        input.readFully(iv);
+        input.readFully(data);
+        input.readFully(mac);
+
+        final long chunkIndex = index++;
+        sawFinal = 0 != (flags & FLAG_FINAL);
+        pending.add(getExecutor().submit(new Callable<byte[]>() {
+          @Override
+          public byte[] call() throws Exception {
+            return decryptChunk(chunkIndex, flags, iv, data, mac);
+          }
+        }));
+      }
+    }
+  }
+}
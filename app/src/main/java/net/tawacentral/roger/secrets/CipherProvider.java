@@ -0,0 +1,150 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+import android.util.Log;
+
+/**
+ * Hands out ciphers for one key, so that threads that encrypt or decrypt with
+ * the same key at the same time each use their own Cipher.  Cipher objects
+ * are not thread safe, and the ciphers created by SecurityUtils are shared by
+ * the UI thread, SaveService, backups and sync.
+ *
+ * The ciphers created by SecurityUtils.createCiphers() are still passed
+ * around as before, but only as handles: they identify the key, for example
+ * in SecurityUtils.getKey() and SaveService, and are registered here with a
+ * provider that holds the key.  Code that encrypts or decrypts takes its own
+ * cipher for the handle with acquire(), and gives it back with release() once
+ * it has called doFinal(), which leaves the cipher ready for the next use.  A
+ * cipher that was not given back, for example after an error, is simply left
+ * to the garbage collector.  Ciphers that were never registered, such as the
+ * legacy V1 and V2 ciphers, are returned as they are.
+ *
+ * A few ciphers are kept for each key, since creating one costs more than
+ * most of the uses, which encrypt a single journal record.
+ */
+public class CipherProvider {
+  /** Tag for logging purposes. */
+  public static final String LOG_TAG = "CipherProvider";
+
+  /** Number of idle ciphers kept for each key. */
+  private static final int POOL_SIZE = 4;
+
+  // The providers of the registered handles.  Handles are compared by
+  // identity, and are dropped along with their provider once they are no
+  // longer used.
+  private static final Map<Cipher, CipherProvider> providers =
+      Collections.synchronizedMap(new WeakHashMap<Cipher, CipherProvider>());
+
+  private final String transformation;
+  private final int mode;
+  private final SecretKey key;
+  private final AlgorithmParameterSpec params;
+  private final ArrayList<Cipher> pool = new ArrayList<Cipher>(POOL_SIZE);
+
+  /**
+   * Creates a provider of ciphers initialized with the given arguments.
+   *
+   * @param transformation The name of the cipher, see Cipher.getInstance().
+   * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE.
+   * @param key The key.
+   * @param params The parameters, such as the initial vector.
+   */
+  public CipherProvider(String transformation, int mode, SecretKey key,
+                        AlgorithmParameterSpec params) {
+    this.transformation = transformation;
+    this.mode = mode;
+    this.key = key;
+    this.params = params;
+  }
+
+  /**
+   * Creates a cipher from this provider and registers it as a handle, so
+   * that acquire() hands out other ciphers with the same key and mode.
+   */
+  public Cipher newHandle() throws GeneralSecurityException {
+    Cipher handle = newCipher();
+    providers.put(handle, this);
+    return handle;
+  }
+
+  /**
+   * Gets a cipher for the exclusive use of the caller, with the same key and
+   * mode as the given handle.
+   *
+   * @param handle A cipher created by SecurityUtils, or any other cipher.
+   * @return A cipher ready to use, or the handle itself if it was not created
+   *     by a provider.
+   * @throws GeneralSecurityException If a new cipher cannot be created.  The
+   *     shared handle is never returned in its place, since other threads
+   *     may be using it.
+   */
+  public static Cipher acquire(Cipher handle) throws GeneralSecurityException {
+    CipherProvider provider = null == handle ? null : providers.get(handle);
+    if (null == provider)
+      return handle;
+
+    try {
+      return provider.acquire();
+    } catch (GeneralSecurityException ex) {
+      // This should not happen, since the handle was created the same way.
+      Log.e(LOG_TAG, "acquire", ex);
+      throw ex;
+    }
+  }
+
+  /**
+   * Gives back a cipher taken with acquire(), after doFinal() has been called
+   * on it.
+   *
+   * @param handle The handle passed to acquire().
+   * @param cipher The cipher returned by acquire().
+   */
+  public static void release(Cipher handle, Cipher cipher) {
+    if (null == cipher || cipher == handle)
+      return;
+
+    CipherProvider provider = providers.get(handle);
+    if (null != provider)
+      provider.release(cipher);
+  }
+
+  private synchronized Cipher acquire() throws GeneralSecurityException {
+    if (!pool.isEmpty())
+      return pool.remove(pool.size() - 1);
+    return newCipher();
+  }
+
+  private synchronized void release(Cipher cipher) {
+    if (pool.size() < POOL_SIZE)
+      pool.add(cipher);
+  }
+
+  private Cipher newCipher() throws GeneralSecurityException {
+    Cipher cipher = Cipher.getInstance(transformation);
+    cipher.init(mode, key, params);
+    return cipher;
+  }
+}
@@ -0,0 +1,301 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits CSV text into rows of fields, as described in RFC 4180.
+ *
+ * Fields may be quoted, in which case they may hold separators, line breaks
+ * and doubled quotes, which stand for one quote.  Line breaks inside quoted
+ * fields are kept as they are in the file.  The tokenizer is lenient with
+ * text that does not follow the RFC: a quote inside an unquoted field is
+ * kept as is, text after the closing quote of a field is appended to it, and
+ * a quoted field still open at the end of the file ends there.  Records end
+ * with LF, CRLF or CR.  Blank lines between records and a byte order mark at
+ * the start of the text are skipped.
+ *
+ * The text is read through a char buffer, and the fields of each record are
+ * copied into a single char array in a Row that is reused for every record,
+ * so reading does not allocate anything per field.  Strings are only created
+ * when the caller asks for them, with Row.get().
+ */
+public class CsvTokenizer {
+  /** The default separator between fields. */
+  public static final char DEFAULT_SEPARATOR = ',';
+
+  /** The default character used to quote fields. */
+  public static final char DEFAULT_QUOTE = '"';
+
+  private static final int BUFFER_SIZE = 16 * 1024;
+  private static final char BYTE_ORDER_MARK = '\uFEFF';
+
+  private final Reader reader;
+  private final char separator;
+  private final char quote;
+  private final char[] buffer = new char[BUFFER_SIZE];
+  private final Row row = new Row();
+  private int position;
+  private int limit;
+  private boolean started;
+
+  /**
+   * Creates a tokenizer that reads comma separated fields, quoted with double
+   * quotes, from the given reader.
+   */
+  public CsvTokenizer(Reader reader) {
+    this(reader, DEFAULT_SEPARATOR, DEFAULT_QUOTE);
+  }
+
+  /**
+   * Creates a tokenizer for the given reader.
+   *
+   * @param reader The text to split.  It does not need to be buffered.
+   * @param separator The character between fields.
+   * @param quote The character used to quote fields.
+   */
+  public CsvTokenizer(Reader reader, char separator, char quote) {
+    this.reader = reader;
+    this.separator = separator;
+    this.quote = quote;
+  }
+
+  /**
+   * Reads the next record.
+   *
+   * @return The fields of the record, or null at the end of the text.  The
+   *     same Row is returned each time, and is overwritten by the next call.
+   * @throws IOException if the text cannot be read.
+   */
+  public Row next() throws IOException {
+    row.clear();
+
+    // Skip blank lines.
+    for (;;) {
+      if (position == limit && !fill())
+        return null;
+
+      char c = buffer[position];
+      if ('\n' != c && '\r' != c)
+        break;
+      ++position;
+    }
+
+    for (;;) {
+      if (position == limit && !fill()) {
+        // The record ends with a separator, so it has an empty last field.
+        row.endField();
+        return row;
+      }
+
+      if (quote == buffer[position]) {
+        ++position;
+        if (!readQuoted()) {
+          row.endField();
+          return row;
+        }
+      }
+
+      // Read up to the next separator or line break.  For a quoted field,
+      // this is any text after the closing quote.
+      for (;;) {
+        int start = position;
+        while (position < limit) {
+          char c = buffer[position];
+          if (separator == c || '\n' == c || '\r' == c)
+            break;
+          ++position;
+        }
+        row.append(buffer, start, position - start);
+        if (position < limit)
+          break;
+        if (!fill()) {
+          row.endField();
+          return row;
+        }
+      }
+
+      char c = buffer[position++];
+      row.endField();
+      if (separator != c) {
+        if ('\r' == c && (position < limit || fill()) &&
+            '\n' == buffer[position]) {
+          ++position;
+        }
+        return row;
+      }
+    }
+  }
+
+  /**
+   * Reads the rest of a quoted field, just after its opening quote, up to and
+   * including its closing quote.
+   *
+   * @return False if the text ended before the closing quote.
+   */
+  private boolean readQuoted() throws IOException {
+    for (;;) {
+      if (position == limit && !fill())
+        return false;
+
+      int start = position;
+      while (position < limit && quote != buffer[position])
+        ++position;
+      row.append(buffer, start, position - start);
+      if (position == limit)
+        continue;
+
+      // Either the closing quote, or the first of two quotes standing for one.
+      ++position;
+      if (position == limit && !fill())
+        return false;
+      if (quote != buffer[position])
+        return true;
+
+      row.append(quote);
+      ++position;
+    }
+  }
+
+  /**
+   * Reads more text into the buffer, once all of it has been used.
+   *
+   * @return False at the end of the text.
+   */
+  private boolean fill() throws IOException {
+    int n;
+    do {
+      n = reader.read(buffer, 0, buffer.length);
+    } while (0 == n);
+
+    position = 0;
+    limit = Math.max(n, 0);
+    if (!started && limit > 0) {
+      started = true;
+      if (BYTE_ORDER_MARK == buffer[0])
+        position = 1;
+      if (position == limit)
+        return fill();
+    }
+    return limit > 0;
+  }
+
+  /** Closes the underlying reader. */
+  public void close() throws IOException {
+    reader.close();
+  }
+
+  /**
+   * The fields of one record.  The characters of all the fields are kept in
+   * one array, along with the offset where each field ends.
+   */
+  public static class Row {
+    private char[] chars = new char[256];
+    private int length;
+    private int[] ends = new int[16];
+    private int size;
+
+    /** Returns the number of fields in the record. */
+    public int size() {
+      return size;
+    }
+
+    /**
+     * Returns the given field as a string.
+     *
+     * @throws IndexOutOfBoundsException if the record has fewer fields.
+     */
+    public String get(int index) {
+      int start = start(index);
+      return new String(chars, start, ends[index] - start);
+    }
+
+    /** Returns the number of characters in the given field. */
+    public int length(int index) {
+      return ends[index] - start(index);
+    }
+
+    /**
+     * Returns true if the given field is equal to the given string, ignoring
+     * case, without creating a string for the field.
+     */
+    public boolean equalsIgnoreCase(int index, String s) {
+      int start = start(index);
+      int count = ends[index] - start;
+      if (count != s.length())
+        return false;
+
+      for (int i = 0; i < count; ++i) {
+        char a = chars[start + i];
+        char b = s.charAt(i);
+        if (a != b &&
+            Character.toUpperCase(a) != Character.toUpperCase(b) &&
+            Character.toLowerCase(a) != Character.toLowerCase(b)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** Returns all the fields as an array of strings. */
+    public String[] toArray() {
+      String[] fields = new String[size];
+      for (int i = 0; i < size; ++i)
+        fields[i] = get(i);
+      return fields;
+    }
+
+    private int start(int index) {
+      if (index < 0 || index >= size)
+        throw new IndexOutOfBoundsException("Field " + index + " of " + size);
+      return 0 == index ? 0 : ends[index - 1];
+    }
+
+    private void clear() {
+      length = 0;
+      size = 0;
+    }
+
+    private void append(char[] source, int offset, int count) {
+      if (length + count > chars.length) {
+        char[] grown = new char[Math.max(chars.length * 2, length + count)];
+        System.arraycopy(chars, 0, grown, 0, length);
+        chars = grown;
+      }
+      System.arraycopy(source, offset, chars, length, count);
+      length += count;
+    }
+
+    private void append(char c) {
+      if (length == chars.length) {
+        char[] grown = new char[chars.length * 2];
+        System.arraycopy(chars, 0, grown, 0, length);
+        chars = grown;
+      }
+      chars[length++] = c;
+    }
+
+    private void endField() {
+      if (size == ends.length) {
+        int[] grown = new int[ends.length * 2];
+        System.arraycopy(ends, 0, grown, 0, size);
+        ends = grown;
+      }
+      ends[size++] = length;
+    }
+  }
+}
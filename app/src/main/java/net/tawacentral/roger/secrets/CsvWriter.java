@@ -0,0 +1,131 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes CSV text that CsvTokenizer can read back.  Every field is quoted,
+ * with quotes inside the field doubled, and null fields are written as empty
+ * unquoted fields.  Records end with a single LF.
+ *
+ * Fields are copied straight into a char buffer that is reused for the whole
+ * file and written to the underlying writer only when it is full, so writing
+ * does not allocate anything per field or per record.
+ */
+public class CsvWriter {
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  private final Writer writer;
+  private final char separator;
+  private final char quote;
+  private final char[] buffer = new char[BUFFER_SIZE];
+  private int length;
+  private boolean isFirstField = true;
+
+  /**
+   * Creates a writer of comma separated fields, quoted with double quotes.
+   *
+   * @param writer Where the text is written.  It does not need to be buffered.
+   */
+  public CsvWriter(Writer writer) {
+    this(writer, CsvTokenizer.DEFAULT_SEPARATOR, CsvTokenizer.DEFAULT_QUOTE);
+  }
+
+  /**
+   * Creates a writer with the given separator and quote characters.
+   *
+   * @param writer Where the text is written.  It does not need to be buffered.
+   * @param separator The character between fields.
+   * @param quote The character used to quote fields.
+   */
+  public CsvWriter(Writer writer, char separator, char quote) {
+    this.writer = writer;
+    this.separator = separator;
+    this.quote = quote;
+  }
+
+  /** Appends one field to the current record. */
+  public void writeField(String field) throws IOException {
+    if (!isFirstField)
+      put(separator);
+    isFirstField = false;
+
+    if (null == field)
+      return;
+
+    put(quote);
+    int start = 0;
+    for (int i = field.indexOf(quote); i >= 0;
+         i = field.indexOf(quote, start)) {
+      put(field, start, i + 1);
+      put(quote);
+      start = i + 1;
+    }
+    put(field, start, field.length());
+    put(quote);
+  }
+
+  /** Ends the current record. */
+  public void endRow() throws IOException {
+    put('\n');
+    isFirstField = true;
+  }
+
+  /** Writes a whole record. */
+  public void writeRow(String[] fields) throws IOException {
+    for (String field : fields)
+      writeField(field);
+    endRow();
+  }
+
+  /** Writes the buffered text and flushes the underlying writer. */
+  public void flush() throws IOException {
+    drain();
+    writer.flush();
+  }
+
+  /** Writes the buffered text and closes the underlying writer. */
+  public void close() throws IOException {
+    drain();
+    writer.close();
+  }
+
+  private void put(char c) throws IOException {
+    if (length == buffer.length)
+      drain();
+    buffer[length++] = c;
+  }
+
+  /** Copies the characters of s between start and end into the buffer. */
+  private void put(String s, int start, int end) throws IOException {
+    while (start < end) {
+      if (length == buffer.length)
+        drain();
+      int count = Math.min(end - start, buffer.length - length);
+      s.getChars(start, start + count, buffer, length);
+      length += count;
+      start += count;
+    }
+  }
+
+  private void drain() throws IOException {
+    if (length > 0) {
+      writer.write(buffer, 0, length);
+      length = 0;
+    }
+  }
+}
@@ -14,26 +14,35 @@
 
 package net.tawacentral.roger.secrets;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.zip.Deflater;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
 import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.SecretKeySpec;
 
 import net.tawacentral.roger.secrets.SecurityUtils.CipherInfo;
 
@@ -44,13 +53,10 @@ import org.json.JSONObject;
 import android.app.backup.BackupAgentHelper;
 import android.app.backup.BackupDataInput;
 import android.app.backup.BackupDataOutput;
-import android.app.backup.FileBackupHelper;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
-import au.com.bytecode.opencsv.CSVReader;
-import au.com.bytecode.opencsv.CSVWriter;
 
 
 public class FileUtils {
@@ -62,6 +68,27 @@ public class FileUtils {
     }
     public byte[] salt;
     public int rounds;
+    /** The key check value, or null for files written without one. */
+    public byte[] keyCheck;
+
+    /**
+     * Is the given raw key the one the file was written with?  Files without
+     * a key check value accept any key, which is then checked by decrypting.
+     */
+    public boolean checkKey(byte[] key) {
+      if (null == keyCheck)
+        return true;
+      if (null == key)
+        return false;
+
+      try {
+        return MessageDigest.isEqual(keyCheck,
+                                     ChunkedCipher.computeKeyCheck(key));
+      } catch (IOException ex) {
+        Log.e(LOG_TAG, "checkKey", ex);
+        return false;
+      }
+    }
   }
 
   /** Name of the preferences file for backup. */
@@ -80,6 +107,12 @@ public class FileUtils {
    */
   public static final String PREF_LAST_NAG_DATE = "last_nag_date";
 
+  /**
+   * Name of the encrypted export preference.  Boolean value, true if
+   * exportSecrets() encrypts the file it writes.
+   */
+  public static final String PREF_ENCRYPTED_EXPORT = "encrypted_export";
+
   /** Name of the secrets file. */
   public static final String SECRETS_FILE_NAME = "secrets";
 
@@ -102,13 +135,16 @@ public class FileUtils {
   public static final String COL_EMAIL = "Email";
   public static final String COL_NOTES= "Notes";
 
-  private static final String EMPTY_STRING = "";
   private static final String INDENT = "   ";
-  private static final String RP_PREFIX = "@";
+  static final String RP_PREFIX = "@";
 
   // secrets ID for JSON
   private static final String JSON_SECRETS_ID = "secrets";
 
+  /** First bytes of the plain text of F3 files. */
+  private static final byte[] JSON_PREFIX =
+      ("{" + JSONObject.quote(JSON_SECRETS_ID) + ":[").getBytes();
+
   /** Tag for logging purposes. */
   public static final String LOG_TAG = "FileUtils";
 
@@ -117,8 +153,77 @@ public class FileUtils {
 
   private static final byte[] SIGNATURE = {0x22, 0x34, 0x56, 0x79};
 
+  /**
+   * Written after the salt and rounds, and followed by the key check value of
+   * the key, see ChunkedCipher.computeKeyCheck().  This lets a wrong password
+   * be rejected without decrypting the file.  It is part of the header, so
+   * getSaltAndRounds() skips it.  V4 and older files do not have it.
+   */
+  private static final byte[] KEY_CHECK_SIGNATURE = {
+    0x4b, 0x65, 0x79, 0x43, 0x68, 0x6b
+  };
+
+  /**
+   * Written after the salt and rounds, and the key check value, in files that
+   * use the indexed file format (F4), see IndexedSecretsFile.  It is followed
+   * by one byte giving the version of the format.  These files always use the
+   * chunked cipher format (C4).  Files that use the older formats have
+   * encrypted data in this position.
+   */
+  private static final byte[] INDEXED_SIGNATURE = {
+    0x49, 0x6e, 0x64, 0x65, 0x78, 0x65, 0x64
+  };
+
+  /**
+   * DEFLATE level used to compress the secrets before they are encrypted, or
+   * Deflater.NO_COMPRESSION.  The default gives most of the size reduction of
+   * the best level for a fraction of its cost.
+   */
+  private static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
+  /**
+   * At most this many restore points in a row are deltas.  The next one is a
+   * full copy, which bounds the number of files read to restore a delta, and
+   * the number of restore points lost if a file is damaged.
+   */
+  private static final int KEYFRAME_INTERVAL = 5;
+
+  /** Size of buffers used when streaming secrets to and from files. */
+  static final int STREAM_BUFFER_SIZE = 8192;
+
+  /** Size of the buffer used when writing an export to the SD card. */
+  private static final int EXPORT_BUFFER_SIZE = 64 * 1024;
+
+  /** Formats returned by detectFormat(), see the load methods. */
+  public static final int FORMAT_NONE = 0;
+  public static final int FORMAT_V1 = 1;
+  public static final int FORMAT_V2 = 2;
+  public static final int FORMAT_V3 = 3;
+  public static final int FORMAT_V4 = 4;
+  /** V5, the format written by saveSecrets(). */
+  public static final int FORMAT_CURRENT = 5;
+
+  /** Size of a block of the C2 and C3 ciphers. */
+  private static final int CIPHER_BLOCK_SIZE = 16;
+
+  /**
+   * First bytes of the plain text of F2 files: the stream header of
+   * java.io.ObjectOutputStream, followed by the start of a new object with a
+   * new class descriptor, the ArrayList.
+   */
+  private static final byte[] OBJECT_STREAM_PREFIX = {
+    (byte) 0xac, (byte) 0xed, 0x00, 0x05, 0x73, 0x72
+  };
+
   /** Does the secrets file exist? */
   public static boolean secretsExist(Context context) {
+    // The manifest lists the secrets file and restore points, and reading it
+    // does not need the file lock either.  Fall back to looking at the
+    // directory if it cannot be used.
+    RestorePointManifest manifest = RestorePointManifest.read(context);
+    if (null != manifest)
+      return !manifest.isEmpty();
+
     // Instead of just checking for the existence of the secrets file
     // explicitly, I will check for the existence of any file in the
     // application's data directory.  This check is valid because:
@@ -202,9 +307,8 @@ public class FileUtils {
     return false;
   }
 
-  /** Is the restore point too old? */
-  private static boolean isRestorePointTooOld(File file) {
-    long lastModified = file.lastModified();
+  /** Is the restore point, last modified at the given time, too old? */
+  private static boolean isRestorePointTooOld(long lastModified) {
     long now = System.currentTimeMillis();
     long twoDays = 2 * 24 * 60 * 60 * 1000;  // 2 days.
 
@@ -219,15 +323,15 @@ public class FileUtils {
    * @return A list of all possible restore points.
    */
   public static List<String> getRestorePoints(Context context) {
-    String[] filenames = context.fileList();
-    ArrayList<String> list = new ArrayList<String>(filenames.length + 1);
+    List<RestorePointManifest.Entry> entries =
+        RestorePointManifest.load(context).getRestorePoints();
+    ArrayList<String> list = new ArrayList<String>(entries.size() + 1);
     if (restoreFileExist())
       list.add(SECRETS_FILE_NAME_SDCARD);
 
-    for (String filename : filenames) {
-      if (filename.startsWith(RP_PREFIX))
-        list.add(filename);
-    }
+    // Most recent first.
+    for (int i = entries.size() - 1; i >= 0; --i)
+      list.add(entries.get(i).name);
 
     return list;
   }
@@ -239,7 +343,8 @@ public class FileUtils {
    * - delete any file with "new" in the name.  These are possibly partial
    *   writes, so their contents is undefined.
    * - if no secrets file exists, rename the most recent auto restore point
-   *   file to secrets.
+   *   file that is not a delta to secrets, and delete the deltas newer than
+   *   it, since they depend on the lost secrets file.
    * - if too many auto restore point files exist, delete the extra ones.
    *   However, don't delete any auto-backups younger than 48 hours.
    *
@@ -248,79 +353,86 @@ public class FileUtils {
   public static void cleanupDataFiles(Context context) {
     Log.d(LOG_TAG, "FileUtils.cleanupDataFiles");
     synchronized (lock) {
-      String[] filenames = context.fileList();
-      int oldCount = filenames.length;
-      boolean secretsFileExists = context.getFileStreamPath(SECRETS_FILE_NAME)
-          .exists();
-
-      // Cleanup any partial saves and find the most recent auto-backup file.
-      {
-        File mostRecent = null;
-        int mostRecentIndex = -1;
-        for (int i = 0; i < filenames.length; ++i) {
-          String filename = filenames[i];
-          if (0 == filename.indexOf("new")) {
-            // This is a partial write file, probably corrupted.  Delete it.
-            context.deleteFile(filename);
-            --oldCount;
-            filenames[i] = null;
-          } else if (filename.startsWith(RP_PREFIX)) {
-            // This is an auto-backup file.  Remember most recent.
-            if (!secretsFileExists) {
-              File f = context.getFileStreamPath(filename);
-              if (null == mostRecent ||
-                  f.lastModified() > mostRecent.lastModified()) {
-                mostRecent = f;
-                mostRecentIndex = i;
-              }
-            }
-          } else {
-            --oldCount;
-            filenames[i] = null;
-          }
-        }
+      MappedSecretsFile.release();
+
+      // Reading the manifest checks that it matches the secrets file.  If it
+      // does not, it is rebuilt from the directory, which also deletes any
+      // partial saves.
+      RestorePointManifest manifest = RestorePointManifest.read(context);
+      boolean changed = null == manifest;
+      if (changed) {
+        manifest = RestorePointManifest.rebuild(context);
+      } else {
+        deletePartialSaves(context);
+      }
 
-        // If we don't have a secrets file but found an auto-backup file,
-        // rename the more recent auto-backup to secrets.
-        if (null != mostRecent) {
-          mostRecent.renameTo(context.getFileStreamPath(SECRETS_FILE_NAME));
-          --oldCount;
-          filenames[mostRecentIndex] = null;
+      List<RestorePointManifest.Entry> restorePoints =
+          manifest.getRestorePoints();
+
+      // If we don't have a secrets file but found an auto-backup file,
+      // rename the more recent auto-backup to secrets.
+      // A delta restore point cannot be used on its own, so skip those.
+      // The deltas newer than the one renamed were written against the lost
+      // secrets file, so the records they are missing may be gone too.  They
+      // are deleted rather than left to fail when restored.
+      RestorePointManifest.Entry mostRecent = null;
+      List<RestorePointManifest.Entry> orphans =
+          new ArrayList<RestorePointManifest.Entry>();
+      if (null == manifest.get(SECRETS_FILE_NAME)) {
+        for (int i = restorePoints.size() - 1; i >= 0; --i) {
+          if (!restorePoints.get(i).delta) {
+            mostRecent = restorePoints.remove(i);
+            while (restorePoints.size() > i)
+              orphans.add(restorePoints.remove(i));
+            break;
+          }
         }
       }
-
-      // If there are too many old files, delete the oldest extra ones.
-      while (oldCount > 10) {
-        File oldest = null;
-        int oldestIndex = -1;
-
-        for (int i = 0; i < filenames.length; ++i) {
-          String filename = filenames[i];
-          if (null == filename)
-            continue;
-
-          File f = context.getFileStreamPath(filename);
-          if (null == oldest || f.lastModified() < oldest.lastModified()) {
-            oldest = f;
-            oldestIndex = i;
+      if (null != mostRecent) {
+        if (context.getFileStreamPath(mostRecent.name).renameTo(
+                context.getFileStreamPath(SECRETS_FILE_NAME))) {
+          manifest.remove(mostRecent.name);
+          manifest.put(mostRecent.rename(SECRETS_FILE_NAME));
+          for (RestorePointManifest.Entry orphan : orphans) {
+            Log.w(LOG_TAG, "FileUtils.cleanupDataFiles: deleting delta " +
+                  orphan.name + " of lost secrets file");
+            context.deleteFile(orphan.name);
+            manifest.remove(orphan.name);
           }
+          changed = true;
         }
+      }
 
-        if (null != oldest) {
-          // If the oldest file is not too old, then just break out of the
-          // loop.  We don't want to delete any "old" files that are too
-          // recent.
-          if (!FileUtils.isRestorePointTooOld(oldest))
-            break;
+      // If there are too many old files, delete the oldest extra ones.  We
+      // don't want to delete any "old" files that are too recent.
+      for (int i = 0; restorePoints.size() - i > 10; ++i) {
+        RestorePointManifest.Entry oldest = restorePoints.get(i);
+        if (!isRestorePointTooOld(oldest.time))
+          break;
 
-          oldest.delete();
-          --oldCount;
-          filenames[oldestIndex] = null;
-        }
+        context.deleteFile(oldest.name);
+        manifest.remove(oldest.name);
+        changed = true;
       }
+
+      if (changed)
+        manifest.write(context);
     }
   }
 
+  /**
+   * Deletes the temporary files left by saves that did not complete.  See
+   * saveSecrets() for how they are named.  Only the first few names are tried;
+   * more would need many saves in the same minute, and any others are deleted
+   * the next time the manifest is rebuilt.
+   */
+  private static void deletePartialSaves(Context context) {
+    context.deleteFile("new");
+    for (int i = 0; i < 10; ++i)
+      context.deleteFile("new" + i);
+  }
+
+
   /**
    * Gets the salt and rounds already in use on this device, or null if none
    * exists.
@@ -333,25 +445,99 @@ public class FileUtils {
    */
   public static SaltAndRounds getSaltAndRounds(Context context, String path) {
     // The salt is stored as a byte array at the start of the secrets file.
-    FileInputStream input = null;
+    // The file is mapped so that the load which usually follows can reuse
+    // the mapping.
     try {
-      input = SECRETS_FILE_NAME_SDCARD.equals(path)
-          ? new FileInputStream(path)
-          : context.openFileInput(path);
-      return getSaltAndRounds(input);
+      return getSaltAndRounds(mapSecretsFile(context, path).getBuffer());
     } catch (Exception ex) {
       Log.e(LOG_TAG, "getSaltAndRounds", ex);
-    } finally {
-      try {if (null != input) input.close();} catch (IOException ex) {}
     }
     return new SaltAndRounds(null, 0);
   }
 
+  /**
+   * Gets the salt and rounds from the header at the current position of the
+   * buffer, and leaves the buffer positioned just after the header.  See
+   * getSaltAndRounds(InputStream).
+   */
+  private static SaltAndRounds getSaltAndRounds(ByteBuffer buffer) {
+    byte[] salt = null;
+    int rounds = 0;
+    if (startsWith(buffer, SIGNATURE)) {
+      buffer.position(buffer.position() + SIGNATURE.length);
+      salt = new byte[buffer.get() & 0xff];
+      buffer.get(salt);
+      rounds = buffer.get() & 0xff;
+      if (rounds < 4 || rounds > 31) {
+        salt = null;
+        rounds = 0;
+      }
+    }
+
+    SaltAndRounds pair = new SaltAndRounds(salt, rounds);
+    if (null != salt && startsWith(buffer, KEY_CHECK_SIGNATURE) &&
+        buffer.remaining() >= KEY_CHECK_SIGNATURE.length +
+                              ChunkedCipher.KEY_CHECK_SIZE) {
+      buffer.position(buffer.position() + KEY_CHECK_SIGNATURE.length);
+      pair.keyCheck = new byte[ChunkedCipher.KEY_CHECK_SIZE];
+      buffer.get(pair.keyCheck);
+    }
+    return pair;
+  }
+
+  /** Do the bytes at the current position of the buffer match prefix? */
+  private static boolean startsWith(ByteBuffer buffer, byte[] prefix) {
+    if (buffer.remaining() < prefix.length)
+      return false;
+
+    int pos = buffer.position();
+    for (int i = 0; i < prefix.length; ++i) {
+      if (buffer.get(pos + i) != prefix[i])
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Maps the given secrets file into memory.
+   *
+   * @param context Activity context in which the load is called.
+   * @param path Either the string SECRETS_FILE_NAME_SDCARD, SECRETS_FILE_NAME,
+   *     or the name of a restore point.
+   */
+  private static MappedSecretsFile mapSecretsFile(Context context,
+                                                  String path)
+      throws IOException {
+    File file = SECRETS_FILE_NAME_SDCARD.equals(path)
+        ? new File(path)
+        : context.getFileStreamPath(path);
+    return MappedSecretsFile.open(file);
+  }
+
+  /**
+   * Reads the given secrets file into memory, so that loading it later does
+   * not have to wait for flash.  This is meant to be called while the key is
+   * being derived from the password, see LoginTask.
+   *
+   * @param context Activity context in which the load is called.
+   * @param path Either the string SECRETS_FILE_NAME_SDCARD, SECRETS_FILE_NAME,
+   *     or the name of a restore point.
+   */
+  public static void preloadSecretsFile(Context context, String path) {
+    try {
+      mapSecretsFile(context, path).load();
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "preloadSecretsFile", ex);
+    }
+  }
+
   /**
    * Gets the salt and rounds already in use on this device, or null if none
    * exists.
    *
-   * @param input The stream to read the salt and rounds from.
+   * @param input The stream to read the salt and rounds from.  The key check
+   *     value is only read if the stream supports mark(), otherwise the
+   *     stream is left just after the rounds.
    * @return the salt and rounds
    *
    * @throws IOException
@@ -374,7 +560,34 @@ public class FileUtils {
       }
     }
 
-    return new SaltAndRounds(salt, rounds);
+    SaltAndRounds pair = new SaltAndRounds(salt, rounds);
+    if (null != salt && input.markSupported()) {
+      input.mark(KEY_CHECK_SIGNATURE.length);
+      signature = new byte[KEY_CHECK_SIGNATURE.length];
+      if (input.read(signature) == signature.length &&
+          Arrays.equals(signature, KEY_CHECK_SIGNATURE)) {
+        pair.keyCheck = new byte[ChunkedCipher.KEY_CHECK_SIZE];
+        if (input.read(pair.keyCheck) != pair.keyCheck.length)
+          throw new EOFException();
+      } else {
+        input.reset();
+      }
+    }
+    return pair;
+  }
+
+  /**
+   * Is the file, read from just after its header, a delta restore point?  See
+   * getSaltAndRounds(InputStream).
+   */
+  static boolean isDeltaRestorePoint(InputStream input) throws IOException {
+    byte[] signature = new byte[INDEXED_SIGNATURE.length];
+    if (input.read(signature) != signature.length ||
+        !Arrays.equals(signature, INDEXED_SIGNATURE) ||
+        input.read() != IndexedSecretsFile.VERSION)
+      return false;
+
+    return IndexedSecretsFile.isDelta(input.read());
   }
 
   /**
@@ -394,6 +607,30 @@ public class FileUtils {
                                 byte[] salt,
                                 int rounds,
                                 ArrayList<Secret> secrets) {
+    return saveSecrets(context, existing, cipher, SecurityUtils.getKey(cipher),
+                       salt, rounds, secrets);
+  }
+
+  /**
+   * Saves the secrets to file using the password retrieved from the user.
+   *
+   * @param context Activity context in which the save is called.
+   * @param existing The file to save into.
+   * @param cipher The encryption cipher to use with the file.
+   * @param key The raw key the cipher was created with, see
+   *     SecurityUtils.getKey(), or null to write the V4 format.
+   * @param salt The salt used to create the cipher.
+   * @param rounds The number of rounds for bcrypt.
+   * @param secrets The collection of secrets to save.
+   * @return True if saved successfully.
+   */
+  public static int saveSecrets(Context context,
+                                File existing,
+                                Cipher cipher,
+                                byte[] key,
+                                byte[] salt,
+                                int rounds,
+                                ArrayList<Secret> secrets) {
     Log.d(LOG_TAG, "FileUtils.saveSecrets");
     synchronized (lock) {
       Log.d(LOG_TAG, "FileUtils.saveSecrets: got lock");
@@ -408,6 +645,10 @@ public class FileUtils {
       //  3- rename the new temporary file to the official file name
       //     on error: rename tempo back to existing, delete tempn
       //
+      // In step 2, the existing file is usually written to tempo as a delta
+      // restore point instead, see writeDeltaRestorePoint().  The existing file
+      // is then simply replaced in step 3, and on error tempo is deleted.
+      //
       // Old files will hang around for a while.  The cleanupDataFiles()
       // method, which is called whenever Secrets is re-launched, will make
       // sure that the old files don't accumulate indefinitely.
@@ -421,11 +662,15 @@ public class FileUtils {
         tempn = new File(parent, "new" + i);
         tempo = new File(parent, prefix + i);
       }
+      // Read the manifest before touching any file, so that it can be checked
+      // against the current secrets file.
+      RestorePointManifest manifest = RestorePointManifest.load(context);
+
       // Step 1
       FileOutputStream fos = null;
       try {
         fos = new FileOutputStream(tempn);
-        writeSecrets(fos, cipher, salt, rounds, secrets);
+        writeSecrets(fos, cipher, key, salt, rounds, secrets);
       } catch (Exception ex) {
         Log.d(LOG_TAG, "FileUtils.saveSecrets: could not write secrets file");
         // NOTE: this delete() works, even though the file is still open.
@@ -436,7 +681,10 @@ public class FileUtils {
       }
 
       // Step 2
-      if (existing.exists() && !existing.renameTo(tempo)) {
+      boolean delta = existing.exists() && null != key &&
+          !isKeyframeDue(manifest) &&
+          writeDeltaRestorePoint(existing, tempn, tempo, key, salt, rounds);
+      if (!delta && existing.exists() && !existing.renameTo(tempo)) {
         Log.d(LOG_TAG, "FileUtils.saveSecrets: could not move existing file");
         tempn.delete();
         return R.string.error_cannot_move_existing;
@@ -445,19 +693,194 @@ public class FileUtils {
       // Step 3
       if (!tempn.renameTo(existing)) {
         Log.d(LOG_TAG, "FileUtils.saveSecrets: could not move new file");
-        tempo.renameTo(existing);
+        if (delta) {
+          tempo.delete();
+        } else {
+          tempo.renameTo(existing);
+        }
         tempn.delete();
         return R.string.error_cannot_move_new;
       }
 
+      MappedSecretsFile.release();
+      SecretsJournal.reset(existing, cipher, key, salt, rounds, secrets);
+
+      // Record the new restore point and secrets file in the manifest.
+      RestorePointManifest.Entry previous = manifest.get(SECRETS_FILE_NAME);
+      if (null != previous && tempo.exists()) {
+        manifest.remove(SECRETS_FILE_NAME);
+        manifest.put(delta
+            ? new RestorePointManifest.Entry(tempo.getName(), previous.time,
+                  tempo.length(), previous.salt, previous.rounds,
+                  previous.count, true)
+            : previous.rename(tempo.getName()));
+      }
+      manifest.put(new RestorePointManifest.Entry(SECRETS_FILE_NAME,
+          existing.lastModified(), existing.length(), salt, rounds,
+          secrets.size(), false));
+      manifest.write(context);
       Log.d(LOG_TAG, "FileUtils.saveSecrets: done");
       return 0;
     }
   }
 
+  /**
+   * Should the next restore point be a full copy?  True if the most recent
+   * restore points are already KEYFRAME_INTERVAL - 1 deltas in a row.
+   */
+  private static boolean isKeyframeDue(RestorePointManifest manifest) {
+    List<RestorePointManifest.Entry> restorePoints =
+        manifest.getRestorePoints();
+    int deltas = 0;
+    for (int i = restorePoints.size() - 1; i >= 0; --i) {
+      if (!restorePoints.get(i).delta)
+        break;
+      ++deltas;
+    }
+    return deltas >= KEYFRAME_INTERVAL - 1;
+  }
+
+  /**
+   * Writes the existing secrets file to tempo as a delta restore point against
+   * the new secrets file in tempn.  The delta holds the index of the existing
+   * file, and only the records that are not also in the new file.  Since the
+   * records of unmodified secrets are copied as is when saving, this is
+   * usually a small fraction of the file.  The missing records are found
+   * again by id when the restore point is loaded, see resolveRestorePoint().
+   *
+   * This is only possible if both files use the current format and the same
+   * key.  Otherwise, for example after the password is changed, the existing
+   * file is kept as a full copy.
+   *
+   * @return True if the delta was written.  On failure, tempo is deleted.
+   */
+  private static boolean writeDeltaRestorePoint(File existing, File tempn,
+                                                File tempo, byte[] key,
+                                                byte[] salt, int rounds) {
+    FileOutputStream output = null;
+    try {
+      ByteBuffer previous = MappedSecretsFile.open(existing).getBuffer();
+      ByteBuffer next = MappedSecretsFile.open(tempn).getBuffer();
+      SaltAndRounds pair = getSaltAndRounds(previous);
+      getSaltAndRounds(next);
+      if (!Arrays.equals(pair.salt, salt) || pair.rounds != rounds ||
+          !pair.checkKey(key) ||
+          !startsWith(previous, INDEXED_SIGNATURE) ||
+          !startsWith(next, INDEXED_SIGNATURE))
+        return false;
+      previous.position(previous.position() + INDEXED_SIGNATURE.length);
+      next.position(next.position() + INDEXED_SIGNATURE.length);
+      int previousVersion = previous.get() & 0xff;
+      int nextVersion = next.get() & 0xff;
+
+      output = new FileOutputStream(tempo);
+      writeHeader(output, key, salt, rounds);
+      output.write(INDEXED_SIGNATURE);
+      output.write(IndexedSecretsFile.VERSION);
+      IndexedSecretsFile.writeDelta(output, new ChunkedCipher(key), previous,
+                                    previousVersion, next, nextVersion,
+                                    COMPRESSION_LEVEL);
+      output.close();
+      output = null;
+
+      // Keep the time of the snapshot, like a renamed restore point would.
+      tempo.setLastModified(existing.lastModified());
+      Log.d(LOG_TAG, "FileUtils.writeDeltaRestorePoint: " + tempo.length() +
+            " of " + existing.length() + " bytes");
+      return true;
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "writeDeltaRestorePoint", ex);
+    } finally {
+      try {if (null != output) output.close();} catch (IOException ex) {}
+      MappedSecretsFile.release();
+    }
+
+    tempo.delete();
+    return false;
+  }
+
+  /**
+   * Saves the secrets to file, writing only the secrets that changed since the
+   * last save when possible.  The changes are appended to a journal next to
+   * the secrets file.  If there is no usable journal, or the journal has
+   * reached its size limit, the whole file is rewritten with saveSecrets()
+   * instead, which folds the journal into the new file.  A journal that grows
+   * past its compaction threshold is folded later by compactSecrets().
+   *
+   * @param context Activity context in which the save is called.
+   * @param existing The file to save into.
+   * @param cipher The encryption cipher to use with the file.
+   * @param key The raw key the cipher was created with, see
+   *     SecurityUtils.getKey(), or null to write the V4 format.
+   * @param salt The salt used to create the cipher.
+   * @param rounds The number of rounds for bcrypt.
+   * @param secrets The collection of secrets to save.
+   * @return 0 if saved successfully, or an error string id.
+   */
+  public static int saveSecretsIncrementally(Context context,
+                                             File existing,
+                                             Cipher cipher,
+                                             byte[] key,
+                                             byte[] salt,
+                                             int rounds,
+                                             ArrayList<Secret> secrets) {
+    Log.d(LOG_TAG, "FileUtils.saveSecretsIncrementally");
+    synchronized (lock) {
+      if (existing.exists() &&
+          SecretsJournal.append(existing, cipher, salt, rounds, secrets)) {
+        Log.d(LOG_TAG, "FileUtils.saveSecretsIncrementally: journaled");
+        return 0;
+      }
+
+      return saveSecrets(context, existing, cipher, key, salt, rounds,
+                         secrets);
+    }
+  }
+
+  /**
+   * Folds the journal into a new secrets file if the journal has grown past
+   * its compaction threshold.  This is the expensive part of incremental
+   * saves, so it is meant to be called from a background thread once the
+   * changes themselves are safely journaled.
+   *
+   * The secrets must be the ones last saved with saveSecretsIncrementally(),
+   * since they are written as the new snapshot.
+   *
+   * @param context Activity context in which the compaction is called.
+   * @param existing The secrets file.
+   * @param cipher The encryption cipher to use with the file.
+   * @param key The raw key the cipher was created with.
+   * @param salt The salt used to create the cipher.
+   * @param rounds The number of rounds for bcrypt.
+   * @param secrets The secrets last saved.
+   * @return True if the journal was folded into a new secrets file.
+   */
+  public static boolean compactSecrets(Context context,
+                                       File existing,
+                                       Cipher cipher,
+                                       byte[] key,
+                                       byte[] salt,
+                                       int rounds,
+                                       ArrayList<Secret> secrets) {
+    synchronized (lock) {
+      if (null == key || !SecretsJournal.isCompactionDue(cipher))
+        return false;
+
+      Log.d(LOG_TAG, "FileUtils.compactSecrets");
+      return 0 == saveSecrets(context, existing, cipher, key, salt, rounds,
+                              secrets);
+    }
+  }
+
   /**
    * Backup the secrets to SD card using the password retrieved from the user.
    *
+   * The backup is a copy of the secrets file, so the secrets are only
+   * encrypted once, and the backup is always byte for byte the same as the
+   * secrets file.  If the secrets file does not hold exactly the given
+   * secrets, for example because changes are still in the journal or waiting
+   * in SaveService, it is saved first.
+   *
    * @param context Activity context in which the backup is called.
    * @param cipher The encryption cipher to use with the file.
    * @param salt The salt used to create the cipher.
@@ -475,19 +898,53 @@ public class FileUtils {
     if (null == cipher)
       return false;
 
-    FileOutputStream output = null;
-    boolean success = false;
+    synchronized (lock) {
+      File existing = context.getFileStreamPath(SECRETS_FILE_NAME);
+      if (!existing.exists() ||
+          !SecretsJournal.isSnapshotOf(existing, cipher, salt, rounds,
+                                       secrets)) {
+        Log.d(LOG_TAG, "FileUtils.backupSecrets: saving secrets file first");
+        if (0 != saveSecrets(context, existing, cipher, salt, rounds,
+                             secrets)) {
+          return false;
+        }
+      }
 
+      return copyFile(existing, new File(SECRETS_FILE_NAME_SDCARD));
+    }
+  }
+
+  /**
+   * Copies a file with FileChannel.transferTo(), which lets the kernel move
+   * the bytes without copying them through the Java heap.
+   *
+   * @return True if the whole file was copied.
+   */
+  private static boolean copyFile(File source, File target) {
+    FileInputStream input = null;
+    FileOutputStream output = null;
     try {
-    	output = new FileOutputStream(SECRETS_FILE_NAME_SDCARD);
-      writeSecrets(output, cipher, salt, rounds, secrets);
-      success = true;
+      input = new FileInputStream(source);
+      output = new FileOutputStream(target);
+      FileChannel in = input.getChannel();
+      FileChannel out = output.getChannel();
+      long size = in.size();
+      for (long position = 0; position < size;) {
+        long n = in.transferTo(position, size - position, out);
+        if (n <= 0)
+          throw new IOException("transferTo made no progress");
+        position += n;
+      }
+      output.close();
+      output = null;
+      return true;
     } catch (Exception ex) {
+      Log.e(LOG_TAG, "copyFile", ex);
     } finally {
+      try {if (null != input) input.close();} catch (IOException ex) {}
       try {if (null != output) output.close();} catch (IOException ex) {}
     }
-
-    return success;
+    return false;
   }
 
   /* start new load/restore methods */
@@ -505,18 +962,34 @@ public class FileUtils {
    * stored values, the file format (F2) differs from V1.
    * V3 used a modified version of the V2 cipher (password fix) (C3), and the same
    * file format as V2.
-   * Current (V4): uses same V3 cipher mechanism, and JSON file format (F3)
+   * V4: uses same V3 cipher mechanism, and JSON file format (F3)
+   * Current (V5): uses the same key as C3, but the data is split into chunks
+   * and records that each have their own initial vector and MAC (C4), see
+   * ChunkedCipher.  Each secret is encrypted as a separate record in a compact
+   * binary encoding, followed by an encrypted index of the descriptions (F4),
+   * so that the full secrets are only decrypted when needed.  See
+   * IndexedSecretsFile and Secret.toBinary().  The records and index may also
+   * be compressed before being encrypted, which is recorded in a flag after
+   * the format signature and detected when reading.  Restore points may be
+   * deltas, which only hold the records missing from the newer files, see
+   * saveSecrets().
+   * The header starts the same way in all versions, so getSaltAndRounds()
+   * works on all of them.  V5 files add a key check value after the rounds,
+   * which getSaltAndRounds() skips.  V4 and V5 files are both read by
+   * loadSecrets().
    *
    * Pictorially:
    *                 Cipher format
    *
-   *             |  C1  |  C2  |  C3
-   *          ---|------|------|------
-   *          F1 |  V1  |      |
-   * File     ---|------|------|------
-   * format   F2 |      |  V2  |  V3
-   *          ---|------|------|------
-   *          F3 |      |      |  V4
+   *             |  C1  |  C2  |  C3  |  C4
+   *          ---|------|------|------|------
+   *          F1 |  V1  |      |      |
+   * File     ---|------|------|------|------
+   * format   F2 |      |  V2  |  V3  |
+   *          ---|------|------|------|------
+   *          F3 |      |      |  V4  |
+   *          ---|------|------|------|------
+   *          F4 |      |      |      |  V5
    */
 
   /**
@@ -526,10 +999,31 @@ public class FileUtils {
    * @return A list of loaded secrets.
    */
   public static ArrayList<Secret> loadSecrets(Context context) {
+    return loadSecretsWithJournal(context, SecurityUtils.getCipherInfo());
+  }
+
+  /**
+   * Opens the secrets file with the given ciphers, and applies the journal.
+   */
+  private static ArrayList<Secret> loadSecretsWithJournal(Context context,
+                                                          CipherInfo info) {
     synchronized (lock) {
       Log.d(LOG_TAG, "FileUtils.loadSecrets: got lock");
-      return loadSecrets(context, SECRETS_FILE_NAME,
-          SecurityUtils.getCipherInfo());
+      ArrayList<Secret> secrets = loadSecrets(context, SECRETS_FILE_NAME,
+          info);
+      if (null == secrets)
+        return null;
+
+      // Apply any changes saved to the journal since the file was written.
+      secrets = SecretsJournal.replay(
+          context.getFileStreamPath(SECRETS_FILE_NAME), info, secrets);
+
+      // Only files in the current format are journaled.  Older files are
+      // rewritten in the current format by the first save, which is then a
+      // full save.
+      if (!isFormatCurrent(context, SECRETS_FILE_NAME))
+        SecretsJournal.clear();
+      return secrets;
     }
   }
 
@@ -549,26 +1043,74 @@ public class FileUtils {
       return null;
 
     ArrayList<Secret> secrets = null;
-    InputStream input = null;
 
     try {
-      input = SECRETS_FILE_NAME_SDCARD.equals(fileName)
-          ? new FileInputStream(fileName)
-          : context.openFileInput(fileName);
-      secrets = readSecrets(input, info.decryptCipher, info.salt, info.rounds);
+      MappedSecretsFile file = mapSecretsFile(context, fileName);
+      secrets = readSecrets(file.getBuffer(), info.decryptCipher, info.key,
+                            info.salt, info.rounds);
+      if (null != secrets && IndexedSecretsFile.hasMissingRecords(secrets) &&
+          !resolveRestorePoint(context, fileName, info, secrets)) {
+        Log.d(LOG_TAG, "FileUtils.loadSecrets: restore point is incomplete");
+        secrets = null;
+      }
     } catch (Exception ex) {
       Log.e(LOG_TAG, "loadSecrets", ex);
-    } finally {
-      try {
-        if (null != input)
-          input.close();
-      } catch (IOException ex) {
-      }
     }
     Log.d(LOG_TAG, "FileUtils.loadSecrets: done");
     return secrets;
   }
 
+  /**
+   * Finds the records missing from secrets loaded from a delta restore point.
+   * The restore point is rebuilt by replaying the newer restore points, from
+   * the oldest to the most recent, and then the secrets file, until all
+   * records are found.  The older restore points are searched last, in case
+   * one of the newer files was lost.
+   *
+   * @return True if all records were found.
+   */
+  private static boolean resolveRestorePoint(Context context, String fileName,
+                                             CipherInfo info,
+                                             ArrayList<Secret> secrets)
+      throws IOException {
+    RestorePointManifest manifest = RestorePointManifest.load(context);
+    List<RestorePointManifest.Entry> restorePoints =
+        manifest.getRestorePoints();
+    int index = restorePoints.size();
+    for (int i = 0; i < restorePoints.size(); ++i) {
+      if (restorePoints.get(i).name.equals(fileName))
+        index = i;
+    }
+
+    ArrayList<String> candidates = new ArrayList<String>();
+    for (int i = index + 1; i < restorePoints.size(); ++i)
+      candidates.add(restorePoints.get(i).name);
+    candidates.add(SECRETS_FILE_NAME);
+    for (int i = Math.min(index, restorePoints.size()) - 1; i >= 0; --i)
+      candidates.add(restorePoints.get(i).name);
+
+    ChunkedCipher cipher = new ChunkedCipher(info.key);
+    for (String candidate : candidates) {
+      try {
+        ByteBuffer buffer = mapSecretsFile(context, candidate).getBuffer();
+        SaltAndRounds pair = getSaltAndRounds(buffer);
+        if (!Arrays.equals(pair.salt, info.salt) ||
+            pair.rounds != info.rounds || !pair.checkKey(info.key) ||
+            !startsWith(buffer, INDEXED_SIGNATURE))
+          continue;
+
+        buffer.position(buffer.position() + INDEXED_SIGNATURE.length);
+        int version = buffer.get() & 0xff;
+        if (0 == IndexedSecretsFile.resolve(secrets, buffer, cipher, version))
+          return true;
+      } catch (Exception ex) {
+        // The file may be damaged, or use another key.  Keep looking.
+        Log.e(LOG_TAG, "resolveRestorePoint: " + candidate, ex);
+      }
+    }
+    return false;
+  }
+
   /**
    * Opens the secrets file using the password retrieved from the user and
    * the old encryption cipher.  This function is called only for backward
@@ -607,11 +1149,10 @@ public class FileUtils {
     ObjectInputStream input = null;
 
     try {
-      InputStream fis = SECRETS_FILE_NAME_SDCARD.equals(fileName)
-          ? new FileInputStream(fileName)
-      : context.openFileInput(fileName);
-          input = new ObjectInputStream(new CipherInputStream(fis, cipher));
-          secrets = (ArrayList<Secret>)input.readObject();
+      MappedSecretsFile file = mapSecretsFile(context, fileName);
+      input = new ObjectInputStream(
+          MappedSecretsFile.newCipherInputStream(file.getBuffer(), cipher));
+      secrets = (ArrayList<Secret>)input.readObject();
     } catch (Exception ex) {
       Log.e(LOG_TAG, "loadSecretsV1", ex);
     } finally {
@@ -658,21 +1199,12 @@ public class FileUtils {
     if (null == cipher)
       return null;
     ArrayList<Secret> secrets = null;
-    InputStream input = null;
 
     try {
-      input = SECRETS_FILE_NAME_SDCARD.equals(fileName)
-          ? new FileInputStream(fileName)
-          : context.openFileInput(fileName);
-      secrets = readSecretsV2(input, cipher, salt, rounds);
+      MappedSecretsFile file = mapSecretsFile(context, fileName);
+      secrets = readSecretsV2(file.getBuffer(), cipher, salt, rounds);
     } catch (Exception ex) {
       Log.e(LOG_TAG, "loadSecretsV2", ex);
-    } finally {
-      try {
-        if (null != input)
-          input.close();
-      } catch (IOException ex) {
-      }
     }
 
     return secrets;
@@ -715,116 +1247,299 @@ public class FileUtils {
       return null;
 
     ArrayList<Secret> secrets = null;
-    InputStream input = null;
 
     try {
-      input = SECRETS_FILE_NAME_SDCARD.equals(fileName)
-          ? new FileInputStream(fileName)
-          : context.openFileInput(fileName);
-      secrets = readSecretsV2(input, info.decryptCipher, info.salt, info.rounds);
+      MappedSecretsFile file = mapSecretsFile(context, fileName);
+      secrets = readSecretsV2(file.getBuffer(), info.decryptCipher, info.salt,
+                              info.rounds);
     } catch (Exception ex) {
       Log.e(LOG_TAG, "loadSecretsV3", ex);
-    } finally {
-      try {
-        if (null != input)
-          input.close();
-      } catch (IOException ex) {
-      }
     }
     Log.d(LOG_TAG, "FileUtils.loadSecretsv3: done");
     return secrets;
   }
 
+  /**
+   * Works out which version of the file and cipher formats the given file
+   * uses, so that it can be loaded with a single call to the right load method
+   * instead of trying each in turn.  This only looks at the header and, for
+   * files with no format signature after the header, at the first block
+   * decrypted with the current cipher, so it does not need any more keys than
+   * the current ones.
+   *
+   * The V2 cipher is derived from the password differently, so a file that
+   * does not decrypt to V3 or V4 with the current cipher is reported as V2.
+   * That is also what a V3 or V4 file looks like with the wrong password.
+   *
+   * @param context Activity context in which the load is called.
+   * @param fileName Name of file to be checked.
+   * @param info The current ciphers, created with the salt and rounds of the
+   *     file.
+   * @return One of the FORMAT_* constants.
+   */
+  public static int detectFormat(Context context, String fileName,
+                                 CipherInfo info) {
+    try {
+      ByteBuffer buffer = mapSecretsFile(context, fileName).getBuffer();
+      if (!buffer.hasRemaining())
+        return FORMAT_NONE;
+
+      // V1 files have no header.  Files whose header does not parse were
+      // also tried as V1 by the original load sequence.
+      SaltAndRounds pair = getSaltAndRounds(buffer);
+      if (null == pair.salt)
+        return FORMAT_V1;
+
+      // Files with a key check value are in the current format, so a wrong
+      // password is known right away, and no other format needs to be tried.
+      if (null != pair.keyCheck)
+        return pair.checkKey(null == info ? null : info.key)
+            ? FORMAT_CURRENT : FORMAT_NONE;
+
+      if (null == info || null == info.key ||
+          buffer.remaining() < CIPHER_BLOCK_SIZE)
+        return FORMAT_V2;
+
+      // The C3 cipher uses CBC with an IV of zeros, so the first block of
+      // plain text is the first block of the file decrypted on its own.
+      byte[] block = new byte[CIPHER_BLOCK_SIZE];
+      buffer.get(block);
+      Cipher ecb = Cipher.getInstance("AES/ECB/NoPadding");
+      ecb.init(Cipher.DECRYPT_MODE, new SecretKeySpec(info.key, "AES"));
+      block = ecb.doFinal(block);
+
+      // Enough of the block is checked that a block decrypted with the wrong
+      // key is not mistaken for one of these by chance.
+      ByteBuffer plain = ByteBuffer.wrap(block);
+      if (startsWith(plain, JSON_PREFIX))
+        return FORMAT_V4;
+      if (startsWith(plain, OBJECT_STREAM_PREFIX))
+        return FORMAT_V3;
+      return FORMAT_V2;
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "detectFormat", ex);
+    }
+    return FORMAT_NONE;
+  }
+
+  /**
+   * Is the given file in the current format, going by its header alone?
+   *
+   * @param context Activity context in which the load is called.
+   * @param fileName Name of file to be checked.
+   */
+  private static boolean isFormatCurrent(Context context, String fileName) {
+    try {
+      ByteBuffer buffer = mapSecretsFile(context, fileName).getBuffer();
+      return null != getSaltAndRounds(buffer).keyCheck;
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "isFormatCurrent", ex);
+    }
+    return false;
+  }
+
+  /**
+   * Could the given file be in the V2 format, going by its header alone?
+   * detectFormat() can only tell V2 files apart once the current key is
+   * derived, so this lets the V2 key be derived at the same time, see
+   * LoginTask.  Files with a key check value cannot be V2.
+   *
+   * @param context Activity context in which the load is called.
+   * @param fileName Name of file to be checked.
+   */
+  public static boolean mayBeFormatV2(Context context, String fileName) {
+    try {
+      ByteBuffer buffer = mapSecretsFile(context, fileName).getBuffer();
+      SaltAndRounds pair = getSaltAndRounds(buffer);
+      return null != pair.salt && null == pair.keyCheck;
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "mayBeFormatV2", ex);
+    }
+    return false;
+  }
+
+  /**
+   * Opens the given file with the load method for the given format, as
+   * returned by detectFormat().  Only the keys needed for that format are
+   * derived from the password.  The journal is applied if the file is the
+   * secrets file in the V4 or current format, but is only kept for the current
+   * format.
+   *
+   * @param context Activity context in which the load is called.
+   * @param fileName Name of file to be loaded.
+   * @param format The format of the file, from detectFormat().
+   * @param password The password entered by the user, for the V1 and V2
+   *     ciphers.
+   * @param info The current ciphers, created from the password with the salt
+   *     and rounds of the file.
+   * @return A list of loaded secrets, or null if the password is wrong or the
+   *     file cannot be read.
+   */
+  public static ArrayList<Secret> loadSecrets(Context context,
+                                              String fileName,
+                                              int format,
+                                              String password,
+                                              CipherInfo info) {
+    switch (format) {
+      case FORMAT_CURRENT:
+      case FORMAT_V4:
+        if (SECRETS_FILE_NAME.equals(fileName))
+          return loadSecretsWithJournal(context, info);
+        return loadSecrets(context, fileName, info);
+      case FORMAT_V3:
+        return loadSecretsV3(context, info, fileName);
+      case FORMAT_V2: {
+        if (null == info)
+          return null;
+        Cipher cipher2 = SecurityUtils.createDecryptionCipherV2(password,
+            info.salt, info.rounds);
+        return loadSecretsV2(context, fileName, cipher2, info.salt,
+                             info.rounds);
+      }
+      case FORMAT_V1: {
+        Cipher cipher1 = SecurityUtils.createDecryptionCipherV1(password);
+        return loadSecretsV1(context, cipher1, fileName);
+      }
+      default:
+        return null;
+    }
+  }
+
   /* end new load/restore methods */
 
   /**
    * Writes the secrets to the given output stream encrypted with the given
-   * cipher.
+   * cipher.  If the raw key of the cipher is known, the secrets are written in
+   * the current format, otherwise in V4 format.
    *
    * The output stream is closed by the caller.
    *
    * @param output The output stream to write the secrets to.
    * @param cipher The cipher to encrypt the secrets with.
+   * @param key The raw key the cipher was created with, or null.
    * @param secrets The secrets to write.
    * @param rounds The number of rounds for bcrypt.
    * @throws IOException
    */
   private static void writeSecrets(OutputStream output,
                                    Cipher cipher,
+                                   byte[] key,
                                    byte[] salt,
                                    int rounds,
                                    ArrayList<Secret> secrets) throws IOException {
+    writeHeader(output, key, salt, rounds);
+    if (null != key) {
+      output.write(INDEXED_SIGNATURE);
+      output.write(IndexedSecretsFile.VERSION);
+      IndexedSecretsFile.write(output, new ChunkedCipher(key), secrets,
+                               COMPRESSION_LEVEL);
+    } else {
+      writeEncryptedJSONSecrets(output, cipher, secrets);
+    }
+    output.flush();
+  }
+
+  /**
+   * Writes the header read by getSaltAndRounds().  The key check value is
+   * only written if the key is known.
+   */
+  private static void writeHeader(OutputStream output, byte[] key,
+                                  byte[] salt, int rounds)
+      throws IOException {
     output.write(SIGNATURE);
     output.write(salt.length);
     output.write(salt);
     output.write(rounds);
-    output.write(FileUtils.toEncryptedJSONSecretsStream(cipher, secrets));
-  	output.flush();
+    if (null != key) {
+      output.write(KEY_CHECK_SIGNATURE);
+      output.write(ChunkedCipher.computeKeyCheck(key));
+    }
   }
 
   /**
-   * Read the secrets from the given input stream, decrypting with the given
-   * cipher.
+   * Read the secrets from the given mapping of a secrets file, decrypting with
+   * the given cipher, or with the given key if the file uses the indexed
+   * format.
    *
-   * @param input
-   *          The input stream to read the secrets from.
+   * @param buffer
+   *          The mapped secrets file, positioned at the start of the file.
    * @param cipher
    *          The cipher to decrypt the secrets with.
-   * @return The secrets read from the stream.
+   * @param key
+   *          The raw key the cipher was created with.
+   * @return The secrets read from the file.
    * @throws IOException
-   * @throws ClassNotFoundException
    */
-  private static ArrayList<Secret> readSecrets(InputStream input,
-                                               Cipher cipher, byte[] salt,
-                                               int rounds) throws IOException,
-      ClassNotFoundException {
-    SaltAndRounds pair = getSaltAndRounds(input);
+  private static ArrayList<Secret> readSecrets(ByteBuffer buffer,
+                                               Cipher cipher, byte[] key,
+                                               byte[] salt,
+                                               int rounds) throws IOException {
+    SaltAndRounds pair = getSaltAndRounds(buffer);
     if (!Arrays.equals(pair.salt, salt) || pair.rounds != rounds) {
       return null;
     }
-    BufferedInputStream bis = new BufferedInputStream(input);
-    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    if (!pair.checkKey(key)) {
+      Log.d(LOG_TAG, "FileUtils.readSecrets: wrong key");
+      return null;
+    }
+
+    if (startsWith(buffer, INDEXED_SIGNATURE)) {
+      if (null == key)
+        return null;
+      buffer.position(buffer.position() + INDEXED_SIGNATURE.length);
+      int version = buffer.get() & 0xff;
+      return IndexedSecretsFile.read(buffer, new ChunkedCipher(key), version);
+    }
+
+    InputStream decrypted =
+        MappedSecretsFile.newCipherInputStream(buffer, cipher);
+
+    // Decrypt, decode and parse the secrets as the file is read, instead of
+    // decrypting the whole file before parsing it.
+    Reader reader = new InputStreamReader(decrypted, "UTF-8");
     try {
-      // read the whole stream into the buffer
-      int nRead;
-      byte[] data = new byte[4096];
-      while ((nRead = bis.read(data, 0, data.length)) != -1) {
-        buffer.write(data, 0, nRead);
+      JSONSecretsReader secretsReader = new JSONSecretsReader(reader);
+      ArrayList<Secret> secrets = new ArrayList<Secret>();
+      for (Secret secret = secretsReader.next(); null != secret;
+           secret = secretsReader.next()) {
+        secrets.add(secret);
       }
-      buffer.flush();
-      return FileUtils.fromEncryptedJSONSecretsStream(cipher,
-              buffer.toByteArray());
+      return secrets;
+    } catch (JSONException e) {
+      Log.e(LOG_TAG, "readSecrets", e);
+      throw new IOException("readSecrets failed: " + e.getMessage());
     } finally {
       try {
-        if (null != bis)
-          bis.close();
+        if (null != reader)
+          reader.close();
       } catch (IOException ex) {
       }
     }
   }
 
   /**
-   * Read the secrets from the given input stream, decrypting with the given
-   * cipher. This uses the old object format and exists for compatibility.
+   * Read the secrets from the given mapping of a secrets file, decrypting with
+   * the given cipher. This uses the old object format and exists for
+   * compatibility.
    *
-   * @param input The input stream to read the secrets from.
+   * @param buffer The mapped secrets file, positioned at the start of the file.
    * @param cipher The cipher to decrypt the secrets with.
-   * @return The secrets read from the stream.
+   * @return The secrets read from the file.
    * @throws IOException
    * @throws ClassNotFoundException
    */
   @SuppressWarnings("unchecked")
-  private static ArrayList<Secret> readSecretsV2(InputStream input,
+  private static ArrayList<Secret> readSecretsV2(ByteBuffer buffer,
                                                Cipher cipher,
                                                byte[] salt,
                                                int rounds)
       throws IOException, ClassNotFoundException {
-    SaltAndRounds pair = getSaltAndRounds(input);
+    SaltAndRounds pair = getSaltAndRounds(buffer);
     if (!Arrays.equals(pair.salt, salt) || pair.rounds != rounds) {
       return null;
     }
     ObjectInputStream oin = new ObjectInputStream(
-        new CipherInputStream(input, cipher));
+        MappedSecretsFile.newCipherInputStream(buffer, cipher));
     try {
       return (ArrayList<Secret>)oin.readObject();
     } finally {
@@ -884,20 +1599,84 @@ public class FileUtils {
    */
   public static byte[] toEncryptedJSONSecretsStream(Cipher cipher,
       ArrayList<Secret> secrets) throws IOException {
-    CipherOutputStream output = null;
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    writeEncryptedJSONSecrets(baos, cipher, secrets);
+    return baos.toByteArray();
+  }
 
+  /**
+   * Writes the user's secrets as an encrypted json stream to the given output
+   * stream.  The bytes written are identical to those returned by
+   * toEncryptedJSONSecretsStream(), but each secret is serialized and
+   * encrypted in turn, so that only one record is held in memory at a time.
+   *
+   * The output stream is not closed, that is the responsibility of the caller.
+   *
+   * @param output
+   *          The stream to write the encrypted secrets to.
+   * @param cipher
+   *          The encryption cipher to use with the file.
+   * @param secrets
+   *          The list of secrets.
+   * @throws IOException
+   *           if any error occurs
+   */
+  public static void writeEncryptedJSONSecrets(OutputStream output,
+      Cipher cipher, ArrayList<Secret> secrets) throws IOException {
+    // Closing the cipher stream flushes the final padded block, but must
+    // not close the caller's stream.
+    Cipher own;
     try {
-      output = new CipherOutputStream(baos, cipher);
-      output.write(FileUtils.toJSONSecrets(secrets).toString().getBytes("UTF-8"));
-    } catch (Exception e) {
-      Log.e(LOG_TAG, "toEncryptedJSONSecretsStream", e);
-      throw new IOException("toEncryptedJSONSecretsStream failed: " + e.getMessage());
-    } finally {
-      try { if (null != output) output.close(); } catch (IOException ex) {}
+      own = CipherProvider.acquire(cipher);
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("writeEncryptedJSONSecrets failed: " +
+                            ex.getMessage());
     }
+    writeJSONSecrets(
+        new CipherOutputStream(new UnclosableOutputStream(output), own),
+        secrets);
+    CipherProvider.release(cipher, own);
+  }
 
-    return baos.toByteArray();
+  /**
+   * Writes the user's secrets as json to the given output stream, one secret
+   * at a time, and closes the stream.  The text written is the same as
+   * toJSONSecrets(secrets).toString().
+   *
+   * @param output
+   *          The stream to write the secrets to.
+   * @param secrets
+   *          The list of secrets.
+   * @throws IOException
+   *           if any error occurs
+   */
+  private static void writeJSONSecrets(OutputStream output,
+      ArrayList<Secret> secrets) throws IOException {
+    Writer writer = null;
+
+    try {
+      writer = new OutputStreamWriter(
+          new BufferedOutputStream(output, STREAM_BUFFER_SIZE), "UTF-8");
+
+      writer.write('{');
+      writer.write(JSONObject.quote(JSON_SECRETS_ID));
+      writer.write(":[");
+      for (int i = 0; i < secrets.size(); ++i) {
+        if (i > 0)
+          writer.write(',');
+        writer.write(secrets.get(i).toJSON().toString());
+      }
+      writer.write("]}");
+
+      // Closing writes the final encrypted block, so errors must be reported.
+      writer.close();
+      writer = null;
+    } catch (JSONException e) {
+      Log.e(LOG_TAG, "writeJSONSecrets", e);
+      throw new IOException("writeJSONSecrets failed: " + e.getMessage());
+    } finally {
+      try { if (null != writer) writer.close(); } catch (IOException ex) {}
+    }
   }
 
   /**
@@ -914,7 +1693,9 @@ public class FileUtils {
   public static ArrayList<Secret> fromEncryptedJSONSecretsStream(Cipher cipher,
       byte[] secrets) throws IOException {
     try {
-      byte[] secretStrBytes = cipher.doFinal(secrets);
+      Cipher own = CipherProvider.acquire(cipher);
+      byte[] secretStrBytes = own.doFinal(secrets);
+      CipherProvider.release(cipher, own);
       JSONObject jsonValues =
           new JSONObject(new String(secretStrBytes, "UTF-8"));
       return FileUtils.fromJSONSecrets(jsonValues);
@@ -925,6 +1706,28 @@ public class FileUtils {
     }
   }
 
+  /**
+   * An output stream that does not close the stream it wraps.  Used so that
+   * closing a CipherOutputStream, which is required to write the final block,
+   * leaves the underlying file open for its owner to close.
+   */
+  private static class UnclosableOutputStream extends FilterOutputStream {
+    UnclosableOutputStream(OutputStream output) {
+      super(output);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length)
+        throws IOException {
+      out.write(buffer, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+
   /** Deletes all secrets from the phone.
    * @param context the current context
    * @return always true
@@ -936,6 +1739,8 @@ public class FileUtils {
       for (String filename : filenames) {
         context.deleteFile(filename);
       }
+      MappedSecretsFile.release();
+      SecretsJournal.clear();
     }
 
     return true;
@@ -944,45 +1749,118 @@ public class FileUtils {
   /**
    * Export secrets to a CSV file on the SD card.  See the description of
    * the importSecrets() method for more details about the format written.
+   *
+   * If encrypted exports are turned on, see setEncryptedExport(), the file
+   * starts with the same header as the secrets file, followed by the CSV text
+   * encrypted with the chunked cipher and the current key.  Only this vault,
+   * or one restored from it, can import such a file.
+   *
+   * An EXPORTED entry is added to the access log of each secret once it has
+   * been written, so secrets that were not written are not logged.
+   *
    * @param context the current context
    * @param secrets the secrets to export
    * @return true if successful, false otherwise
    */
   public static boolean exportSecrets(Context context,List<Secret> secrets) {
-    // An array to hold the rows that will be written to the CSV file.
-    String[] row = new String[] {
+    String[] headers = new String[] {
         COL_DESCRIPTION, COL_USERNAME, COL_PASSWORD, COL_EMAIL, COL_NOTES
     };
-    CSVWriter writer = null;
+    byte[] key = null;
+    if (isEncryptedExport(context)) {
+      key = SecurityUtils.getKey(SecurityUtils.getEncryptionCipher());
+      if (null == key)
+        return false;
+    }
+
+    OutputStream file = null;
+    CsvWriter writer = null;
+    int written = 0;
     boolean success = false;
 
     try {
-      writer = new CSVWriter(new FileWriter(SECRETS_FILE_NAME_CSV));
+      file = new BufferedOutputStream(
+          new FileOutputStream(SECRETS_FILE_NAME_CSV), EXPORT_BUFFER_SIZE);
+      OutputStream output = file;
+      if (null != key) {
+        writeHeader(file, key, SecurityUtils.getSalt(),
+                    SecurityUtils.getRounds());
+        output = new ChunkedCipher(key).newOutputStream(file);
+      }
+      writer = new CsvWriter(new OutputStreamWriter(output, "UTF-8"));
 
       // Write descriptive headers.
-      writer.writeNext(row);
+      writer.writeRow(headers);
 
       // Write out each secret.
       for (Secret secret : secrets) {
-        row[0] = secret.getDescription();
-        row[1] = secret.getUsername();
-        row[2] = secret.getPassword(true);  // true: forExport
-        row[3] = secret.getEmail();
-        row[4] = secret.getNote();
-
-        // NOTE: writeNext() handles nulls in row[] gracefully.
-        writer.writeNext(row);
-        success = true;
+        writer.writeField(secret.getDescription());
+        writer.writeField(secret.getUsername());
+        writer.writeField(secret.getPasswordForExport());
+        writer.writeField(secret.getEmail());
+        writer.writeField(secret.getNote());
+        writer.endRow();
+        ++written;
       }
+
+      // Closing the writer ends the encrypted stream, if any, but does not
+      // close the file in that case.
+      writer.close();
+      writer = null;
+      file.close();
+      file = null;
+      success = written > 0;
     } catch (Exception ex) {
       Log.e(LOG_TAG, "exportSecrets", ex);
     } finally {
       try {if (null != writer) writer.close();} catch (IOException ex) {}
+      try {if (null != file) file.close();} catch (IOException ex) {}
+      if (null != key)
+        Arrays.fill(key, (byte) 0);
+
+      // Some secrets may have reached the file even if the export failed.
+      for (int i = 0; i < written; ++i)
+        secrets.get(i).setExported();
     }
 
     return success;
   }
 
+  /**
+   * Sets whether exportSecrets() encrypts the file it writes.  Encrypted files
+   * can only be imported into a vault with the same key.
+   *
+   * @param ctx A context to get the preferences from.
+   * @param enabled True to encrypt exports.
+   */
+  public static void setEncryptedExport(Context ctx, boolean enabled) {
+    ctx.getSharedPreferences(PREFS_FILE_NAME, 0).edit()
+        .putBoolean(PREF_ENCRYPTED_EXPORT, enabled).apply();
+  }
+
+  /**
+   * Does exportSecrets() encrypt the file it writes?  Off by default, since
+   * the plain file can be read by other apps.
+   *
+   * @param ctx A context to get the preferences from.
+   */
+  public static boolean isEncryptedExport(Context ctx) {
+    return ctx.getSharedPreferences(PREFS_FILE_NAME, 0)
+        .getBoolean(PREF_ENCRYPTED_EXPORT, false);
+  }
+
+  /**
+   * Is the stream, positioned at the start of a file to import, an encrypted
+   * export?  The stream must support mark(), and is left where it was.
+   */
+  static boolean isEncryptedExport(InputStream input) throws IOException {
+    byte[] signature = new byte[SIGNATURE.length];
+    input.mark(signature.length);
+    int count = input.read(signature);
+    input.reset();
+    return count == signature.length && Arrays.equals(signature, SIGNATURE);
+  }
+
   /**
    * Returns the file that should be imported.  This method will look for a file
    * on the SD card whose name is either the secrets CSV file or the OI Safe
@@ -1030,6 +1908,12 @@ public class FileUtils {
    * accordingly.  It does this by reading the first line of file, and looking
    * for column descriptions as exported by OI Safe 1.1.0.
    *
+   * Files written by exportSecrets() with encryption turned on are decrypted
+   * with the current key.
+   *
+   * The secrets are added in sorted order.  To import a large file in the
+   * background, with progress and cancellation, use SecretsImporter directly.
+   *
    * @param context Activity context for global services
    * @param file File to import
    * @param secrets List to append secrets read from the file
@@ -1040,76 +1924,14 @@ public class FileUtils {
                                       ArrayList<Secret> secrets) {
     secrets.clear();
 
-    boolean isOiSafeCsv = false;
-    boolean isSecretsScv = false;
-    boolean success = false;
-    CSVReader reader = null;
-
-    try {
-      reader = new CSVReader(new FileReader(file));
-
-      // Use the first line to determine the type of csv file.  Secrets will
-      // output 5 columns, with the names as used in the exportSecrets()
-      // function.  OI Safe 1.1.0 is also detected.
-      String headers[] = reader.readNext();
-      if (null != headers) {
-        isSecretsScv = isSecretsCsv(headers);
-        if (!isSecretsScv)
-          isOiSafeCsv = isOiSafeCsv(headers);
-      }
-
-      // Read all the rest of the lines as secrets.
-      for (;;) {
-        String[] row = reader.readNext();
-        if (null == row)
-          break;
-
-        Secret secret = new Secret();
-        if (isOiSafeCsv) {
-          secret.setDescription(row[1]);
-          secret.setUsername(row[3]);
-          secret.setPassword(row[4], false);
-          secret.setEmail(EMPTY_STRING);
-
-          // I will combine the category, website, and notes columns into
-          // the notes field in secrets.
-          int approxMaxLength = row[0].length() + row[2].length() +
-                                row[5].length() + 32;
-          StringBuilder builder = new StringBuilder(approxMaxLength);
-          builder.append(row[5]).append("\n\n");
-          builder.append("Category: ").append(row[0]).append('\n');
-          if (null != row[2] && row[2].length() > 0)
-            builder.append("Website: ").append(row[2]).append('\n');
-
-          secret.setNote(builder.toString());
-        } else {
-          // If we get here, then this may be an unknown format.  For better
-          // or for worse, this is a "best effort" to import that data.
-          secret.setDescription(row[0]);
-          secret.setUsername(row[1]);
-          secret.setPassword(row[2], false);
-          secret.setEmail(row[3]);
-          secret.setNote(row[4]);
-        }
-
-        secrets.add(secret);
-      }
-
-      // We'll only return complete success if we get here, and we detected
-      // that we knew the file format.  This will give the user an indication
-      // do look at the secrets if the format was not automatically detected.
-      success = isOiSafeCsv || isSecretsScv;
-    } catch (Exception ex) {
-      Log.e(LOG_TAG, "importSecrets", ex);
-    } finally {
-      try {if (null != reader) reader.close();} catch (IOException ex) {}
-    }
-
-    return success;
+    SecretsImporter importer = new SecretsImporter(file,
+        SecurityUtils.getKey(SecurityUtils.getEncryptionCipher()), null);
+    secrets.addAll(importer.run());
+    return importer.isComplete();
   }
 
   /** Is it likely that the CSV file is in OI Safe format? */
-  private static boolean isOiSafeCsv(String[] headers) {
+  static boolean isOiSafeCsv(String[] headers) {
     if (headers[0].equalsIgnoreCase("Category") &&
         headers[1].equalsIgnoreCase("Description") &&
         headers[2].equalsIgnoreCase("Website") &&
@@ -1122,7 +1944,7 @@ public class FileUtils {
   }
 
   /** Is it likely that the CSV file is in secrets format? */
-  private static boolean isSecretsCsv(String[] headers) {
+  static boolean isSecretsCsv(String[] headers) {
     if (headers[0].equalsIgnoreCase(COL_DESCRIPTION) &&
         headers[1].equalsIgnoreCase(COL_USERNAME) &&
         headers[2].equalsIgnoreCase(COL_PASSWORD) &&
@@ -1153,8 +1975,10 @@ public class FileUtils {
     public void onCreate() {
       Log.d(LOG_TAG_AGENT, "onCreate");
 
-      FileBackupHelper helper = new FileBackupHelper(this,
-          FileUtils.SECRETS_FILE_NAME);
+      // The helper is added under the key FileBackupHelper used, so that
+      // backups made with it can still be restored.
+      SecretsBackupHelper helper = new SecretsBackupHelper(this,
+          FileUtils.SECRETS_FILE_NAME, SecretsJournal.JOURNAL_FILE_NAME);
       addHelper(KEY, helper);
     }
 
@@ -0,0 +1,586 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import android.util.Log;
+
+/**
+ * Reads and writes the indexed file format (F4) of the secrets file, see
+ * FileUtils.  Each secret is encrypted as a separate record with
+ * ChunkedCipher.sealRecord(), and the records are followed by an encrypted
+ * index:
+ *
+ *   - the sealed records, each holding one secret
+ *   - the index, as a chunked cipher stream, holding for each secret its
+ *     description, username, email, deleted flag, most recent access and the
+ *     offset, size and id of its record
+ *   - the offset of the index, as a long
+ *
+ * Records use the binary format of Secret.toBinary(), and the index is written
+ * with BinaryCodec, which is much smaller than json since most of a file is
+ * usually access log entries.
+ *
+ * The signature of the format, see FileUtils, is followed by a byte giving the
+ * version of the format, and a byte of flags.  If FLAG_DEFLATE is set, the
+ * index is compressed with DEFLATE before being encrypted, and each record
+ * starts with a byte saying whether the rest of the record is compressed or
+ * stored as is.  Records are only stored
+ * compressed when that makes them smaller, which is usually not the case for
+ * secrets without notes.
+ *
+ * Loading only decrypts the index, which is all the secrets list needs.  The
+ * password, note and access log of a secret are decrypted from its record the
+ * first time they are asked for, see Secret.  Decrypted records are kept in a
+ * small LRU cache, so the memory used does not grow with the size of the
+ * notes and access logs in the file.
+ *
+ * When saving, the records of secrets that were not modified since they were
+ * loaded are copied as is, without being decrypted.  The other records are
+ * sealed on all cores at once, see ChunkedCipher.submitRecord().  Records are
+ * opened one at a time, on the thread that first asks for them.
+ *
+ * If FLAG_DELTA is set, the file is a delta restore point, see
+ * FileUtils.saveSecrets().  Its index is complete, but it only holds the
+ * records that were not also in the secrets file that replaced it.  The other
+ * entries of the index have a size of zero, and their records are found by id
+ * in the newer files, see resolve().  Since a record is never changed once it
+ * is sealed, and its id is the random initial vector it was sealed with, a
+ * record with the same id in any file holds the same bytes.
+ */
+public class IndexedSecretsFile {
+  /** Tag for logging purposes. */
+  public static final String LOG_TAG = "IndexedSecretsFile";
+
+  /** Maximum number of decrypted records kept in memory. */
+  private static final int CACHE_SIZE = 16;
+
+  private static final int RECORD_ID_SIZE = 16;
+
+  /** The version of the format, written after the signature. */
+  public static final int VERSION = 1;
+
+  /** The index and records are compressed before being encrypted. */
+  private static final int FLAG_DEFLATE = 1;
+  /** Only the records missing from the next snapshot are in the file. */
+  private static final int FLAG_DELTA = 2;
+
+  // The first byte of each record when FLAG_DEFLATE is set.
+  private static final int RECORD_STORED = 0;
+  private static final int RECORD_DEFLATED = 1;
+
+  private final ChunkedCipher cipher;
+  private final boolean deflated;
+  private final ByteBuffer records;
+  private Inflater inflater;
+  private final Map<Record, Secret> cache =
+      new LinkedHashMap<Record, Secret>(CACHE_SIZE, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Record, Secret> eldest) {
+          return size() > CACHE_SIZE;
+        }
+      };
+
+  /**
+   * The location of the encrypted record of one secret.  The fields of the
+   * secret that are in the index are kept in the Secret itself.
+   */
+  static final class Record {
+    // Null if the record is in another file and was not resolved yet.
+    private IndexedSecretsFile file;
+    private int offset;
+    private int size;
+    private final byte[] id;
+    private final Secret.LogEntry mostRecentAccess;
+
+    private Record(IndexedSecretsFile file, int offset, int size, byte[] id,
+                   Secret.LogEntry mostRecentAccess) {
+      this.file = file;
+      this.offset = offset;
+      this.size = size;
+      this.id = id;
+      this.mostRecentAccess = mostRecentAccess;
+    }
+
+    /** Returns the most recent entry of the secret's access log. */
+    Secret.LogEntry getMostRecentAccess() {
+      return mostRecentAccess;
+    }
+
+    /**
+     * Returns the secret decrypted from this record.  The returned secret is
+     * shared through the cache and must not be modified.
+     *
+     * @throws IllegalStateException if the record cannot be decrypted.
+     */
+    Secret load() {
+      return file.load(this);
+    }
+
+    /** Points this record at the copy of it found in another file. */
+    private void resolve(Record found) {
+      file = found.file;
+      offset = found.offset;
+      size = found.size;
+    }
+  }
+
+  /**
+   * A record queued to be written, either copied as is from a loaded file or
+   * being sealed on the thread pool.
+   */
+  private static final class PendingRecord {
+    final int position;
+    final ByteBuffer copied;
+    final Future<byte[]> sealing;
+
+    PendingRecord(int position, ByteBuffer copied, Future<byte[]> sealing) {
+      this.position = position;
+      this.copied = copied;
+      this.sealing = sealing;
+    }
+
+    boolean isDone() {
+      return null != copied || sealing.isDone();
+    }
+  }
+
+  private IndexedSecretsFile(ChunkedCipher cipher, boolean deflated,
+                             ByteBuffer records) {
+    this.cipher = cipher;
+    this.deflated = deflated;
+    this.records = records;
+  }
+
+  /**
+   * Reads the index of the secrets from the buffer.  The secrets returned hold
+   * only the fields in the index, and refer back to the buffer for the rest.
+   *
+   * @param buffer The mapped secrets file, positioned just after the version
+   *     of the format.  The buffer must stay valid while the secrets are in
+   *     use, which is the case for a mapped file even after it is deleted.
+   * @param cipher The cipher to decrypt the index and records with.
+   * @param version The version of the format, from after the signature.
+   */
+  public static ArrayList<Secret> read(ByteBuffer buffer, ChunkedCipher cipher,
+                                       int version) throws IOException {
+    if (VERSION != version)
+      throw new IOException("Unknown indexed format version " + version);
+
+    int flags = buffer.get() & 0xff;
+    if (0 != (flags & ~(FLAG_DEFLATE | FLAG_DELTA)))
+      throw new IOException("Unknown flags " + flags);
+    boolean deflated = 0 != (flags & FLAG_DEFLATE);
+    boolean delta = 0 != (flags & FLAG_DELTA);
+
+    int start = buffer.position();
+    int end = buffer.limit() - 8;
+    long indexOffset = buffer.getLong(end);
+    if (indexOffset < 0 || indexOffset > end - start)
+      throw new IOException("Invalid index offset " + indexOffset);
+
+    ByteBuffer records = buffer.slice();
+    records.limit((int) indexOffset);
+    IndexedSecretsFile file = new IndexedSecretsFile(cipher, deflated, records);
+
+    ByteBuffer indexView = buffer.duplicate();
+    indexView.position(start + (int) indexOffset);
+    indexView.limit(end);
+    InputStream decrypted =
+        cipher.newInputStream(MappedSecretsFile.newInputStream(indexView));
+    if (deflated)
+      decrypted = new InflaterInputStream(decrypted);
+    DataInputStream index = new DataInputStream(new BufferedInputStream(
+        decrypted, FileUtils.STREAM_BUFFER_SIZE));
+    try {
+      int count = BinaryCodec.readVarint32(index);
+      ArrayList<Secret> secrets = new ArrayList<Secret>(count);
+      for (int i = 0; i < count; ++i) {
+        String description = BinaryCodec.readString(index);
+        String username = BinaryCodec.readString(index);
+        String email = BinaryCodec.readString(index);
+        boolean deleted = index.readBoolean();
+        int type = index.readUnsignedByte();
+        long time = BinaryCodec.readVarint(index);
+        int offset = BinaryCodec.readVarint32(index);
+        int size = BinaryCodec.readVarint32(index);
+        byte[] id = new byte[RECORD_ID_SIZE];
+        index.readFully(id);
+        if (offset < 0 || size < 0 || offset > records.limit() - size)
+          throw new IOException("Invalid record " + i);
+
+        Record record = new Record(delta && 0 == size ? null : file, offset,
+                                   size, id, new Secret.LogEntry(type, time));
+        secrets.add(Secret.fromIndex(description, username, email, deleted,
+                                     record));
+      }
+      return secrets;
+    } finally {
+      try {index.close();} catch (IOException ex) {}
+    }
+  }
+
+  /**
+   * Writes the secrets to the output stream in the indexed format (F4).
+   * Output is not closed.
+   *
+   * @param output The stream to write to, positioned just after the version
+   *     of the format.
+   * @param cipher The cipher to encrypt the index and records with.
+   * @param level The DEFLATE compression level, or Deflater.NO_COMPRESSION to
+   *     write the file uncompressed.
+   */
+  public static void write(OutputStream output, ChunkedCipher cipher,
+                           ArrayList<Secret> secrets, int level)
+      throws IOException {
+    boolean deflated = Deflater.NO_COMPRESSION != level;
+    output.write(deflated ? FLAG_DEFLATE : 0);
+    Deflater deflater = deflated ? new Deflater(level) : null;
+    try {
+      write(output, cipher, secrets, deflater);
+    } finally {
+      if (null != deflater)
+        deflater.end();
+    }
+  }
+
+  /**
+   * Writes the file in previous as a delta restore point against the file in
+   * next, which replaces it.  Only the records of previous that are not in
+   * next are written.  Output is not closed.
+   *
+   * @param output The stream to write to, positioned just after the version
+   *     of the format.
+   * @param cipher The cipher both files are encrypted with.
+   * @param previous The file to write, positioned just after its version.
+   * @param previousVersion The version of the format of previous.
+   * @param next The file replacing previous, positioned just after its
+   *     version.
+   * @param nextVersion The version of the format of next.
+   * @param level The DEFLATE compression level for the index, if previous is
+   *     compressed.
+   */
+  public static void writeDelta(OutputStream output, ChunkedCipher cipher,
+                                ByteBuffer previous, int previousVersion,
+                                ByteBuffer next, int nextVersion, int level)
+      throws IOException {
+    int flags = previous.get(previous.position()) & 0xff;
+    if (0 != (flags & FLAG_DELTA))
+      throw new IOException("Cannot write a delta of a delta");
+    ArrayList<Secret> secrets = read(previous, cipher, previousVersion);
+
+    Set<ByteBuffer> shared = new HashSet<ByteBuffer>();
+    for (Secret secret : read(next, cipher, nextVersion)) {
+      Record record = secret.getRecord();
+      if (null != record && null != record.file)
+        shared.add(ByteBuffer.wrap(record.id));
+    }
+
+    boolean deflated = 0 != (flags & FLAG_DEFLATE);
+    output.write(deflated ? FLAG_DEFLATE | FLAG_DELTA : FLAG_DELTA);
+    Deflater deflater = deflated ? new Deflater(level) : null;
+    try {
+      write(output, cipher, secrets, deflater, shared);
+    } finally {
+      if (null != deflater)
+        deflater.end();
+    }
+  }
+
+  /** Returns true if some of the secrets have records not resolved yet. */
+  public static boolean hasMissingRecords(ArrayList<Secret> secrets) {
+    for (Secret secret : secrets) {
+      Record record = secret.getRecord();
+      if (null != record && null == record.file)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Looks for the missing records of secrets read from a delta restore point
+   * in another file encrypted with the same key.
+   *
+   * @param secrets The secrets read from the delta restore point.
+   * @param buffer The other file, positioned just after its version.
+   * @param cipher The cipher to decrypt the index of the other file with.
+   * @param version The version of the format of the other file.
+   * @return The number of records still missing.
+   */
+  public static int resolve(ArrayList<Secret> secrets, ByteBuffer buffer,
+                            ChunkedCipher cipher, int version)
+      throws IOException {
+    Map<ByteBuffer, Record> found = new HashMap<ByteBuffer, Record>();
+    for (Secret secret : read(buffer, cipher, version)) {
+      Record record = secret.getRecord();
+      if (null != record && null != record.file)
+        found.put(ByteBuffer.wrap(record.id), record);
+    }
+
+    int missing = 0;
+    for (Secret secret : secrets) {
+      Record record = secret.getRecord();
+      if (null == record || null != record.file)
+        continue;
+
+      Record copy = found.get(ByteBuffer.wrap(record.id));
+      if (null != copy) {
+        record.resolve(copy);
+      } else {
+        ++missing;
+      }
+    }
+    return missing;
+  }
+
+  /** Returns true if the flags byte of a file says it is a delta. */
+  public static boolean isDelta(int flags) {
+    return flags >= 0 && 0 != (flags & FLAG_DELTA);
+  }
+
+  private static void write(OutputStream output, ChunkedCipher cipher,
+                            ArrayList<Secret> secrets, Deflater deflater)
+      throws IOException {
+    write(output, cipher, secrets, deflater, null);
+  }
+
+  /**
+   * Writes the records and index of the secrets.  The records of secrets
+   * whose id is in shared are left out, and given a size of zero in the
+   * index.
+   */
+  private static void write(OutputStream output, ChunkedCipher cipher,
+                            ArrayList<Secret> secrets, Deflater deflater,
+                            Set<ByteBuffer> shared)
+      throws IOException {
+    boolean deflated = null != deflater;
+    int count = secrets.size();
+    int[] offsets = new int[count];
+    int[] sizes = new int[count];
+    byte[][] ids = new byte[count][];
+
+    BufferedOutputStream buffered =
+        new BufferedOutputStream(output, FileUtils.STREAM_BUFFER_SIZE);
+    ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    byte[] compressed = new byte[FileUtils.STREAM_BUFFER_SIZE];
+    // Records are sealed on the ChunkedCipher thread pool, and written out in
+    // the order of the secrets as they are done.  Records copied from a loaded
+    // file are queued with them, already done.  Secrets are only read and
+    // compressed on this thread, since neither is thread safe.
+    LinkedList<PendingRecord> pending = new LinkedList<PendingRecord>();
+    int offset = 0;
+    for (int i = 0; i < count; ++i) {
+      Secret secret = secrets.get(i);
+      Record record = secret.getRecord();
+      if (null != shared && null != record &&
+          shared.contains(ByteBuffer.wrap(record.id))) {
+        ids[i] = record.id;
+        continue;
+      }
+
+      if (null != record && record.file.deflated == deflated &&
+          record.file.cipher.hasSameKey(cipher)) {
+        ByteBuffer sealed = record.file.records.duplicate();
+        sealed.position(record.offset);
+        sealed.limit(record.offset + record.size);
+        pending.add(new PendingRecord(i, sealed, null));
+      } else {
+        plain.reset();
+        if (deflated)
+          plain.write(RECORD_STORED);
+        secret.toBinary(plain);
+        byte[] bytes = plain.toByteArray();
+        if (deflated)
+          bytes = deflateRecord(deflater, bytes, compressed);
+        pending.add(new PendingRecord(i, null, cipher.submitRecord(bytes)));
+      }
+
+      // Write out finished records in order, waiting if too many are queued.
+      while (!pending.isEmpty() &&
+             (pending.size() > ChunkedCipher.getWindow() ||
+              pending.getFirst().isDone())) {
+        offset = writeRecord(buffered, pending.removeFirst(), offset, offsets,
+                             sizes, ids);
+      }
+    }
+    while (!pending.isEmpty()) {
+      offset = writeRecord(buffered, pending.removeFirst(), offset, offsets,
+                           sizes, ids);
+    }
+    buffered.flush();
+
+    OutputStream encrypted = cipher.newOutputStream(output);
+    if (deflated) {
+      deflater.reset();
+      encrypted = new DeflaterOutputStream(encrypted, deflater,
+                                           FileUtils.STREAM_BUFFER_SIZE);
+    }
+    DataOutputStream index = new DataOutputStream(
+        new BufferedOutputStream(encrypted, FileUtils.STREAM_BUFFER_SIZE));
+    BinaryCodec.writeVarint(index, count);
+    for (int i = 0; i < count; ++i) {
+      Secret secret = secrets.get(i);
+      Secret.LogEntry mostRecent = secret.getMostRecentAccess();
+      BinaryCodec.writeString(index, secret.getDescription());
+      BinaryCodec.writeString(index, secret.getUsername());
+      BinaryCodec.writeString(index, secret.getEmail());
+      index.writeBoolean(secret.isDeleted());
+      index.writeByte(mostRecent.getType());
+      BinaryCodec.writeVarint(index, mostRecent.getTime());
+      BinaryCodec.writeVarint(index, offsets[i]);
+      BinaryCodec.writeVarint(index, sizes[i]);
+      index.write(ids[i]);
+    }
+    // Closing writes the final chunk, but leaves output open.
+    index.close();
+
+    DataOutputStream trailer = new DataOutputStream(output);
+    trailer.writeLong(offset);
+    trailer.flush();
+  }
+
+  /**
+   * Writes out a queued record, and notes where it is in the index arrays.
+   *
+   * @return The offset of the next record.
+   */
+  private static int writeRecord(OutputStream output, PendingRecord record,
+                                 int offset, int[] offsets, int[] sizes,
+                                 byte[][] ids) throws IOException {
+    ByteBuffer sealed = null != record.copied ? record.copied
+        : ByteBuffer.wrap(ChunkedCipher.await(record.sealing));
+    int i = record.position;
+    offsets[i] = offset;
+    sizes[i] = sealed.remaining();
+    ids[i] = ChunkedCipher.getRecordId(sealed);
+    if (sealed.hasArray()) {
+      output.write(sealed.array(), sealed.arrayOffset() + sealed.position(),
+                   sealed.remaining());
+    } else {
+      byte[] bytes = new byte[sealed.remaining()];
+      sealed.get(bytes);
+      output.write(bytes);
+    }
+    return offset + sizes[i];
+  }
+
+  /**
+   * Compresses a record whose first byte is RECORD_STORED, returning the
+   * compressed form only if it is smaller.
+   *
+   * @param deflater The deflater to use, it is reset first.
+   * @param record The record, with RECORD_STORED as its first byte.
+   * @param buffer Scratch space for the compressed data.
+   */
+  private static byte[] deflateRecord(Deflater deflater, byte[] record,
+                                      byte[] buffer) {
+    deflater.reset();
+    deflater.setInput(record, 1, record.length - 1);
+    deflater.finish();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(record.length);
+    out.write(RECORD_DEFLATED);
+    while (!deflater.finished()) {
+      int n = deflater.deflate(buffer);
+      out.write(buffer, 0, n);
+      if (out.size() >= record.length)
+        return record;
+    }
+    return out.toByteArray();
+  }
+
+  /** Undoes deflateRecord(). */
+  private byte[] inflateRecord(byte[] record) throws IOException {
+    if (0 == record.length)
+      throw new IOException("Empty record");
+    if (RECORD_STORED == record[0])
+      return Arrays.copyOfRange(record, 1, record.length);
+    if (RECORD_DEFLATED != record[0])
+      throw new IOException("Unknown record type " + record[0]);
+
+    if (null == inflater)
+      inflater = new Inflater();
+    inflater.reset();
+    inflater.setInput(record, 1, record.length - 1);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(2 * record.length);
+    byte[] buffer = new byte[FileUtils.STREAM_BUFFER_SIZE];
+    try {
+      while (!inflater.finished()) {
+        int n = inflater.inflate(buffer);
+        if (0 == n && (inflater.needsInput() || inflater.needsDictionary()))
+          throw new IOException("Truncated record");
+        out.write(buffer, 0, n);
+      }
+    } catch (DataFormatException ex) {
+      throw new IOException("inflateRecord failed: " + ex.getMessage());
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Returns the secret decrypted from the given record, using the cache.
+   *
+   * @throws IllegalStateException if the record cannot be decrypted.
+   */
+  private synchronized Secret load(Record record) {
+    Secret secret = cache.get(record);
+    if (null == secret) {
+      ByteBuffer sealed = records.duplicate();
+      sealed.position(record.offset);
+      sealed.limit(record.offset + record.size);
+      try {
+        byte[] plain = cipher.openRecord(sealed, record.id);
+        if (deflated)
+          plain = inflateRecord(plain);
+        secret = Secret.fromBinary(new ByteArrayInputStream(plain));
+      } catch (Exception ex) {
+        // The secret cannot be shown or modified, but it keeps its record, so
+        // the sealed bytes are still copied as they are when saving.  Nothing
+        // is cached, so the record is tried again next time.
+        Log.e(LOG_TAG, "load", ex);
+        throw new IllegalStateException("Cannot decrypt record", ex);
+      }
+      cache.put(record, secret);
+    }
+    return secret;
+  }
+}
@@ -0,0 +1,324 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Reads secrets one at a time from a json character stream, in the format
+ * written by FileUtils.writeEncryptedJSONSecrets().  The stream looks like:
+ *
+ *   {"secrets":[{...secret...},{...secret...}, ...]}
+ *
+ * Only the json for the secret currently being read is held in memory, so
+ * secrets can be handed out as soon as they are decrypted, and memory use does
+ * not grow with the size of the file.
+ *
+ * android.util.JsonReader is not used because it is not available before
+ * Android 3.0, and Secrets still supports Android 2.3.
+ */
+public class JSONSecretsReader {
+  /** Name of the top level array holding the secrets. */
+  private static final String JSON_SECRETS_ID = "secrets";
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final Reader reader;
+  private final char[] buffer = new char[BUFFER_SIZE];
+  private final StringBuilder builder = new StringBuilder();
+  private int pos;
+  private int limit;
+
+  private boolean started;
+  private boolean finished;
+  private int count;
+
+  /**
+   * Creates a reader of secrets.  The caller owns the reader and is
+   * responsible for closing it.
+   *
+   * @param reader The stream of json characters.
+   */
+  public JSONSecretsReader(Reader reader) {
+    this.reader = reader;
+  }
+
+  /**
+   * Reads the next secret from the stream.
+   *
+   * @return The next secret, or null if there are no more secrets.
+   * @throws IOException if the stream could not be read.
+   * @throws JSONException if the stream is not valid json.
+   */
+  public Secret next() throws IOException, JSONException {
+    if (finished)
+      return null;
+
+    if (!started) {
+      started = true;
+      findSecretsArray();
+    }
+
+    int c = nextNonWhitespace();
+    if (']' == c) {
+      finished = true;
+      return null;
+    }
+
+    if (count > 0) {
+      if (',' != c)
+        throw syntaxError("Expected ',' or ']'");
+      c = nextNonWhitespace();
+    }
+
+    if ('{' != c)
+      throw syntaxError("Expected secret object");
+
+    ++count;
+    return Secret.fromJSON(readObject());
+  }
+
+  /**
+   * Positions the stream just after the opening bracket of the secrets array.
+   * Any other members of the top level object that precede the array are
+   * skipped.
+   */
+  private void findSecretsArray() throws IOException, JSONException {
+    if ('{' != nextNonWhitespace())
+      throw syntaxError("Expected '{'");
+
+    for (;;) {
+      int c = nextNonWhitespace();
+      if ('}' == c)
+        throw new JSONException("No value for " + JSON_SECRETS_ID);
+      if ('"' != c)
+        throw syntaxError("Expected name");
+
+      String name = readString();
+      if (':' != nextNonWhitespace())
+        throw syntaxError("Expected ':'");
+
+      if (JSON_SECRETS_ID.equals(name)) {
+        if ('[' != nextNonWhitespace())
+          throw syntaxError("Expected '['");
+        return;
+      }
+
+      readValue(nextNonWhitespace());
+      c = nextNonWhitespace();
+      if (',' != c) {
+        if ('}' == c)
+          throw new JSONException("No value for " + JSON_SECRETS_ID);
+        throw syntaxError("Expected ',' or '}'");
+      }
+    }
+  }
+
+  /** Reads an object whose opening brace has already been consumed. */
+  private JSONObject readObject() throws IOException, JSONException {
+    JSONObject object = new JSONObject();
+    int c = nextNonWhitespace();
+    if ('}' == c)
+      return object;
+
+    for (;;) {
+      if ('"' != c)
+        throw syntaxError("Expected name");
+
+      String name = readString();
+      if (':' != nextNonWhitespace())
+        throw syntaxError("Expected ':'");
+
+      object.put(name, readValue(nextNonWhitespace()));
+
+      c = nextNonWhitespace();
+      if ('}' == c)
+        return object;
+      if (',' != c)
+        throw syntaxError("Expected ',' or '}'");
+      c = nextNonWhitespace();
+    }
+  }
+
+  /** Reads an array whose opening bracket has already been consumed. */
+  private JSONArray readArray() throws IOException, JSONException {
+    JSONArray array = new JSONArray();
+    int c = nextNonWhitespace();
+    if (']' == c)
+      return array;
+
+    for (;;) {
+      array.put(readValue(c));
+
+      c = nextNonWhitespace();
+      if (']' == c)
+        return array;
+      if (',' != c)
+        throw syntaxError("Expected ',' or ']'");
+      c = nextNonWhitespace();
+    }
+  }
+
+  /** Reads a value whose first character is given. */
+  private Object readValue(int c) throws IOException, JSONException {
+    switch (c) {
+      case '{':
+        return readObject();
+      case '[':
+        return readArray();
+      case '"':
+        return readString();
+      case 't':
+        readLiteral("rue");
+        return Boolean.TRUE;
+      case 'f':
+        readLiteral("alse");
+        return Boolean.FALSE;
+      case 'n':
+        readLiteral("ull");
+        return JSONObject.NULL;
+      default:
+        return readNumber(c);
+    }
+  }
+
+  /** Reads a string whose opening quote has already been consumed. */
+  private String readString() throws IOException, JSONException {
+    builder.setLength(0);
+    for (;;) {
+      // Copy runs of plain characters straight out of the buffer.
+      int start = pos;
+      while (pos < limit) {
+        char c = buffer[pos];
+        if ('"' == c || '\\' == c)
+          break;
+        ++pos;
+      }
+      builder.append(buffer, start, pos - start);
+
+      int c = read();
+      if (-1 == c) {
+        throw syntaxError("Unterminated string");
+      } else if ('"' == c) {
+        return builder.toString();
+      } else if ('\\' == c) {
+        builder.append(readEscape());
+      } else {
+        // The buffer was exhausted; read() refilled it.
+        builder.append((char) c);
+      }
+    }
+  }
+
+  /** Reads an escape sequence whose backslash has already been consumed. */
+  private char readEscape() throws IOException, JSONException {
+    int c = read();
+    switch (c) {
+      case 'b': return '\b';
+      case 'f': return '\f';
+      case 'n': return '\n';
+      case 'r': return '\r';
+      case 't': return '\t';
+      case '"':
+      case '\\':
+      case '/':
+        return (char) c;
+      case 'u': {
+        int value = 0;
+        for (int i = 0; i < 4; ++i) {
+          int digit = Character.digit(read(), 16);
+          if (digit < 0)
+            throw syntaxError("Invalid escape sequence");
+          value = (value << 4) | digit;
+        }
+        return (char) value;
+      }
+      default:
+        throw syntaxError("Invalid escape sequence");
+    }
+  }
+
+  /** Reads a number whose first character is given. */
+  private Object readNumber(int c) throws IOException, JSONException {
+    builder.setLength(0);
+    boolean isDecimal = false;
+    for (;;) {
+      if ((c >= '0' && c <= '9') || '-' == c || '+' == c) {
+        builder.append((char) c);
+      } else if ('.' == c || 'e' == c || 'E' == c) {
+        builder.append((char) c);
+        isDecimal = true;
+      } else {
+        break;
+      }
+      c = read();
+    }
+
+    // Push back the character that ended the number.
+    if (-1 != c)
+      --pos;
+
+    String text = builder.toString();
+    try {
+      if (isDecimal)
+        return Double.valueOf(text);
+
+      long value = Long.parseLong(text);
+      if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)
+        return Integer.valueOf((int) value);
+      return Long.valueOf(value);
+    } catch (NumberFormatException ex) {
+      throw syntaxError("Invalid value '" + text + "'");
+    }
+  }
+
+  /** Checks that the rest of a literal matches the expected text. */
+  private void readLiteral(String rest) throws IOException, JSONException {
+    for (int i = 0; i < rest.length(); ++i) {
+      if (rest.charAt(i) != read())
+        throw syntaxError("Invalid literal");
+    }
+  }
+
+  private int nextNonWhitespace() throws IOException {
+    for (;;) {
+      int c = read();
+      if (' ' != c && '\n' != c && '\r' != c && '\t' != c)
+        return c;
+    }
+  }
+
+  private int read() throws IOException {
+    if (pos == limit) {
+      limit = reader.read(buffer, 0, buffer.length);
+      pos = 0;
+      if (limit <= 0) {
+        limit = 0;
+        return -1;
+      }
+    }
+
+    return buffer[pos++];
+  }
+
+  private JSONException syntaxError(String message) {
+    return new JSONException(message + " in secret " + count);
+  }
+}
@@ -0,0 +1,243 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.util.Arrays;
+
+import org.mindrot.jbcrypt.BCrypt;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Measures how long bcrypt takes on this device, to choose the number of
+ * rounds for new passwords and to show how long unlocking will take for a
+ * given number of rounds.
+ *
+ * bcrypt does a fixed amount of work plus an amount that doubles with each
+ * round, so the time to derive a key with n rounds is modelled as
+ *
+ *   T(n) = fixed + perRound * 2^n
+ *
+ * The two terms are fitted by least squares to the median of several timed
+ * runs at more than one number of rounds, after a few warm-up runs that give
+ * the JIT a chance to compile bcrypt.  Times are taken with System.nanoTime(),
+ * since currentTimeMillis() is too coarse for the few milliseconds that 4
+ * rounds take on a fast device.
+ *
+ * Measuring takes a noticeable fraction of a second, so the fitted profile is
+ * kept in memory and in the preferences.  The stored profile is tied to the
+ * build of the OS, and is measured again after an OS update.
+ */
+public class KdfCalibration {
+  /** Tag for logging purposes. */
+  public static final String LOG_TAG = "KdfCalibration";
+
+  /** Name of the preferences file holding the device profile. */
+  private static final String PREFS_FILE_NAME = "kdf_profile";
+  private static final String PREF_FIXED = "fixed_millis";
+  private static final String PREF_PER_ROUND = "per_round_millis";
+  private static final String PREF_BUILD = "build";
+
+  /**
+   * Changed whenever bcrypt gets faster or slower, so that profiles measured
+   * with an older version are measured again.
+   */
+  private static final int PROFILE_VERSION = 2;
+
+  private static final int MIN_ROUNDS = 4;
+
+  /**
+   * getBestRounds() never picks more rounds than this, whatever the profile
+   * says.  Each round doubles the time, so a profile that underestimates the
+   * cost, for example one measured while the CPU was boosted, must not be
+   * allowed to lock the user out for minutes.  bcrypt itself allows 31.
+   */
+  private static final int MAX_BEST_ROUNDS = 16;
+
+  /**
+   * Numbers of rounds timed to fit the model, from lowest to highest.  The
+   * fixed cost shows at the low end.  The highest is close to the rounds
+   * usually chosen, so that the estimates there are not extrapolated from
+   * times of a few milliseconds.
+   */
+  private static final int[] SAMPLE_ROUNDS = {4, 6, 8};
+
+  /** Runs at the highest number of rounds whose times are thrown away. */
+  private static final int WARM_UP_RUNS = 2;
+
+  /** Runs timed at each number of rounds.  The median is kept. */
+  private static final int SAMPLES = 3;
+
+  private static Profile profile;
+
+  /** The fitted cost of bcrypt on this device. */
+  public static class Profile {
+    private final double fixedMillis;
+    private final double perRoundMillis;
+
+    Profile(double fixedMillis, double perRoundMillis) {
+      this.fixedMillis = fixedMillis;
+      this.perRoundMillis = perRoundMillis;
+    }
+
+    /** Returns the estimated time to derive a key, in milliseconds. */
+    public double estimateMillis(int rounds) {
+      return fixedMillis + perRoundMillis * Math.pow(2, rounds);
+    }
+
+    /**
+     * Returns the largest number of rounds that derives a key within the
+     * given time, but no less than the minimum allowed by bcrypt and no more
+     * than MAX_BEST_ROUNDS.
+     */
+    public int getBestRounds(double targetMillis) {
+      int rounds = MIN_ROUNDS;
+      while (rounds < MAX_BEST_ROUNDS &&
+             estimateMillis(rounds + 1) <= targetMillis)
+        ++rounds;
+      return rounds;
+    }
+
+    @Override
+    public String toString() {
+      return "fixed=" + fixedMillis + "ms perRound=" + perRoundMillis + "ms";
+    }
+  }
+
+  /**
+   * Gets the profile of this device, measuring it if it has not been
+   * measured yet.  This may take a while, so it should not be called from the
+   * UI thread unless getSavedProfile() returned null and there is no other
+   * choice.
+   *
+   * @param ctx A context to load and save the profile, or null to only keep
+   *     it in memory.
+   */
+  public static synchronized Profile getProfile(Context ctx) {
+    boolean isSaved = false;
+    if (null == profile && null != ctx) {
+      profile = load(ctx);
+      isSaved = null != profile;
+    }
+
+    if (null == profile)
+      profile = calibrate();
+
+    if (!isSaved && null != ctx)
+      save(ctx, profile);
+    return profile;
+  }
+
+  /**
+   * Gets the profile of this device if it has already been measured, without
+   * measuring it.
+   *
+   * @param ctx A context to load the profile from.
+   * @return The profile, or null if the device has not been measured yet.
+   */
+  public static synchronized Profile getSavedProfile(Context ctx) {
+    if (null == profile)
+      profile = load(ctx);
+    return profile;
+  }
+
+  /** Times bcrypt on this device and fits the cost model to the times. */
+  static Profile calibrate() {
+    byte[] salt = SecurityUtils.createNewSalt();
+    final byte[] password = {1, 2, 3, 4, 5, 6, 7, 8};
+    BCrypt bcrypt = new BCrypt();
+
+    for (int i = 0; i < WARM_UP_RUNS; ++i)
+      time(bcrypt, password, salt, SAMPLE_ROUNDS[SAMPLE_ROUNDS.length - 1]);
+
+    double[] x = new double[SAMPLE_ROUNDS.length];
+    double[] y = new double[SAMPLE_ROUNDS.length];
+    long[] samples = new long[SAMPLES];
+    for (int i = 0; i < SAMPLE_ROUNDS.length; ++i) {
+      for (int j = 0; j < SAMPLES; ++j)
+        samples[j] = time(bcrypt, password, salt, SAMPLE_ROUNDS[i]);
+      Arrays.sort(samples);
+      x[i] = Math.pow(2, SAMPLE_ROUNDS[i]);
+      y[i] = samples[SAMPLES / 2] / 1e6;
+    }
+
+    Profile fitted = fit(x, y);
+    Log.d(LOG_TAG, "calibrate: " + fitted);
+    return fitted;
+  }
+
+  /**
+   * Fits y = fixed + perRound * x by least squares.  Noise can make the
+   * fitted fixed time negative on a fast device, in which case it is dropped
+   * and y = perRound * x is fitted instead.
+   */
+  static Profile fit(double[] x, double[] y) {
+    int n = x.length;
+    double sx = 0, sy = 0, sxx = 0, sxy = 0;
+    for (int i = 0; i < n; ++i) {
+      sx += x[i];
+      sy += y[i];
+      sxx += x[i] * x[i];
+      sxy += x[i] * y[i];
+    }
+
+    double d = n * sxx - sx * sx;
+    double perRound = 0 == d ? 0 : (n * sxy - sx * sy) / d;
+    double fixed = (sy - perRound * sx) / n;
+    if (perRound <= 0 || fixed < 0) {
+      fixed = 0;
+      perRound = sxy / sxx;
+    }
+
+    return new Profile(fixed, perRound);
+  }
+
+  /** Returns the time to derive a key with the given rounds, in nanoseconds. */
+  private static long time(BCrypt bcrypt, byte[] password, byte[] salt,
+                           int rounds) {
+    int plaintext[] = {0x155cbf8e, 0x57f57513, 0x3da787b9, 0x71679d82,
+                       0x7cf72e93, 0x1ae25274, 0x64b54adc, 0x335cbd0b};
+    long start = System.nanoTime();
+    bcrypt.crypt_raw(password, salt, rounds, plaintext);
+    return System.nanoTime() - start;
+  }
+
+  private static String getBuild() {
+    return Build.FINGERPRINT + "/" + PROFILE_VERSION;
+  }
+
+  private static Profile load(Context ctx) {
+    SharedPreferences prefs = ctx.getSharedPreferences(PREFS_FILE_NAME, 0);
+    if (!getBuild().equals(prefs.getString(PREF_BUILD, null)))
+      return null;
+
+    float perRound = prefs.getFloat(PREF_PER_ROUND, 0);
+    if (perRound <= 0)
+      return null;
+
+    return new Profile(prefs.getFloat(PREF_FIXED, 0), perRound);
+  }
+
+  private static void save(Context ctx, Profile profile) {
+    ctx.getSharedPreferences(PREFS_FILE_NAME, 0).edit()
+        .putFloat(PREF_FIXED, (float) profile.fixedMillis)
+        .putFloat(PREF_PER_ROUND, (float) profile.perRoundMillis)
+        .putString(PREF_BUILD, getBuild())
+        .apply();
+  }
+}
@@ -14,16 +14,13 @@
 
 package net.tawacentral.roger.secrets;
 
-import java.io.File;
 import java.text.MessageFormat;
 import java.util.ArrayList;
-import java.util.Collections;
-
-import javax.crypto.Cipher;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
@@ -56,6 +53,8 @@ public class LoginActivity extends Activity implements TextWatcher {
   private boolean isValidatingPassword;
   private String passwordString;
   private Toast toast;
+  private LoginTask login;
+  private ProgressDialog loginProgress;
 
 
   @Override
@@ -194,7 +193,7 @@ public class LoginActivity extends Activity implements TextWatcher {
   private void handlePasswordClick(TextView passwordView) {
     Log.d(LOG_TAG, "LoginActivity.handlePasswordClick");
 
-    if (null != secrets) {
+    if (null != secrets || null != login) {
       Log.d(LOG_TAG, "LoginActivity.handlePasswordClick ignoring");
       return;
     }
@@ -231,54 +230,68 @@ public class LoginActivity extends Activity implements TextWatcher {
 
     passwordView.setText("");
 
-    FileUtils.SaltAndRounds pair = FileUtils.getSaltAndRounds(this,
-        FileUtils.SECRETS_FILE_NAME);
-    SecurityUtils.saveCiphers(SecurityUtils.createCiphers(passwordString,
-                                                          pair.salt,
-                                                          pair.rounds));
+    // The key is derived and the secrets are loaded in a background thread,
+    // see LoginTask.  Only the result is handed over on the UI thread.
+    final LoginTask task = new LoginTask(getApplicationContext(),
+        passwordString, isFirstRun, new LoginTask.Listener() {
+          @Override
+          public void onProgress(final LoginTask source) {
+            runOnUiThread(new Runnable() {
+              @Override
+              public void run() {
+                updateLoginProgress(source);
+              }
+            });
+          }
+        });
+    login = task;
 
-    ArrayList<Secret> loadedSecrets = null;
+    loginProgress = new ProgressDialog(this);
+    loginProgress.setIndeterminate(true);
+    loginProgress.setCancelable(false);
+    loginProgress.setMessage(getText(R.string.login_progress_key));
+    loginProgress.show();
 
-    if (isFirstRun) {
-      loadedSecrets = new ArrayList<Secret>();
-
-      Cipher cipher = SecurityUtils.getEncryptionCipher();
-      File file = getFileStreamPath(FileUtils.SECRETS_FILE_NAME);
-      byte[] salt = SecurityUtils.getSalt();
-      int rounds = SecurityUtils.getRounds();
-      int err = FileUtils.saveSecrets(this, file, cipher, salt, rounds,
-                                      loadedSecrets);
-      if (0 != err) {
-        showToast(err, Toast.LENGTH_LONG);
-        return;
-      }
-    } else {
-      loadedSecrets = FileUtils.loadSecrets(this);
-      if (null == loadedSecrets) {
-        loadedSecrets = FileUtils.loadSecretsV3(this);
-        if (null == loadedSecrets) {
-          Cipher cipher2 = SecurityUtils.createDecryptionCipherV2(
-              passwordString, pair.salt, pair.rounds);
-          if (null != cipher2) {
-            loadedSecrets = FileUtils.loadSecretsV2(this, cipher2, pair.salt,
-                                                 pair.rounds);
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        task.run();
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            finishLogin(task);
           }
-        }
-        if (null == loadedSecrets) {
-          Cipher cipher1 =
-              SecurityUtils.createDecryptionCipherV1(passwordString);
-          if (null != cipher1)
-            loadedSecrets = FileUtils.loadSecretsV1(this, cipher1);
-        }
-        if (null == loadedSecrets) {
-          showToast(R.string.invalid_password, Toast.LENGTH_LONG);
-          return;
-        }
+        });
+      }}, "login").start();
+  }
 
-        Collections.sort(loadedSecrets);
-      }
+  private void updateLoginProgress(LoginTask task) {
+    if (task != login || null == loginProgress)
+      return;
+
+    if (LoginTask.STAGE_LOAD == task.getStage())
+      loginProgress.setMessage(getText(R.string.login_progress_load));
+  }
+
+  private void finishLogin(LoginTask task) {
+    // Ignore logins started by an instance that has since been destroyed.
+    if (task != login)
+      return;
+
+    login = null;
+    if (null != loginProgress) {
+      loginProgress.dismiss();
+      loginProgress = null;
+    }
+
+    ArrayList<Secret> loadedSecrets = task.getSecrets();
+    if (null == loadedSecrets) {
+      showToast(task.getError(), Toast.LENGTH_LONG);
+      return;
     }
 
+    SecurityUtils.saveCiphers(task.getCipherInfo());
+
     if (secrets == null)
       secrets = new ArrayList<Secret>();
 
@@ -287,11 +300,28 @@ public class LoginActivity extends Activity implements TextWatcher {
 
 
     replaceSecrets(loadedSecrets);
+    if (task.isSaved()) {
+      SaveService.setSaved(loadedSecrets, SecurityUtils.getEncryptionCipher(),
+                           SecurityUtils.getSalt(), SecurityUtils.getRounds());
+    } else {
+      SaveService.clearSaved();
+    }
 
     passwordString = null;
     Intent intent = new Intent(LoginActivity.this, SecretsListActivity.class);
     startActivity(intent);
-    Log.d(LOG_TAG, "LoginActivity.handlePasswordClick done");
+    Log.d(LOG_TAG, "LoginActivity.finishLogin done");
+  }
+
+  @Override
+  protected void onDestroy() {
+    // The login thread keeps running, but its result is dropped.
+    login = null;
+    if (null != loginProgress) {
+      loginProgress.dismiss();
+      loginProgress = null;
+    }
+    super.onDestroy();
   }
 
   private void showToast(int message, int length) {
@@ -342,5 +372,6 @@ public class LoginActivity extends Activity implements TextWatcher {
     secrets = null;
     deletedSecrets = null;
     SecurityUtils.clearCiphers();
+    SaveService.clearSaved();
   }
 }
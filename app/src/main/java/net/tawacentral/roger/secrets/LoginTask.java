@@ -0,0 +1,275 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import javax.crypto.Cipher;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Derives the key from the password and loads the secrets, in a background
+ * thread, so that logging in does not block the UI.
+ *
+ * Deriving the key with bcrypt takes up to a second, and only needs the salt
+ * and rounds from the header of the secrets file.  So the header is read
+ * first, the key is derived in a second thread, and meanwhile the rest of the
+ * file is read into memory.  Once the key is ready, the file is decrypted and
+ * parsed, and sorted if needed.  The caller only has to hand the result over
+ * to the UI, see LoginActivity.
+ *
+ * Vaults in the V2 format also need the V2 key, which is derived with bcrypt
+ * too, but whether a file is V2 is only known once the current key is
+ * derived, see FileUtils.detectFormat().  So on devices with more than one
+ * core, if the header allows for V2, the V2 key is derived in a third thread
+ * at the same time, and a V2 vault takes about as long to unlock as a current
+ * one.  If the file turns out not to be V2, the V2 key is dropped.
+ *
+ * The time spent in each stage is logged.
+ */
+public class LoginTask {
+  /** Tag for logging purposes. */
+  public static final String LOG_TAG = "LoginTask";
+
+  /** Stage while the key is derived from the password. */
+  public static final int STAGE_KEY = 1;
+
+  /** Stage while the secrets are decrypted and parsed. */
+  public static final int STAGE_LOAD = 2;
+
+  /** Stage once run() has returned. */
+  public static final int STAGE_DONE = 3;
+
+  /** Receives the progress of a login. */
+  public interface Listener {
+    /**
+     * Called from the login thread when it moves on to the next stage.
+     *
+     * @param task The login, to query its stage.
+     */
+    void onProgress(LoginTask task);
+  }
+
+  private final Context context;
+  private final String password;
+  private final boolean isFirstRun;
+  private final Listener listener;
+
+  private volatile int stage;
+  private SecurityUtils.CipherInfo info;
+  private ArrayList<Secret> secrets;
+  private boolean isSaved;
+  private int error;
+
+  /**
+   * Creates a login task.
+   *
+   * @param context Context used to read the secrets file.
+   * @param password The password entered by the user.
+   * @param isFirstRun True if there is no secrets file yet, in which case an
+   *     empty one is created with the password.
+   * @param listener Listener for progress reports, or null.
+   */
+  public LoginTask(Context context, String password, boolean isFirstRun,
+                   Listener listener) {
+    this.context = context;
+    this.password = password;
+    this.isFirstRun = isFirstRun;
+    this.listener = listener;
+  }
+
+  /** Returns the current stage, one of the STAGE_* constants. */
+  public int getStage() {
+    return stage;
+  }
+
+  /** Returns the ciphers created from the password. */
+  public SecurityUtils.CipherInfo getCipherInfo() {
+    return info;
+  }
+
+  /**
+   * Returns the secrets loaded, or null if the password is wrong or the
+   * secrets file could not be saved or read.
+   */
+  public ArrayList<Secret> getSecrets() {
+    return secrets;
+  }
+
+  /**
+   * Returns true if the secrets file already holds the secrets in the current
+   * format, so there is no need to save them again until they change.
+   */
+  public boolean isSaved() {
+    return isSaved;
+  }
+
+  /** Returns the message to show if getSecrets() returns null. */
+  public int getError() {
+    return error;
+  }
+
+  /**
+   * Logs in.  This is meant to be called in a background thread.
+   *
+   * @return The secrets loaded, or null if the login failed, see getError().
+   */
+  public ArrayList<Secret> run() {
+    long start = SystemClock.uptimeMillis();
+    setStage(STAGE_KEY);
+
+    // A new vault is created with the rounds that suit this device, so make
+    // sure the device profile is saved for the change password dialog.
+    if (isFirstRun)
+      KdfCalibration.getProfile(context);
+
+    final FileUtils.SaltAndRounds pair = FileUtils.getSaltAndRounds(context,
+        FileUtils.SECRETS_FILE_NAME);
+    long header = SystemClock.uptimeMillis();
+
+    // Derive the key in another thread while this one reads the file.
+    final long[] keyTime = new long[2];
+    FutureTask<SecurityUtils.CipherInfo> kdf =
+        new FutureTask<SecurityUtils.CipherInfo>(
+            new Callable<SecurityUtils.CipherInfo>() {
+              @Override
+              public SecurityUtils.CipherInfo call() {
+                long start = SystemClock.uptimeMillis();
+                SecurityUtils.CipherInfo info = SecurityUtils.createCiphers(
+                    password, pair.salt, pair.rounds);
+                keyTime[0] = SystemClock.uptimeMillis() - start;
+                return info;
+              }
+            });
+    new Thread(kdf, "loginKey").start();
+
+    FutureTask<Cipher> kdfV2 = null;
+    if (!isFirstRun && null != pair.salt &&
+        Runtime.getRuntime().availableProcessors() > 1 &&
+        FileUtils.mayBeFormatV2(context, FileUtils.SECRETS_FILE_NAME)) {
+      kdfV2 = new FutureTask<Cipher>(new Callable<Cipher>() {
+        @Override
+        public Cipher call() {
+          long start = SystemClock.uptimeMillis();
+          Cipher cipher = SecurityUtils.createDecryptionCipherV2(password,
+              pair.salt, pair.rounds);
+          keyTime[1] = SystemClock.uptimeMillis() - start;
+          return cipher;
+        }
+      });
+      new Thread(kdfV2, "loginKeyV2").start();
+    }
+
+    if (!isFirstRun)
+      FileUtils.preloadSecretsFile(context, FileUtils.SECRETS_FILE_NAME);
+    long read = SystemClock.uptimeMillis();
+
+    try {
+      info = kdf.get();
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "run", ex);
+    }
+    long key = SystemClock.uptimeMillis();
+
+    error = R.string.invalid_password;
+    if (null != info) {
+      setStage(STAGE_LOAD);
+      if (isFirstRun)
+        create();
+      else
+        load(kdfV2);
+    } else if (null != kdfV2) {
+      kdfV2.cancel(true);
+    }
+    long loaded = SystemClock.uptimeMillis();
+
+    if (null != secrets && !isSaved)
+      Collections.sort(secrets);
+    long end = SystemClock.uptimeMillis();
+
+    Log.d(LOG_TAG, "run: header=" + (header - start) + "ms" +
+          " key=" + keyTime[0] + "ms" +
+          (null == kdfV2 ? "" : " keyV2=" + keyTime[1] + "ms") +
+          " read=" + (read - header) + "ms" +
+          " waitForKey=" + (key - read) + "ms" +
+          " load=" + (loaded - key) + "ms" +
+          " sort=" + (end - loaded) + "ms" +
+          " total=" + (end - start) + "ms");
+
+    setStage(STAGE_DONE);
+    return secrets;
+  }
+
+  /** Creates an empty secrets file encrypted with the new key. */
+  private void create() {
+    ArrayList<Secret> created = new ArrayList<Secret>();
+    File file = context.getFileStreamPath(FileUtils.SECRETS_FILE_NAME);
+    int err = FileUtils.saveSecrets(context, file, info.encryptCipher,
+                                    info.key, info.salt, info.rounds,
+                                    created);
+    if (0 != err) {
+      error = err;
+      return;
+    }
+
+    secrets = created;
+    isSaved = true;
+  }
+
+  /**
+   * Loads the secrets file with the key.
+   *
+   * @param kdfV2 The V2 key being derived at the same time, or null.
+   */
+  private void load(FutureTask<Cipher> kdfV2) {
+    // Work out the format of the file first, so that only its loader is run,
+    // and only the keys it needs are derived from the password.
+    int format = FileUtils.detectFormat(context, FileUtils.SECRETS_FILE_NAME,
+                                        info);
+    if (FileUtils.FORMAT_V2 == format && null != kdfV2) {
+      Cipher cipher2 = null;
+      try {
+        cipher2 = kdfV2.get();
+      } catch (Exception ex) {
+        Log.e(LOG_TAG, "load", ex);
+      }
+      secrets = FileUtils.loadSecretsV2(context, FileUtils.SECRETS_FILE_NAME,
+                                        cipher2, info.salt, info.rounds);
+    } else {
+      // bcrypt cannot be interrupted, so the V2 key is still derived to the
+      // end, but on another core, and it is not waited for.
+      if (null != kdfV2)
+        kdfV2.cancel(true);
+      secrets = FileUtils.loadSecrets(context, FileUtils.SECRETS_FILE_NAME,
+                                      format, password, info);
+    }
+    // Files in older formats, including V4, are rewritten in the current
+    // format by the first save.
+    isSaved = FileUtils.FORMAT_CURRENT == format;
+  }
+
+  private void setStage(int stage) {
+    this.stage = stage;
+    if (null != listener)
+      listener.onProgress(this);
+  }
+}
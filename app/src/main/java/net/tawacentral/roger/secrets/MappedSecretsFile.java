@@ -0,0 +1,219 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.crypto.Cipher;
+
+/**
+ * A secrets file or restore point mapped into memory.  The file is mapped
+ * once, and the mapping is reused by the salt and rounds probe done before
+ * the cipher is created and by the decryption that follows, so the file is
+ * only read from flash once.
+ *
+ * The most recently mapped file is cached.  The mapping stays valid even if
+ * the file is later renamed or deleted, so FileUtils releases it whenever it
+ * replaces or moves data files.
+ */
+public class MappedSecretsFile {
+  /** Number of encrypted bytes passed to the cipher at a time. */
+  private static final int SLICE_SIZE = 8192;
+
+  private static MappedSecretsFile cached;
+
+  private final File file;
+  private final long length;
+  private final long lastModified;
+  private final MappedByteBuffer buffer;
+
+  private MappedSecretsFile(File file) throws IOException {
+    this.file = file;
+    this.lastModified = file.lastModified();
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      length = channel.size();
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+    } finally {
+      // The mapping remains valid after the channel is closed.
+      try {raf.close();} catch (IOException ex) {}
+    }
+  }
+
+  /**
+   * Maps the given file, or returns the existing mapping if the file was
+   * already mapped and has not changed since.
+   */
+  public static synchronized MappedSecretsFile open(File file)
+      throws IOException {
+    if (null == cached || !cached.file.equals(file) ||
+        cached.length != file.length() ||
+        cached.lastModified != file.lastModified()) {
+      cached = null;
+      cached = new MappedSecretsFile(file);
+    }
+
+    return cached;
+  }
+
+  /** Drops the cached mapping, if any. */
+  public static synchronized void release() {
+    cached = null;
+  }
+
+  /**
+   * Reads the whole file into memory now, so that later reads of the mapping
+   * do not have to wait for flash.
+   */
+  public void load() {
+    buffer.load();
+  }
+
+  /**
+   * Returns a read-only view of the whole file.  Each call returns a new view
+   * with its own position, starting at zero.
+   */
+  public ByteBuffer getBuffer() {
+    return buffer.duplicate();
+  }
+
+  /** Returns a stream that reads the given view of the file. */
+  public static InputStream newInputStream(ByteBuffer buffer) {
+    return new ByteBufferInputStream(buffer);
+  }
+
+  /**
+   * Returns a stream that decrypts the remaining bytes of the given view of the
+   * file.  The encrypted bytes are handed to the cipher in slices of the
+   * mapping, without being copied into an intermediate array first.  Unlike
+   * CipherInputStream, padding errors are reported as an IOException.  The
+   * stream uses its own cipher for the given one, see CipherProvider.
+   */
+  public static InputStream newCipherInputStream(ByteBuffer buffer,
+                                                 Cipher cipher) {
+    return new ByteBufferCipherInputStream(buffer, cipher);
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int length) {
+      if (0 == length)
+        return 0;
+      if (!buffer.hasRemaining())
+        return -1;
+
+      int n = Math.min(length, buffer.remaining());
+      buffer.get(b, offset, n);
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+
+    @Override
+    public long skip(long n) {
+      int skipped = (int) Math.min(Math.max(n, 0), buffer.remaining());
+      buffer.position(buffer.position() + skipped);
+      return skipped;
+    }
+  }
+
+  private static class ByteBufferCipherInputStream extends InputStream {
+    private final ByteBuffer input;
+    private final Cipher handle;
+    private Cipher cipher;
+    private final ByteBuffer output;
+    private boolean finished;
+
+    ByteBufferCipherInputStream(ByteBuffer input, Cipher handle) {
+      this.input = input;
+      this.handle = handle;
+      // Room for one slice plus the blocks the cipher may be holding back.
+      output = ByteBuffer.allocate(SLICE_SIZE + 64);
+      output.flip();
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!fill())
+        return -1;
+      return output.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int length) throws IOException {
+      if (0 == length)
+        return 0;
+      if (!fill())
+        return -1;
+
+      int n = Math.min(length, output.remaining());
+      output.get(b, offset, n);
+      return n;
+    }
+
+    /** Decrypts the next slice if needed, returns false at the end. */
+    private boolean fill() throws IOException {
+      try {
+        if (null == cipher)
+          cipher = CipherProvider.acquire(handle);
+
+        while (!output.hasRemaining()) {
+          if (finished)
+            return false;
+
+          output.clear();
+          if (input.hasRemaining()) {
+            ByteBuffer slice = input.slice();
+            int n = Math.min(SLICE_SIZE, slice.remaining());
+            slice.limit(n);
+            cipher.update(slice, output);
+            input.position(input.position() + n);
+          } else {
+            cipher.doFinal(input, output);
+            finished = true;
+            CipherProvider.release(handle, cipher);
+          }
+          output.flip();
+        }
+      } catch (Exception ex) {
+        throw new IOException("Decryption failed: " + ex.getMessage());
+      }
+
+      return true;
+    }
+  }
+}
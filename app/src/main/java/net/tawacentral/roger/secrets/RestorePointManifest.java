@@ -0,0 +1,306 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * A list of the secrets file and the restore points next to it, with the
+ * time, size, salt, rounds and number of secrets of each one.  It is kept in
+ * its own file so that launching the app, listing the restore points and
+ * cleaning up old ones do not need to scan and stat the whole data directory.
+ *
+ * The manifest is rewritten by FileUtils.saveSecrets() after each full save,
+ * by writing a new file and renaming it over the old one, so readers always
+ * see a complete manifest.  Before it is used, the manifest is checked against
+ * the secrets file.  If the manifest is missing, damaged or does not match,
+ * for example because the app was killed in the middle of a save or the file
+ * was restored from a backup, it is rebuilt by scanning the directory.
+ *
+ * The manifest is not encrypted.  It only holds the header of each file, which
+ * is not encrypted either, the number of secrets in it and whether it is a
+ * delta restore point.
+ */
+public class RestorePointManifest {
+  /** Tag for logging purposes. */
+  public static final String LOG_TAG = "RestorePointManifest";
+
+  /** Name of the manifest file. */
+  public static final String MANIFEST_FILE_NAME = "restore_points";
+
+  private static final int SIGNATURE = 0x2234564d;
+  private static final int VERSION = 2;
+
+  /** Value of Entry.count when the number of secrets is not known. */
+  public static final int UNKNOWN_COUNT = -1;
+
+  /** One file in the manifest. */
+  public static class Entry {
+    public final String name;
+    public final long time;
+    public final long size;
+    public final byte[] salt;
+    public final int rounds;
+    public final int count;
+    /** True if the file is a delta against the next newer file. */
+    public final boolean delta;
+
+    Entry(String name, long time, long size, byte[] salt, int rounds,
+          int count, boolean delta) {
+      this.name = name;
+      this.time = time;
+      this.size = size;
+      this.salt = salt;
+      this.rounds = rounds;
+      this.count = count;
+      this.delta = delta;
+    }
+
+    /** Returns a copy of this entry for the given file name. */
+    Entry rename(String newName) {
+      return new Entry(newName, time, size, salt, rounds, count, delta);
+    }
+  }
+
+  private final ArrayList<Entry> entries;
+
+  private RestorePointManifest(ArrayList<Entry> entries) {
+    this.entries = entries;
+  }
+
+  /**
+   * Returns the manifest, rebuilding it from the directory if the stored one
+   * cannot be used.  The rebuilt manifest is not written.
+   */
+  static RestorePointManifest load(Context context) {
+    RestorePointManifest manifest = read(context);
+    return null != manifest ? manifest : rebuild(context);
+  }
+
+  /**
+   * Reads the stored manifest, or returns null if it is missing, damaged or
+   * does not match the secrets file.
+   */
+  static RestorePointManifest read(Context context) {
+    File file = context.getFileStreamPath(MANIFEST_FILE_NAME);
+    if (!file.exists())
+      return null;
+
+    DataInputStream input = null;
+    try {
+      input = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(file)));
+      if (SIGNATURE != input.readInt())
+        return null;
+      // Manifests of other versions are rebuilt, see load().
+      if (VERSION != input.readInt())
+        return null;
+
+      int count = input.readInt();
+      ArrayList<Entry> entries = new ArrayList<Entry>(count);
+      for (int i = 0; i < count; ++i) {
+        String name = input.readUTF();
+        long time = input.readLong();
+        long size = input.readLong();
+        int saltLength = input.readInt();
+        byte[] salt = null;
+        if (saltLength >= 0) {
+          salt = new byte[saltLength];
+          input.readFully(salt);
+        }
+        int rounds = input.readInt();
+        int secrets = input.readInt();
+        boolean delta = input.readBoolean();
+        entries.add(new Entry(name, time, size, salt, rounds, secrets, delta));
+      }
+
+      RestorePointManifest manifest = new RestorePointManifest(entries);
+      if (!manifest.matches(context)) {
+        Log.d(LOG_TAG, "read: manifest is out of date");
+        return null;
+      }
+      return manifest;
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "read", ex);
+      return null;
+    } finally {
+      try {if (null != input) input.close();} catch (IOException ex) {}
+    }
+  }
+
+  /**
+   * Builds the manifest by scanning the data directory.  Partial save files
+   * found during the scan are deleted.
+   */
+  static RestorePointManifest rebuild(Context context) {
+    Log.d(LOG_TAG, "rebuild");
+    ArrayList<Entry> entries = new ArrayList<Entry>();
+    for (String filename : context.fileList()) {
+      if (0 == filename.indexOf("new")) {
+        // This is a partial write file, probably corrupted.  Delete it.
+        context.deleteFile(filename);
+      } else if (FileUtils.SECRETS_FILE_NAME.equals(filename) ||
+                 filename.startsWith(FileUtils.RP_PREFIX)) {
+        entries.add(scan(context, filename, UNKNOWN_COUNT));
+      }
+    }
+
+    return new RestorePointManifest(entries);
+  }
+
+  /** Creates the entry of the given file from the file itself. */
+  static Entry scan(Context context, String filename, int count) {
+    File file = context.getFileStreamPath(filename);
+    FileUtils.SaltAndRounds pair = new FileUtils.SaltAndRounds(null, 0);
+    boolean delta = false;
+    InputStream input = null;
+    try {
+      // Buffered, so that getSaltAndRounds() can skip the key check value.
+      input = new BufferedInputStream(new FileInputStream(file));
+      pair = FileUtils.getSaltAndRounds(input);
+      delta = FileUtils.isDeltaRestorePoint(input);
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "scan", ex);
+    } finally {
+      try {if (null != input) input.close();} catch (IOException ex) {}
+    }
+
+    return new Entry(filename, file.lastModified(), file.length(), pair.salt,
+                     pair.rounds, count, delta);
+  }
+
+  /**
+   * Writes the manifest, replacing the stored one in a single rename.
+   *
+   * @return True if the manifest was written.
+   */
+  boolean write(Context context) {
+    File file = context.getFileStreamPath(MANIFEST_FILE_NAME);
+    File temp = context.getFileStreamPath(MANIFEST_FILE_NAME + ".tmp");
+    DataOutputStream output = null;
+    try {
+      output = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(temp)));
+      output.writeInt(SIGNATURE);
+      output.writeInt(VERSION);
+      output.writeInt(entries.size());
+      for (Entry entry : entries) {
+        output.writeUTF(entry.name);
+        output.writeLong(entry.time);
+        output.writeLong(entry.size);
+        if (null == entry.salt) {
+          output.writeInt(-1);
+        } else {
+          output.writeInt(entry.salt.length);
+          output.write(entry.salt);
+        }
+        output.writeInt(entry.rounds);
+        output.writeInt(entry.count);
+        output.writeBoolean(entry.delta);
+      }
+      output.close();
+      output = null;
+
+      if (temp.renameTo(file))
+        return true;
+      Log.d(LOG_TAG, "write: could not rename manifest");
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "write", ex);
+    } finally {
+      try {if (null != output) output.close();} catch (IOException ex) {}
+    }
+
+    temp.delete();
+    file.delete();
+    return false;
+  }
+
+  /**
+   * Checks the entry of the secrets file against the file itself.  The restore
+   * points are only ever changed along with the manifest, so they are not
+   * checked, to keep this to a single stat.
+   */
+  private boolean matches(Context context) {
+    File secrets = context.getFileStreamPath(FileUtils.SECRETS_FILE_NAME);
+    Entry entry = get(FileUtils.SECRETS_FILE_NAME);
+    if (null == entry)
+      return !secrets.exists();
+
+    return entry.size == secrets.length() &&
+        entry.time == secrets.lastModified();
+  }
+
+  /** Returns true if the manifest lists no files at all. */
+  boolean isEmpty() {
+    return entries.isEmpty();
+  }
+
+  /** Returns the entry for the given file name, or null. */
+  Entry get(String name) {
+    for (Entry entry : entries) {
+      if (entry.name.equals(name))
+        return entry;
+    }
+    return null;
+  }
+
+  /** Adds the given entry, replacing any entry with the same name. */
+  void put(Entry entry) {
+    remove(entry.name);
+    entries.add(entry);
+  }
+
+  /** Removes the entry for the given file name, if any. */
+  void remove(String name) {
+    for (int i = 0; i < entries.size(); ++i) {
+      if (entries.get(i).name.equals(name)) {
+        entries.remove(i);
+        return;
+      }
+    }
+  }
+
+  /** Returns the restore points, oldest first. */
+  List<Entry> getRestorePoints() {
+    ArrayList<Entry> list = new ArrayList<Entry>(entries.size());
+    for (Entry entry : entries) {
+      if (entry.name.startsWith(FileUtils.RP_PREFIX))
+        list.add(entry);
+    }
+
+    Collections.sort(list, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry lhs, Entry rhs) {
+        return lhs.time < rhs.time ? -1 : (lhs.time == rhs.time ? 0 : 1);
+      }
+    });
+    return list;
+  }
+}
@@ -16,6 +16,7 @@ package net.tawacentral.roger.secrets;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import javax.crypto.Cipher;
 
@@ -24,6 +25,8 @@ import android.app.backup.BackupManager;
 import android.content.Context;
 import android.content.Intent;
 import android.os.IBinder;
+import android.os.SystemClock;
+import android.util.Log;
 
 /**
  * A background service to save the secrets to a file.  This is done as a
@@ -33,13 +36,57 @@ import android.os.IBinder;
  * UI activities, so any lengthy task still needs to be performed in a
  * separate thread.
  *
+ * All saves are written by a single writer thread, one at a time.  Requests
+ * go through a one slot mailbox: a new request replaces any request that the
+ * writer has not started yet, so only the latest state of the vault is
+ * written.  The writer also waits DEBOUNCE_MS after the latest request before
+ * starting, so that a burst of requests, for example from rapid pause/resume
+ * cycles, results in one write.  A save that is already being written is
+ * always completed.  The writer exits, and the service stops, when the
+ * mailbox is empty.
+ *
+ * Saves are skipped when nothing changed since the last successful save.  The
+ * service remembers which secrets were saved, in order, along with the
+ * revision of each one, see Secret.getRevision().  The vault is clean if the
+ * same secret objects are being saved, in the same order, none of them has
+ * been modified since, and the cipher is unchanged.  Inserting, deleting,
+ * removing, syncing or restoring secrets changes the list, and modifying a
+ * secret, including adding to its access log, changes its revision, so all of
+ * these cause the next save to happen.  While a save is being written, new
+ * requests are compared with the state it writes instead.  A skipped request
+ * also drops any pending one, since the vault is back to the saved state, for
+ * example after a change was undone.
+ *
  * @author rogerta
  */
 public class SaveService extends Service {
-  private static ArrayList<Secret> secrets;
-  private static Cipher cipher;
-  private static byte[] salt;
-  private static int rounds;
+  /** Tag for logging purposes. */
+  public static final String LOG_TAG = "SaveService";
+
+  /** Time to wait for more requests before writing, in milliseconds. */
+  private static final long DEBOUNCE_MS = 500;
+
+  // The latest request not yet taken by the writer, and when it is due.
+  private static Request pending;
+  private static long pendingDue;
+
+  // The writer thread, or null if it is not running.
+  private static Thread writer;
+
+  // The running service and its latest start id, used to stop it when the
+  // writer has nothing left to do.
+  private static SaveService service;
+  private static int lastStartId;
+
+  // State of the vault as of the last successful save, and the state being
+  // written by the writer, if any.
+  private static Snapshot saved;
+  private static Snapshot writing;
+
+  // Counts of the saves requested, for instrumentation.
+  private static int savesPerformed;
+  private static int savesSkipped;
+  private static int savesCoalesced;
 
   private BackupManager backupManager;
 
@@ -57,15 +104,103 @@ public class SaveService extends Service {
                                           Cipher cipher,
                                           byte[] salt,
                                           int rounds) {
-    SaveService.secrets = secrets;
-    SaveService.cipher = cipher;
-    SaveService.salt = salt;
-    SaveService.rounds = rounds;
+    if (null == secrets || null == cipher)
+      return;
+
+    // Copy the list, since the caller may keep modifying it while the save
+    // waits in the mailbox.
+    secrets = new ArrayList<Secret>(secrets);
+    Snapshot snapshot = new Snapshot(secrets, cipher, salt, rounds);
+    if (snapshot.equals(null != writing ? writing : saved)) {
+      // A pending save of another state is now out of date, for example if
+      // a change was undone before it was written, so it is dropped too.
+      if (null != pending) {
+        dropPending();
+        ++savesCoalesced;
+      }
+      ++savesSkipped;
+      Log.d(LOG_TAG, "SaveService.execute: skipped, nothing changed (" +
+            getCounts() + ")");
+      return;
+    }
+
+    if (null != pending) {
+      dropPending();
+      ++savesCoalesced;
+      Log.d(LOG_TAG, "SaveService.execute: replaced pending save (" +
+            getCounts() + ")");
+    }
+
+    // The key is captured now, since the ciphers may be cleared before the
+    // save is written.
+    pending = new Request(secrets, cipher, SecurityUtils.getKey(cipher), salt,
+                          rounds, snapshot);
+    pendingDue = SystemClock.uptimeMillis() + DEBOUNCE_MS;
+    SaveService.class.notifyAll();
 
     Intent intent = new Intent(context, SaveService.class);
     context.startService(intent);
   }
 
+  /**
+   * Records that the given secrets are already saved in the secrets file with
+   * the given cipher, for example because they were just loaded from it.
+   */
+  public static synchronized void setSaved(ArrayList<Secret> secrets,
+                                           Cipher cipher,
+                                           byte[] salt,
+                                           int rounds) {
+    saved = new Snapshot(secrets, cipher, salt, rounds);
+  }
+
+  /** Forgets the last saved state, so that the next save is not skipped. */
+  public static synchronized void clearSaved() {
+    saved = null;
+  }
+
+  /** Returns the number of saves written since the process started. */
+  public static synchronized int getSavesPerformed() {
+    return savesPerformed;
+  }
+
+  /** Returns the number of saves skipped because nothing had changed. */
+  public static synchronized int getSavesSkipped() {
+    return savesSkipped;
+  }
+
+  /**
+   * Returns the number of saves dropped because a newer request replaced them
+   * before they were written.
+   */
+  public static synchronized int getSavesCoalesced() {
+    return savesCoalesced;
+  }
+
+  /**
+   * Forgets the last saved state, drops any pending save and zeroes the
+   * counts.  Used by tests, which run without the service.
+   */
+  static synchronized void reset() {
+    pending = null;
+    saved = null;
+    writing = null;
+    savesPerformed = 0;
+    savesSkipped = 0;
+    savesCoalesced = 0;
+  }
+
+  /** Drops the pending request, clearing its copy of the key. */
+  private static void dropPending() {
+    if (null != pending.key)
+      Arrays.fill(pending.key, (byte) 0);
+    pending = null;
+  }
+
+  private static String getCounts() {
+    return savesPerformed + " performed, " + savesSkipped + " skipped, " +
+        savesCoalesced + " coalesced";
+  }
+
   /**
    * Constructor
    */
@@ -88,36 +223,158 @@ public class SaveService extends Service {
   }
 
   @Override
-  public int onStartCommand(Intent intent, int flags, final int startId) {
+  public int onStartCommand(Intent intent, int flags, int startId) {
     synchronized (SaveService.class) {
-      final ArrayList<Secret> secrets = SaveService.secrets;
-      final Cipher cipher = SaveService.cipher;
-      final File file = getFileStreamPath(FileUtils.SECRETS_FILE_NAME);
-      final byte[] salt = SaveService.salt;
-      final int rounds = SaveService.rounds;
-
-      SaveService.secrets = null;
-      SaveService.cipher = null;
-      SaveService.salt = null;
-      SaveService.rounds = 0;
-
-      if (null != secrets && null != cipher) {
-        new Thread(new Runnable() {
+      service = this;
+      lastStartId = startId;
+
+      if (null != writer) {
+        // The running writer will pick up the pending request.
+      } else if (null != pending) {
+        writer = new Thread(new Runnable() {
           @Override
           public void run() {
-            int r = FileUtils.saveSecrets(SaveService.this, file, cipher,
-                                          salt, rounds, secrets);
-
-            // If the save was successful, schedule a backup.
-            if (0 == r)
-              backupManager.dataChanged();
-
-            stopSelf(startId);
-          }}, "saveSecrets").start();
+            write();
+          }}, "saveSecrets");
+        writer.start();
       } else {
         stopSelf(startId);
       }
     }
     return START_STICKY;
   }
+
+  /** The body of the writer thread. */
+  private static void write() {
+    for (;;) {
+      Request request;
+      SaveService target;
+      synchronized (SaveService.class) {
+        for (;;) {
+          if (null == pending) {
+            writer = null;
+            service.stopSelf(lastStartId);
+            return;
+          }
+
+          long delay = pendingDue - SystemClock.uptimeMillis();
+          if (delay <= 0)
+            break;
+
+          try {
+            SaveService.class.wait(delay);
+          } catch (InterruptedException ex) {
+          }
+        }
+
+        request = pending;
+        pending = null;
+        writing = request.snapshot;
+        target = service;
+      }
+
+      File file = target.getFileStreamPath(FileUtils.SECRETS_FILE_NAME);
+      int r = FileUtils.saveSecretsIncrementally(target, file, request.cipher,
+                                                 request.key, request.salt,
+                                                 request.rounds,
+                                                 request.secrets);
+
+      // If the save was successful, schedule a backup.
+      boolean isIdle = false;
+      synchronized (SaveService.class) {
+        writing = null;
+        if (0 == r) {
+          saved = request.snapshot;
+          ++savesPerformed;
+          isIdle = null == pending;
+          Log.d(LOG_TAG, "SaveService: saved (" + getCounts() + ")");
+        } else {
+          // The file may hold neither state now.
+          saved = null;
+        }
+      }
+      if (0 == r)
+        target.backupManager.dataChanged();
+
+      // Fold a large journal into a new secrets file while nothing else is
+      // waiting to be saved, so that saves themselves stay small.
+      if (isIdle && FileUtils.compactSecrets(target, file, request.cipher,
+                                             request.key, request.salt,
+                                             request.rounds,
+                                             request.secrets)) {
+        target.backupManager.dataChanged();
+      }
+
+      if (null != request.key)
+        Arrays.fill(request.key, (byte) 0);
+    }
+  }
+
+  /** A request to save the secrets, waiting in the mailbox. */
+  private static final class Request {
+    final ArrayList<Secret> secrets;
+    final Cipher cipher;
+    final byte[] key;
+    final byte[] salt;
+    final int rounds;
+    final Snapshot snapshot;
+
+    Request(ArrayList<Secret> secrets, Cipher cipher, byte[] key, byte[] salt,
+            int rounds, Snapshot snapshot) {
+      this.secrets = secrets;
+      this.cipher = cipher;
+      this.key = key;
+      this.salt = salt;
+      this.rounds = rounds;
+      this.snapshot = snapshot;
+    }
+  }
+
+  /**
+   * The state of the vault at the time a save was requested.  Only the
+   * identity and revision of each secret are kept, so this is cheap to build
+   * and compare compared to writing the file.
+   */
+  private static final class Snapshot {
+    private final Secret[] secrets;
+    private final int[] revisions;
+    private final Cipher cipher;
+    private final byte[] salt;
+    private final int rounds;
+
+    Snapshot(ArrayList<Secret> secrets, Cipher cipher, byte[] salt,
+             int rounds) {
+      this.secrets = secrets.toArray(new Secret[secrets.size()]);
+      this.revisions = new int[this.secrets.length];
+      for (int i = 0; i < this.secrets.length; ++i)
+        revisions[i] = this.secrets[i].getRevision();
+      this.cipher = cipher;
+      this.salt = null == salt ? null : salt.clone();
+      this.rounds = rounds;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Snapshot))
+        return false;
+
+      Snapshot other = (Snapshot) o;
+      if (cipher != other.cipher || rounds != other.rounds ||
+          !Arrays.equals(salt, other.salt) ||
+          secrets.length != other.secrets.length)
+        return false;
+
+      for (int i = 0; i < secrets.length; ++i) {
+        if (secrets[i] != other.secrets[i] ||
+            revisions[i] != other.revisions[i])
+          return false;
+      }
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(revisions);
+    }
+  }
 }
@@ -15,7 +15,10 @@
 package net.tawacentral.roger.secrets;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -65,6 +68,17 @@ public class Secret implements Comparable<Secret>, Serializable {
   /* soft deletion indicator */
   private boolean deleted;
 
+  /* incremented each time the secret is modified, never saved */
+  private transient int revision;
+
+  /*
+   * If not null, the password, note and access log have not been decrypted
+   * yet and are read from this record when needed.  Cleared as soon as the
+   * secret is modified.  Volatile since it is read by the save thread, which
+   * must then also see the fields copied from the record.
+   */
+  private transient volatile IndexedSecretsFile.Record record;
+
   /**
    * An immutable class that represents one entry in the access log.  Each
    * time the password is viewed or modified, the access log is updated with
@@ -154,6 +168,23 @@ public class Secret implements Comparable<Secret>, Serializable {
     access_log.add(new LogEntry());
   }
 
+  /**
+   * Creates a secret from an entry of the index of an indexed secrets file.
+   * Only the fields stored in the index are set, the others are decrypted
+   * from the record when first needed.
+   */
+  static Secret fromIndex(String description, String username, String email,
+                          boolean deleted, IndexedSecretsFile.Record record) {
+    Secret secret = new Secret();
+    secret.description = description;
+    secret.username = username;
+    secret.email = email;
+    secret.deleted = deleted;
+    secret.access_log = null;
+    secret.record = record;
+    return secret;
+  }
+
   /**
    * This method exists only to recover from a corrupted save file.  As each
    * secret is successfully read, it is added to a global array.  If the save
@@ -173,15 +204,78 @@ public class Secret implements Comparable<Secret>, Serializable {
     stream.defaultReadObject();
   }
 
+  private void writeObject(ObjectOutputStream stream) throws IOException {
+    // The record is not serialized, so the fields it holds must be loaded.
+    materialize();
+    stream.defaultWriteObject();
+  }
+
+  /**
+   * Returns the secret holding the password, note and access log of this
+   * secret.  This is either the secret itself, or a shared copy decrypted from
+   * its record, which must not be modified.
+   *
+   * @throws IllegalStateException if the record cannot be decrypted.
+   */
+  private Secret body() {
+    // Read the record once, it may be cleared by materialize() at any time.
+    IndexedSecretsFile.Record record = this.record;
+    return null == record ? this : record.load();
+  }
+
+  /**
+   * Decrypts the fields of this secret that are not loaded yet, so that it
+   * can be modified.
+   *
+   * @throws IllegalStateException if the record cannot be decrypted.  The
+   *     secret is then left as it is, and still refers to its record.
+   */
+  private void materialize() {
+    IndexedSecretsFile.Record record = this.record;
+    if (null != record) {
+      Secret body = record.load();
+      password = body.password;
+      note = body.note;
+      access_log = new ArrayList<LogEntry>(body.access_log);
+      this.record = null;
+    }
+  }
+
+  /**
+   * Can the password, note and access log of this secret be decrypted?  If
+   * not, its record in the secrets file is damaged, and the secret cannot be
+   * shown or modified.  It is still saved unchanged.
+   */
+  public boolean isReadable() {
+    try {
+      body();
+      return true;
+    } catch (IllegalStateException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns the record this secret can be decrypted from, or null if it was
+   * modified since it was loaded or was not loaded from an indexed file.
+   */
+  IndexedSecretsFile.Record getRecord() {
+    return record;
+  }
+
   public void setDescription(String description) {
+    materialize();
     this.description = description;
+    ++revision;
   }
   public String getDescription() {
     return description;
   }
 
   public void setUsername(String username) {
+    materialize();
     this.username = username;
+    ++revision;
   }
 
   public String getUsername() {
@@ -197,11 +291,13 @@ public class Secret implements Comparable<Secret>, Serializable {
    *                              do nothing
    */
   public void setPassword(String password, boolean createDefaultLogEntry) {
+    materialize();
     if (createDefaultLogEntry) {
       createLogEntry(LogEntry.CHANGED);
     }
 
     this.password = password;
+    ++revision;
   }
 
   /**
@@ -230,6 +326,7 @@ public class Secret implements Comparable<Secret>, Serializable {
       return;
     }
 
+    materialize();
     long now = System.currentTimeMillis();
     if (type == LogEntry.VIEWED || type == LogEntry.CHANGED) {
       LogEntry lastEntry = access_log.get(0);
@@ -243,6 +340,7 @@ public class Secret implements Comparable<Secret>, Serializable {
 
     access_log.add(0, new LogEntry(type, now));
     pruneAccessLog();
+    ++revision;
   }
 
   /**
@@ -257,8 +355,23 @@ public class Secret implements Comparable<Secret>, Serializable {
     return password;
   }
 
+  /**
+   * Gets the password to write it to an export, without updating the access
+   * log.  Once the secret is written, the export is logged with setExported().
+   */
+  String getPasswordForExport() {
+    return body().password;
+  }
+
+  /** Adds an EXPORTED entry to the access log. */
+  void setExported() {
+    createLogEntry(LogEntry.EXPORTED);
+  }
+
   public void setEmail(String email) {
+    materialize();
     this.email = email;
+    ++revision;
   }
 
   public String getEmail() {
@@ -266,11 +379,13 @@ public class Secret implements Comparable<Secret>, Serializable {
   }
 
   public void setNote(String note) {
+    materialize();
     this.note = note;
+    ++revision;
   }
 
   public String getNote() {
-    return note;
+    return body().note;
   }
 
 	/**
@@ -284,6 +399,7 @@ public class Secret implements Comparable<Secret>, Serializable {
    * Set the secret as deleted
    */
   public void setDeleted() {
+    materialize();
     deleted = true;
     createLogEntry(LogEntry.DELETED);
   }
@@ -297,10 +413,11 @@ public class Secret implements Comparable<Secret>, Serializable {
 	  if (!(reason == LogEntry.CHANGED || reason == LogEntry.SYNCED || equals(from)))
 	    return;
 
-		setPassword(from.password, false);
+		setPassword(from.body().password, false);
 		username = from.getUsername();
 		email = from.getEmail();
 		note = from.getNote();
+		++revision;
 		createLogEntry(reason);
 	}
 
@@ -310,17 +427,18 @@ public class Secret implements Comparable<Secret>, Serializable {
    * @throws JSONException
    */
   public JSONObject toJSON() throws JSONException {
+    Secret body = body();
     JSONObject jsonSecret = new JSONObject();
     jsonSecret.put(SECRET_DESCRIPTION, description);
     jsonSecret.put(SECRET_USERNAME, username);
-    jsonSecret.put(SECRET_PASSWORD, password);
+    jsonSecret.put(SECRET_PASSWORD, body.password);
     jsonSecret.put(SECRET_EMAIL, email);
-    jsonSecret.put(SECRET_NOTE, note);
+    jsonSecret.put(SECRET_NOTE, body.note);
     jsonSecret.put(SECRET_TIMESTAMP, getLastChangedTime());
     jsonSecret.put(SECRET_DELETED, deleted);
 
     JSONArray jsonLog = new JSONArray();
-    for (LogEntry logEntry : access_log) {
+    for (LogEntry logEntry : body.access_log) {
       jsonLog.put(logEntry.toJSON());
     }
     jsonSecret.put(SECRET_ACCESS_LOG, jsonLog);
@@ -370,11 +488,73 @@ public class Secret implements Comparable<Secret>, Serializable {
     return secret;
   }
 
+  /**
+   * Write this secret in the binary format (F4).  The access log is written as
+   * one type byte per entry followed by the difference between its time and
+   * the time of the previous entry, as a signed varint.
+   * @param output stream to write to
+   * @throws IOException
+   */
+  public void toBinary(OutputStream output) throws IOException {
+    Secret body = body();
+    BinaryCodec.writeString(output, description);
+    BinaryCodec.writeString(output, username);
+    BinaryCodec.writeString(output, body.password);
+    BinaryCodec.writeString(output, email);
+    BinaryCodec.writeString(output, body.note);
+    output.write(deleted ? 1 : 0);
+
+    List<LogEntry> log = body.access_log;
+    BinaryCodec.writeVarint(output, log.size());
+    long previous = 0;
+    for (int i = 0; i < log.size(); ++i) {
+      LogEntry entry = log.get(i);
+      output.write(entry.getType());
+      BinaryCodec.writeSignedVarint(output, entry.getTime() - previous);
+      previous = entry.getTime();
+    }
+  }
+
+  /**
+   * Read a secret written by toBinary()
+   * @param input stream to read from
+   * @return instance of a Secret
+   * @throws IOException
+   */
+  public static Secret fromBinary(InputStream input) throws IOException {
+    Secret secret = new Secret();
+    secret.description = BinaryCodec.readString(input);
+    secret.username = BinaryCodec.readString(input);
+    secret.password = BinaryCodec.readString(input);
+    secret.email = BinaryCodec.readString(input);
+    secret.note = BinaryCodec.readString(input);
+    secret.deleted = 0 != BinaryCodec.readByte(input);
+
+    int count = BinaryCodec.readVarint32(input);
+    ArrayList<LogEntry> log = new ArrayList<LogEntry>(Math.max(count, 1));
+    long time = 0;
+    for (int i = 0; i < count; ++i) {
+      int type = BinaryCodec.readByte(input);
+      time += BinaryCodec.readSignedVarint(input);
+      log.add(new LogEntry(type, time));
+    }
+
+    // As in fromJSON(), there must be at least a CREATED entry.
+    if (log.size() == 0) {
+      Log.w(LOG_TAG, "Empty access log for secret '" + secret.description
+                  + "'");
+      log.add(new LogEntry());
+    }
+    secret.access_log = log;
+
+    return secret;
+  }
+
   public String toString() {
     StringBuilder sb = new StringBuilder();
     sb.append("d=").append(description);
     sb.append(",u=").append(username);
-    sb.append(",p=").append(password);
+    sb.append(",p=").append(body().password);
     sb.append(",e=").append(email);
     return sb.toString();
   }
@@ -397,12 +577,21 @@ public class Secret implements Comparable<Secret>, Serializable {
     return description.compareToIgnoreCase(anotherSecret.description);
   }
 
+  /**
+   * Returns a number that changes each time this secret is modified, including
+   * when a new entry is added to its access log.  The revision is not saved, so
+   * it is only meaningful for the lifetime of this object.
+   */
+  int getRevision() {
+    return revision;
+  }
+
   /**
    * Get an unmodifiable list of access logs, in reverse chronological order,
    * for this secret.
    */
   public List<LogEntry> getAccessLog() {
-    return Collections.unmodifiableList(access_log);
+    return Collections.unmodifiableList(body().access_log);
   }
 
   /**
@@ -410,6 +599,9 @@ public class Secret implements Comparable<Secret>, Serializable {
    * secret.
    */
   public LogEntry getMostRecentAccess() {
+    IndexedSecretsFile.Record record = this.record;
+    if (null != record)
+      return record.getMostRecentAccess();
     return access_log.get(0);
   }
  
@@ -418,6 +610,7 @@ public class Secret implements Comparable<Secret>, Serializable {
    * @return long time
    */
   public long getLastChangedTime() {
+    List<LogEntry> access_log = body().access_log;
     for (int i = 0; i < access_log.size(); i++) {
       LogEntry entry = access_log.get(i);
       if (entry.getType() == LogEntry.CHANGED ||
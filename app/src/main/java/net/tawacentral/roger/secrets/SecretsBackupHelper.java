@@ -0,0 +1,566 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import android.app.backup.BackupDataInputStream;
+import android.app.backup.BackupDataOutput;
+import android.app.backup.BackupHelper;
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+/**
+ * Backs up the secrets file and journal to the online backup incrementally.
+ * FileBackupHelper sends the whole file each time it changes.  Since saving
+ * copies the encrypted records of unmodified secrets as is, most of the file
+ * is usually unchanged, only moved around.
+ *
+ * The files are split into chunks at positions chosen from their content with
+ * a rolling hash, so an edit only changes the chunks around it, even when it
+ * moves the rest of the file.  Each chunk is backed up as its own entity,
+ * keyed by its hash, and a manifest entity lists the chunks of each file.  The
+ * state descriptor holds the hash of the manifest and the hashes of the chunks
+ * already backed up, so only new chunks and a changed manifest are sent, and
+ * chunks no longer used are deleted.
+ *
+ * On restore, the chunks are stored in a private directory as they arrive,
+ * and the files are put back together from the manifest at the end.  The
+ * whole file hash in the manifest is checked before a file is replaced.
+ *
+ * Backups written by FileBackupHelper, which stored each file as an entity
+ * named after it, can still be restored.  The first incremental backup deletes
+ * those entities.
+ *
+ * The files are already encrypted, so neither the chunks nor the manifest
+ * reveal anything more than the file itself would.
+ */
+public class SecretsBackupHelper implements BackupHelper {
+  /** Tag for logging purposes. */
+  public static final String LOG_TAG = "SecretsBackupHelper";
+
+  private static final int STATE_SIGNATURE = 0x22345643;
+  private static final int MANIFEST_SIGNATURE = 0x2234564e;
+  private static final int VERSION = 1;
+
+  private static final String MANIFEST_KEY = "manifest";
+  private static final String CHUNK_KEY_PREFIX = "c_";
+  private static final String RESTORE_DIR = "backup_restore";
+
+  // Chunk sizes.  The rolling hash cuts a chunk on average every 2^AVG_BITS
+  // bytes, but never before MIN_CHUNK_SIZE or after MAX_CHUNK_SIZE.
+  static final int MIN_CHUNK_SIZE = 2 * 1024;
+  static final int MAX_CHUNK_SIZE = 64 * 1024;
+  private static final int AVG_BITS = 13;
+
+  /** Number of bytes of the SHA-256 of a chunk used as its id. */
+  private static final int CHUNK_ID_SIZE = 16;
+
+  /**
+   * Random values for the gear rolling hash, one per byte value.  They are
+   * generated from a fixed seed, and must never change, otherwise every chunk
+   * would be backed up again.
+   */
+  private static final long[] GEAR = new long[256];
+  static {
+    long seed = 0x5365637265747321L;
+    for (int i = 0; i < GEAR.length; ++i) {
+      // splitmix64
+      seed += 0x9e3779b97f4a7c15L;
+      long z = seed;
+      z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+      z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+      GEAR[i] = z ^ (z >>> 31);
+    }
+  }
+
+  private final Context context;
+  private final String[] files;
+
+  // Manifest received during a restore, or null.
+  private byte[] restoredManifest;
+
+  /** The chunks of one file, as listed in the manifest. */
+  static class FileChunks {
+    final String name;
+    final long length;
+    final byte[] hash;
+    final ArrayList<byte[]> ids = new ArrayList<byte[]>();
+
+    FileChunks(String name, long length, byte[] hash) {
+      this.name = name;
+      this.length = length;
+      this.hash = hash;
+    }
+  }
+
+  /**
+   * Receives each chunk of a file as it is cut.  The chunk is only valid for
+   * the duration of the call.
+   */
+  interface ChunkHandler {
+    void onChunk(byte[] id, byte[] data, int length) throws IOException;
+  }
+
+  /**
+   * Receives the entities of a backup, as BackupDataOutput does.  A
+   * BackupDataOutput can only be created by the backup manager, so the tests
+   * use a fake instead.
+   */
+  interface EntityOutput {
+    void writeEntityHeader(String key, int size) throws IOException;
+    void writeEntityData(byte[] data, int size) throws IOException;
+  }
+
+  /**
+   * Creates a helper that backs up the given files.
+   *
+   * @param context The backup agent.
+   * @param files Names of the files to back up, in the files directory.
+   */
+  public SecretsBackupHelper(Context context, String... files) {
+    this.context = context;
+    this.files = files;
+  }
+
+  @Override
+  public void performBackup(ParcelFileDescriptor oldState,
+                            final BackupDataOutput data,
+                            ParcelFileDescriptor newState) {
+    // The descriptors belong to the backup manager, so the streams are not
+    // closed.
+    InputStream oldInput = null == oldState ? null
+        : new FileInputStream(oldState.getFileDescriptor());
+    performBackup(oldInput, new EntityOutput() {
+      @Override
+      public void writeEntityHeader(String key, int size) throws IOException {
+        data.writeEntityHeader(key, size);
+      }
+
+      @Override
+      public void writeEntityData(byte[] bytes, int size) throws IOException {
+        data.writeEntityData(bytes, size);
+      }
+    }, new FileOutputStream(newState.getFileDescriptor()));
+  }
+
+  /**
+   * Backs up the files, see performBackup().
+   *
+   * @param oldState The state written by the previous backup, or null.
+   * @param data Receives the entities to back up.
+   * @param newState Receives the state of this backup.
+   */
+  void performBackup(InputStream oldState, EntityOutput data,
+                     OutputStream newState) {
+    Set<String> oldChunks = new HashSet<String>();
+    byte[] oldManifestHash = readState(oldState, oldChunks);
+
+    try {
+      // Legacy entities from FileBackupHelper are only deleted the first
+      // time, since they cannot exist once there is a state of our own.
+      if (null == oldManifestHash) {
+        for (String file : files)
+          data.writeEntityHeader(file, -1);
+      }
+
+      final EntityOutput output = data;
+      final Set<String> sent = oldChunks;
+      final Set<String> used = new HashSet<String>();
+      final int[] counts = new int[2];
+      ArrayList<FileChunks> manifest = new ArrayList<FileChunks>();
+      for (String name : files) {
+        File file = context.getFileStreamPath(name);
+        if (!file.exists())
+          continue;
+
+        manifest.add(chunkFile(file, new ChunkHandler() {
+          @Override
+          public void onChunk(byte[] id, byte[] chunk, int length)
+              throws IOException {
+            String key = CHUNK_KEY_PREFIX + toHex(id);
+            if (used.add(key) && !sent.contains(key)) {
+              output.writeEntityHeader(key, length);
+              output.writeEntityData(chunk, length);
+              ++counts[0];
+              counts[1] += length;
+            }
+          }
+        }));
+      }
+
+      byte[] manifestBytes = writeManifest(manifest);
+      byte[] manifestHash = sha256(manifestBytes, manifestBytes.length);
+      if (!Arrays.equals(manifestHash, oldManifestHash)) {
+        data.writeEntityHeader(MANIFEST_KEY, manifestBytes.length);
+        data.writeEntityData(manifestBytes, manifestBytes.length);
+      }
+
+      int deleted = 0;
+      for (String key : oldChunks) {
+        if (!used.contains(key)) {
+          data.writeEntityHeader(key, -1);
+          ++deleted;
+        }
+      }
+      Log.d(LOG_TAG, "performBackup: sent " + counts[0] + " chunks, " +
+            counts[1] + " bytes, deleted " + deleted + " chunks");
+
+      writeState(newState, manifestHash, used);
+    } catch (Exception ex) {
+      // Leave the new state empty, so that the next backup starts over.
+      Log.e(LOG_TAG, "performBackup", ex);
+    }
+  }
+
+  @Override
+  public void restoreEntity(BackupDataInputStream data) {
+    restoreEntity(data.getKey(), data.size(), data);
+  }
+
+  /** Restores one entity of size bytes read from data. */
+  void restoreEntity(String key, int size, InputStream data) {
+    try {
+      if (MANIFEST_KEY.equals(key)) {
+        restoredManifest = readFully(data, size);
+      } else if (key.startsWith(CHUNK_KEY_PREFIX)) {
+        File chunk = new File(getRestoreDir(), key);
+        copyToFile(data, size, chunk);
+      } else if (Arrays.asList(files).contains(key)) {
+        // A whole file, backed up by FileBackupHelper.
+        copyToFile(data, size, context.getFileStreamPath(key));
+      } else {
+        Log.d(LOG_TAG, "restoreEntity: unknown key " + key);
+      }
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "restoreEntity", ex);
+    }
+  }
+
+  /**
+   * Called once all entities are restored.  The files are put back together
+   * from their chunks here, and the state is written so that the next backup
+   * only sends what changes after the restore.
+   */
+  @Override
+  public void writeNewStateDescription(ParcelFileDescriptor newState) {
+    writeNewStateDescription(
+        new FileOutputStream(newState.getFileDescriptor()));
+  }
+
+  /** Finishes the restore, see writeNewStateDescription(). */
+  void writeNewStateDescription(OutputStream newState) {
+    File dir = getRestoreDir();
+    try {
+      if (null == restoredManifest)
+        return;
+
+      Set<String> chunks = new HashSet<String>();
+      for (FileChunks file : readManifest(restoredManifest)) {
+        if (assembleFile(dir, file)) {
+          for (byte[] id : file.ids)
+            chunks.add(CHUNK_KEY_PREFIX + toHex(id));
+        }
+      }
+
+      writeState(newState, sha256(restoredManifest, restoredManifest.length),
+                 chunks);
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "writeNewStateDescription", ex);
+    } finally {
+      restoredManifest = null;
+      File[] leftovers = dir.listFiles();
+      if (null != leftovers) {
+        for (File file : leftovers)
+          file.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  /**
+   * Splits the file into chunks, handing each to the handler.
+   *
+   * @return The manifest entry of the file.
+   */
+  static FileChunks chunkFile(File file, ChunkHandler handler)
+      throws Exception {
+    MessageDigest whole = MessageDigest.getInstance("SHA-256");
+    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    ArrayList<byte[]> ids = new ArrayList<byte[]>();
+    byte[] chunk = new byte[MAX_CHUNK_SIZE];
+    long length = 0;
+
+    byte[] buffer = new byte[FileUtils.STREAM_BUFFER_SIZE];
+    InputStream input = new FileInputStream(file);
+    try {
+      int size = 0;
+      long hash = 0;
+      for (int n = input.read(buffer); n >= 0; n = input.read(buffer)) {
+        for (int i = 0; i < n; ++i) {
+          int b = buffer[i] & 0xff;
+          chunk[size++] = (byte) b;
+          hash = (hash << 1) + GEAR[b];
+
+          // The top bits of the hash depend on the last 64 bytes.
+          if (size == MAX_CHUNK_SIZE ||
+              (size >= MIN_CHUNK_SIZE && 0 == (hash >>> (64 - AVG_BITS)))) {
+            emitChunk(digest, whole, chunk, size, ids, handler);
+            length += size;
+            size = 0;
+            hash = 0;
+          }
+        }
+      }
+      if (size > 0) {
+        emitChunk(digest, whole, chunk, size, ids, handler);
+        length += size;
+      }
+    } finally {
+      try {input.close();} catch (IOException ex) {}
+    }
+
+    FileChunks result = new FileChunks(file.getName(), length, whole.digest());
+    result.ids.addAll(ids);
+    return result;
+  }
+
+  private static void emitChunk(MessageDigest digest, MessageDigest whole,
+                                byte[] chunk, int size, ArrayList<byte[]> ids,
+                                ChunkHandler handler) throws IOException {
+    whole.update(chunk, 0, size);
+    digest.update(chunk, 0, size);
+    byte[] id = Arrays.copyOf(digest.digest(), CHUNK_ID_SIZE);
+    ids.add(id);
+    handler.onChunk(id, chunk, size);
+  }
+
+  /**
+   * Puts a file back together from its chunks in dir, checks it against the
+   * manifest, and moves it into place.
+   *
+   * @return True if the file was restored.
+   */
+  private boolean assembleFile(File dir, FileChunks file) throws Exception {
+    if (!Arrays.asList(files).contains(file.name)) {
+      Log.d(LOG_TAG, "assembleFile: unknown file " + file.name);
+      return false;
+    }
+
+    File target = context.getFileStreamPath(file.name);
+    File temp = new File(dir, file.name);
+    MessageDigest whole = MessageDigest.getInstance("SHA-256");
+    OutputStream output = new BufferedOutputStream(new FileOutputStream(temp),
+        FileUtils.STREAM_BUFFER_SIZE);
+    long length = 0;
+    try {
+      byte[] buffer = new byte[FileUtils.STREAM_BUFFER_SIZE];
+      for (byte[] id : file.ids) {
+        File chunk = new File(dir, CHUNK_KEY_PREFIX + toHex(id));
+        InputStream input = new FileInputStream(chunk);
+        try {
+          for (int n = input.read(buffer); n >= 0; n = input.read(buffer)) {
+            output.write(buffer, 0, n);
+            whole.update(buffer, 0, n);
+            length += n;
+          }
+        } finally {
+          try {input.close();} catch (IOException ex) {}
+        }
+      }
+    } finally {
+      output.close();
+    }
+
+    if (length != file.length || !Arrays.equals(whole.digest(), file.hash)) {
+      Log.d(LOG_TAG, "assembleFile: " + file.name + " does not match");
+      temp.delete();
+      return false;
+    }
+
+    if (!temp.renameTo(target)) {
+      Log.d(LOG_TAG, "assembleFile: could not move " + file.name);
+      temp.delete();
+      return false;
+    }
+    return true;
+  }
+
+  private static byte[] writeManifest(ArrayList<FileChunks> manifest)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    output.writeInt(MANIFEST_SIGNATURE);
+    output.writeInt(VERSION);
+    output.writeInt(manifest.size());
+    for (FileChunks file : manifest) {
+      output.writeUTF(file.name);
+      output.writeLong(file.length);
+      output.write(file.hash);
+      output.writeInt(file.ids.size());
+      for (byte[] id : file.ids)
+        output.write(id);
+    }
+    output.flush();
+    return bytes.toByteArray();
+  }
+
+  private static ArrayList<FileChunks> readManifest(byte[] bytes)
+      throws IOException {
+    DataInputStream input = new DataInputStream(
+        new ByteArrayInputStream(bytes));
+    if (MANIFEST_SIGNATURE != input.readInt() || VERSION != input.readInt())
+      throw new IOException("Unknown manifest");
+
+    int count = input.readInt();
+    ArrayList<FileChunks> manifest = new ArrayList<FileChunks>(count);
+    for (int i = 0; i < count; ++i) {
+      String name = input.readUTF();
+      long length = input.readLong();
+      byte[] hash = new byte[32];
+      input.readFully(hash);
+      FileChunks file = new FileChunks(name, length, hash);
+      int chunks = input.readInt();
+      for (int j = 0; j < chunks; ++j) {
+        byte[] id = new byte[CHUNK_ID_SIZE];
+        input.readFully(id);
+        file.ids.add(id);
+      }
+      manifest.add(file);
+    }
+    return manifest;
+  }
+
+  /**
+   * Reads the state written by writeState() into chunks.
+   *
+   * @return The hash of the manifest backed up, or null if there is no usable
+   *     state, for example on the first backup.
+   */
+  private static byte[] readState(InputStream state, Set<String> chunks) {
+    if (null == state)
+      return null;
+
+    try {
+      DataInputStream input = new DataInputStream(
+          new BufferedInputStream(state));
+      if (STATE_SIGNATURE != input.readInt() || VERSION != input.readInt())
+        return null;
+
+      byte[] manifestHash = new byte[32];
+      input.readFully(manifestHash);
+      int count = input.readInt();
+      byte[] id = new byte[CHUNK_ID_SIZE];
+      for (int i = 0; i < count; ++i) {
+        input.readFully(id);
+        chunks.add(CHUNK_KEY_PREFIX + toHex(id));
+      }
+      return manifestHash;
+    } catch (Exception ex) {
+      // Not ours, for example the state of FileBackupHelper.
+      Log.d(LOG_TAG, "readState: no usable state");
+      chunks.clear();
+      return null;
+    }
+  }
+
+  private static void writeState(OutputStream state, byte[] manifestHash,
+                                 Set<String> chunks) throws IOException {
+    DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(state));
+    output.writeInt(STATE_SIGNATURE);
+    output.writeInt(VERSION);
+    output.write(manifestHash);
+    output.writeInt(chunks.size());
+    for (String key : chunks)
+      output.write(fromHex(key.substring(CHUNK_KEY_PREFIX.length())));
+    output.flush();
+  }
+
+  private File getRestoreDir() {
+    return context.getDir(RESTORE_DIR, Context.MODE_PRIVATE);
+  }
+
+  private static byte[] readFully(InputStream input, int size)
+      throws IOException {
+    byte[] bytes = new byte[size];
+    new DataInputStream(input).readFully(bytes);
+    return bytes;
+  }
+
+  /** Copies size bytes of input to the file, replacing it in one rename. */
+  private static void copyToFile(InputStream input, int size, File file)
+      throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+    OutputStream output = new FileOutputStream(temp);
+    try {
+      byte[] buffer = new byte[FileUtils.STREAM_BUFFER_SIZE];
+      while (size > 0) {
+        int n = input.read(buffer, 0, Math.min(buffer.length, size));
+        if (n < 0)
+          throw new IOException("Entity is truncated");
+        output.write(buffer, 0, n);
+        size -= n;
+      }
+    } finally {
+      output.close();
+    }
+
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Could not move " + file.getName());
+    }
+  }
+
+  private static byte[] sha256(byte[] data, int length) throws Exception {
+    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    digest.update(data, 0, length);
+    return digest.digest();
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder builder = new StringBuilder(2 * bytes.length);
+    for (byte b : bytes) {
+      builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+      builder.append(Character.forDigit(b & 0xf, 16));
+    }
+    return builder.toString();
+  }
+
+  private static byte[] fromHex(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; ++i) {
+      bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,586 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Imports secrets from a CSV file, one chunk at a time, so that very large
+ * exports from other password managers can be imported in a background
+ * thread with progress reports and the option to cancel.
+ *
+ * The file is split into chunks of about CHUNK_SIZE bytes that hold whole
+ * records, see Splitter.  The chunks are parsed into secrets and sorted on a
+ * pool with one thread per core, at most two chunks per thread at a time, and
+ * the results are collected in the order of the chunks.  Android 2.3 does not
+ * have a fork-join pool, so a plain thread pool is used, as in ChunkedCipher.
+ *
+ * The sorted chunks are kept as a stack of runs, where each run is more than
+ * twice as long as the one above it, and two runs are merged as soon as that
+ * is no longer true.  The merges are also done on the pool, so that the
+ * thread reading the file only splits it.  The secrets are therefore sorted as
+ * they are read, in n log n time overall, and only a few chunks of the file
+ * are in memory besides the secrets themselves.  Runs are merged in file
+ * order, so secrets with the same description keep the order of the file.
+ * Once the whole file is read, the runs are merged into the single sorted list
+ * returned by run(), which can then be merged into the vault in one pass, see
+ * SecretsListAdapter.insertAll().
+ *
+ * See FileUtils.importSecrets() for the file formats supported.
+ */
+public class SecretsImporter {
+  /** Tag for logging purposes. */
+  public static final String LOG_TAG = "SecretsImporter";
+
+  /** Size of the chunks of the file parsed in parallel, in bytes. */
+  static final int CHUNK_SIZE = 256 * 1024;
+
+  private static final String EMPTY_STRING = "";
+
+  /** Receives the progress of an import. */
+  public interface Listener {
+    /**
+     * Called from the importing thread after each chunk of the file.
+     *
+     * @param importer The importer, to query the progress.
+     */
+    void onProgress(SecretsImporter importer);
+  }
+
+  private final File file;
+  private final byte[] key;
+  private final Listener listener;
+  private final long length;
+
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private volatile boolean cancelled;
+  private volatile int rows;
+  private volatile long bytesRead;
+  private volatile long elapsed;
+  private boolean complete;
+
+  // Sorted runs of secrets, longest first, and the pool that parses and
+  // merges them, if there is more than one thread.
+  private final ArrayList<Run> runs = new ArrayList<Run>();
+  private ThreadPoolExecutor executor;
+
+  /**
+   * Creates an importer for the given file.
+   *
+   * @param file File to import.
+   * @param key The raw key of the vault, see SecurityUtils.getKey(), used if
+   *     the file is an encrypted export, or null.  The importer clears it
+   *     once the file is read.
+   * @param listener Listener for progress reports, or null.
+   */
+  public SecretsImporter(File file, byte[] key, Listener listener) {
+    this.file = file;
+    this.key = key;
+    this.listener = listener;
+    this.length = file.length();
+  }
+
+  /**
+   * Sets the number of threads used to parse the file.  The default is one
+   * per core.  With one thread, the file is parsed in the calling thread.
+   */
+  public void setThreads(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * Asks the import to stop.  This can be called from any thread, and run()
+   * returns null shortly after.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  /** Returns true if the import was cancelled. */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /** Returns the file being imported. */
+  public File getFile() {
+    return file;
+  }
+
+  /** Returns the number of rows imported so far, not counting the headers. */
+  public int getRows() {
+    return rows;
+  }
+
+  /** Returns how much of the file has been read so far, in percent. */
+  public int getPercent() {
+    return length <= 0 ? 0 : (int) Math.min(100, bytesRead * 100 / length);
+  }
+
+  /** Returns the number of rows imported per second so far. */
+  public long getRowsPerSecond() {
+    long ms = elapsed;
+    return ms <= 0 ? 0 : rows * 1000L / ms;
+  }
+
+  /**
+   * Returns true if the whole file was read and its format was recognized.
+   * Only meaningful once run() has returned.
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /**
+   * Reads the file.  This is meant to be called in a background thread.
+   *
+   * If there is an error while reading, the secrets read until then are
+   * returned and isComplete() returns false.
+   *
+   * @return The secrets read from the file, sorted, or null if the import
+   *     was cancelled.
+   */
+  public ArrayList<Secret> run() {
+    long start = SystemClock.uptimeMillis();
+    boolean success = false;
+    ArrayList<Secret> secrets = new ArrayList<Secret>();
+    InputStream input = null;
+
+    try {
+      input = open();
+      Splitter splitter = new Splitter(input);
+      if (threads > 1)
+        executor = newExecutor(threads);
+
+      // The first chunk is parsed here, since its first line determines the
+      // type of csv file.
+      Chunk first = splitter.next();
+      if (null != first) {
+        CsvTokenizer reader = first.newTokenizer();
+        CsvTokenizer.Row row = reader.next();
+        boolean isSecretsCsv = false;
+        boolean isOiSafeCsv = false;
+        if (null != row) {
+          String headers[] = row.toArray();
+          isSecretsCsv = FileUtils.isSecretsCsv(headers);
+          if (!isSecretsCsv)
+            isOiSafeCsv = FileUtils.isOiSafeCsv(headers);
+        }
+
+        // Chunks are added in order as they finish.  Chunks after one that
+        // ends with an error are dropped, but the rows read before the error
+        // are kept, as if the file had been read in one piece.
+        LinkedList<Future<Batch>> pending = new LinkedList<Future<Batch>>();
+        boolean failed = !addBatch(parse(reader, isOiSafeCsv), start);
+        while (!failed && !cancelled) {
+          final Chunk chunk = splitter.next();
+          if (null == chunk)
+            break;
+
+          final boolean oiSafe = isOiSafeCsv;
+          pending.add(submit(new Callable<Batch>() {
+            @Override
+            public Batch call() throws Exception {
+              return parse(chunk.newTokenizer(), oiSafe);
+            }
+          }));
+
+          // Wait if too many chunks are queued.
+          while (!failed && !pending.isEmpty() &&
+                 (pending.size() > 2 * threads ||
+                  pending.getFirst().isDone())) {
+            failed = !addBatch(await(pending.removeFirst()), start);
+          }
+        }
+
+        while (!failed && !cancelled && !pending.isEmpty())
+          failed = !addBatch(await(pending.removeFirst()), start);
+
+        while (!cancelled && runs.size() > 1)
+          mergeTop();
+        if (!cancelled && !runs.isEmpty())
+          secrets = await(runs.get(0).secrets);
+
+        success = !failed && (isOiSafeCsv || isSecretsCsv);
+      }
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "run", ex);
+    } finally {
+      if (null != executor)
+        executor.shutdownNow();
+      runs.clear();
+      try {if (null != input) input.close();} catch (IOException ex) {}
+      if (null != key)
+        Arrays.fill(key, (byte) 0);
+    }
+
+    if (cancelled) {
+      Log.d(LOG_TAG, "run: cancelled after " + rows + " rows");
+      return null;
+    }
+
+    complete = success;
+    report(start);
+    Log.d(LOG_TAG, "run: imported " + rows + " rows in " + elapsed + "ms, " +
+          getRowsPerSecond() + " rows/s, " + threads + " threads");
+    return secrets;
+  }
+
+  /** Opens the file, decrypting it if it is an encrypted export. */
+  private InputStream open() throws IOException {
+    InputStream input = new BufferedInputStream(new CountingInputStream(
+        new FileInputStream(file)), FileUtils.STREAM_BUFFER_SIZE);
+    if (FileUtils.isEncryptedExport(input)) {
+      // See FileUtils.exportSecrets().
+      FileUtils.SaltAndRounds pair = FileUtils.getSaltAndRounds(input);
+      if (null == pair.keyCheck || !pair.checkKey(key)) {
+        input.close();
+        throw new IOException("File is not encrypted with this key");
+      }
+      input = new ChunkedCipher(key).newInputStream(input);
+    }
+    return input;
+  }
+
+  /**
+   * Parses the records left in the given tokenizer into a sorted batch.  An
+   * error ends the batch, and the records before it are kept.
+   */
+  private static Batch parse(CsvTokenizer reader, boolean isOiSafeCsv) {
+    Batch batch = new Batch();
+    try {
+      for (CsvTokenizer.Row row = reader.next(); null != row;
+           row = reader.next()) {
+        batch.secrets.add(newSecret(row, isOiSafeCsv));
+      }
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "parse", ex);
+      batch.failed = true;
+    }
+
+    Collections.sort(batch.secrets);
+    return batch;
+  }
+
+  /**
+   * Pushes a parsed batch as a run and reports progress.
+   *
+   * @return False if the batch ended with an error.
+   */
+  private boolean addBatch(Batch batch, long start) {
+    final ArrayList<Secret> secrets = batch.secrets;
+    runs.add(new Run(submit(new Callable<ArrayList<Secret>>() {
+      @Override
+      public ArrayList<Secret> call() {
+        return secrets;
+      }
+    }), 1));
+    rows += secrets.size();
+
+    // Keep each run more than twice as long as the one above it, counting
+    // the chunks in each run, since their sizes may not be known yet.
+    for (int n = runs.size(); n > 1 &&
+         runs.get(n - 2).chunks <= 2 * runs.get(n - 1).chunks; --n) {
+      mergeTop();
+    }
+
+    report(start);
+    return !batch.failed;
+  }
+
+  /**
+   * Merges the two runs at the top of the stack.  The merge is done on the
+   * executor, once both runs are ready, so that it overlaps with the parsing
+   * of later chunks.  A merge only waits for tasks queued before it, so it
+   * cannot block the pool.
+   */
+  private void mergeTop() {
+    final Run upper = runs.remove(runs.size() - 1);
+    final Run lower = runs.remove(runs.size() - 1);
+    runs.add(new Run(submit(new Callable<ArrayList<Secret>>() {
+      @Override
+      public ArrayList<Secret> call() throws Exception {
+        return merge(await(lower.secrets), await(upper.secrets));
+      }
+    }), lower.chunks + upper.chunks));
+  }
+
+  /** Runs the task on the executor, or right away if there is none. */
+  private <T> Future<T> submit(Callable<T> task) {
+    if (null != executor)
+      return executor.submit(task);
+
+    FutureTask<T> future = new FutureTask<T>(task);
+    future.run();
+    return future;
+  }
+
+  /** Updates the counters and tells the listener. */
+  private void report(long start) {
+    elapsed = SystemClock.uptimeMillis() - start;
+    if (null != listener)
+      listener.onProgress(this);
+  }
+
+  private static ThreadPoolExecutor newExecutor(int threads) {
+    return new ThreadPoolExecutor(threads, threads, 5, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "importSecrets");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  /** Waits for a task, unwrapping any error it threw. */
+  private static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted");
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      throw new IOException("Task failed: " + cause);
+    }
+  }
+
+  /**
+   * Merges two sorted lists.  When secrets compare equal, those of first come
+   * before those of second.
+   */
+  static ArrayList<Secret> merge(List<Secret> first, List<Secret> second) {
+    ArrayList<Secret> merged = new ArrayList<Secret>(first.size() +
+                                                     second.size());
+    int i = 0;
+    int j = 0;
+    while (i < first.size() && j < second.size()) {
+      if (second.get(j).compareTo(first.get(i)) < 0) {
+        merged.add(second.get(j++));
+      } else {
+        merged.add(first.get(i++));
+      }
+    }
+    while (i < first.size())
+      merged.add(first.get(i++));
+    while (j < second.size())
+      merged.add(second.get(j++));
+    return merged;
+  }
+
+  /** Creates a secret from a row of the CSV file. */
+  static Secret newSecret(CsvTokenizer.Row row, boolean isOiSafeCsv) {
+    Secret secret = new Secret();
+    if (isOiSafeCsv) {
+      secret.setDescription(row.get(1));
+      secret.setUsername(row.get(3));
+      secret.setPassword(row.get(4), false);
+      secret.setEmail(EMPTY_STRING);
+
+      // I will combine the category, website, and notes columns into
+      // the notes field in secrets.
+      int approxMaxLength = row.length(0) + row.length(2) + row.length(5) + 32;
+      StringBuilder builder = new StringBuilder(approxMaxLength);
+      builder.append(row.get(5)).append("\n\n");
+      builder.append("Category: ").append(row.get(0)).append('\n');
+      if (row.length(2) > 0)
+        builder.append("Website: ").append(row.get(2)).append('\n');
+
+      secret.setNote(builder.toString());
+    } else {
+      // If we get here, then this may be an unknown format.  For better
+      // or for worse, this is a "best effort" to import that data.
+      secret.setDescription(row.get(0));
+      secret.setUsername(row.get(1));
+      secret.setPassword(row.get(2), false);
+      secret.setEmail(row.get(3));
+      secret.setNote(row.get(4));
+    }
+    return secret;
+  }
+
+  /** Sorted secrets from one or more consecutive chunks of the file. */
+  private static class Run {
+    final Future<ArrayList<Secret>> secrets;
+    final int chunks;
+
+    Run(Future<ArrayList<Secret>> secrets, int chunks) {
+      this.secrets = secrets;
+      this.chunks = chunks;
+    }
+  }
+
+  /** The secrets parsed from one chunk, sorted. */
+  private static class Batch {
+    final ArrayList<Secret> secrets = new ArrayList<Secret>();
+    boolean failed;
+  }
+
+  /** A piece of the file holding whole records. */
+  private static class Chunk {
+    final byte[] data;
+    final int length;
+
+    Chunk(byte[] data, int length) {
+      this.data = data;
+      this.length = length;
+    }
+
+    CsvTokenizer newTokenizer() throws IOException {
+      return new CsvTokenizer(new InputStreamReader(
+          new ByteArrayInputStream(data, 0, length), "UTF-8"));
+    }
+  }
+
+  /**
+   * Splits the file into chunks of about CHUNK_SIZE bytes that end between
+   * two records.  Finding where records end only needs to follow the quotes,
+   * which the splitter does the same way as CsvTokenizer: a quote only opens
+   * a quoted field at the start of the field, and inside a quoted field a
+   * quote either closes it or, if doubled, stands for one quote.  Separators,
+   * quotes and line breaks are all ASCII, so the UTF-8 bytes of the file can
+   * be scanned without decoding them.
+   */
+  private static class Splitter {
+    private static final int FIELD_START = 0;
+    private static final int UNQUOTED = 1;
+    private static final int QUOTED = 2;
+    private static final int QUOTED_QUOTE = 3;
+
+    private static final byte SEPARATOR = CsvTokenizer.DEFAULT_SEPARATOR;
+    private static final byte QUOTE = CsvTokenizer.DEFAULT_QUOTE;
+
+    private final InputStream input;
+    private byte[] buffer = new byte[CHUNK_SIZE];
+    private int length;    // Bytes in the buffer.
+    private int scanned;   // Bytes of the buffer already scanned.
+    private int boundary;  // End of the last whole record in the buffer.
+    private int state = FIELD_START;
+    private boolean eof;
+
+    Splitter(InputStream input) {
+      this.input = input;
+    }
+
+    /** Returns the next chunk, or null at the end of the file. */
+    Chunk next() throws IOException {
+      for (;;) {
+        while (!eof && length < buffer.length) {
+          int n = input.read(buffer, length, buffer.length - length);
+          if (n < 0) {
+            eof = true;
+          } else {
+            length += n;
+          }
+        }
+
+        if (eof)
+          return 0 == length ? null : take(length);
+
+        scan();
+        if (boundary > 0)
+          return take(boundary);
+
+        // One record is longer than the buffer.
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      }
+    }
+
+    /** Hands out the first end bytes, and keeps the rest for the next one. */
+    private Chunk take(int end) {
+      Chunk chunk = new Chunk(buffer, end);
+      byte[] rest = new byte[Math.max(CHUNK_SIZE, length - end)];
+      System.arraycopy(buffer, end, rest, 0, length - end);
+      buffer = rest;
+      length -= end;
+      scanned -= end;
+      boundary = 0;
+      return chunk;
+    }
+
+    /** Scans the new bytes of the buffer for the ends of records. */
+    private void scan() {
+      int s = state;
+      for (int i = scanned; i < length; ++i) {
+        byte b = buffer[i];
+        if (QUOTED == s) {
+          if (QUOTE == b)
+            s = QUOTED_QUOTE;
+        } else if (QUOTED_QUOTE == s && QUOTE == b) {
+          s = QUOTED;
+        } else if ('\n' == b || '\r' == b) {
+          s = FIELD_START;
+          boundary = i + 1;
+        } else if (SEPARATOR == b) {
+          s = FIELD_START;
+        } else if (FIELD_START == s && QUOTE == b) {
+          s = QUOTED;
+        } else {
+          s = UNQUOTED;
+        }
+      }
+      state = s;
+      scanned = length;
+    }
+  }
+
+  /** Counts the bytes read from the file, for progress reports. */
+  private class CountingInputStream extends FilterInputStream {
+    private final byte[] one = new byte[1];
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      return -1 == read(one, 0, 1) ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+      int n = in.read(buffer, offset, count);
+      if (n > 0)
+        bytesRead += n;
+      return n;
+    }
+  }
+}
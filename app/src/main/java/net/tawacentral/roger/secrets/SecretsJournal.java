@@ -0,0 +1,593 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.crypto.Cipher;
+
+import android.util.Log;
+
+/**
+ * An append-only journal of changes made to the secrets since the secrets file
+ * was last written.  This allows a save to write only the secrets that changed
+ * instead of re-encrypting the whole file.
+ *
+ * The secrets file written by FileUtils.saveSecrets() is the base snapshot.
+ * Only secrets files in the current format are journaled.  A file in an older
+ * format is rewritten in the current format by the first save.
+ * Each secret in the snapshot is identified by its position in the file.  New
+ * secrets are given the next unused id.  Each journal record is either a PUT,
+ * which replaces the secret with the given id, or a DELETE, which removes it.
+ * Loading replays the records over the snapshot.
+ *
+ * The journal file is laid out as follows:
+ *
+ *   - a signature, salt length, salt and rounds, like the secrets file
+ *   - any number of records, each an int length followed by a record sealed
+ *     with ChunkedCipher.sealRecord()
+ *
+ * Each record is sealed with its position in the journal as its index, so the
+ * MAC of a record covers where it is as well as what it holds.  Records cannot
+ * be modified, reordered, dropped from the middle or copied from another
+ * journal without detection.
+ *
+ * The first record, BEGIN, holds the length of the snapshot the journal
+ * applies to and the last bytes of that snapshot.  These tie a journal to one
+ * snapshot, since they depend on all of its contents: they are the end of the
+ * MAC of the index.  A journal that does not match the current snapshot, for
+ * example because the app died between writing a new snapshot and deleting
+ * the old journal, is ignored.
+ *
+ * The records written by one save end with a record flagged COMMIT.  Changes
+ * are only applied once their COMMIT record is read, so a save cut short, or
+ * a journal truncated in the middle of a save, never leaves half of a save
+ * applied.  The secrets are those of the last complete save instead.
+ *
+ * The journal is folded into a new snapshot, and deleted, once it grows past
+ * a threshold.  This is done by SaveService after the save that passed the
+ * threshold, see FileUtils.compactSecrets(), so that save stays cheap.  All
+ * methods must be called while holding the FileUtils lock.
+ */
+public class SecretsJournal {
+  /** Name of the journal file, next to the secrets file. */
+  public static final String JOURNAL_FILE_NAME = "journal";
+
+  /** Tag for logging purposes. */
+  public static final String LOG_TAG = "SecretsJournal";
+
+  private static final byte[] SIGNATURE = {0x22, 0x34, 0x56, 0x4a};
+
+  private static final int TAIL_SIZE = 16;
+
+  private static final int OP_PUT = 1;
+  private static final int OP_DELETE = 2;
+  private static final int OP_BEGIN = 3;
+
+  /** Set on the last record written by a save. */
+  private static final int FLAG_COMMIT = 0x80;
+
+  /** Journals are never allowed to grow larger than this. */
+  private static final long MAX_JOURNAL_SIZE = 1024 * 1024;
+
+  /**
+   * Journals smaller than this are never compacted, unless the snapshot is
+   * even smaller.
+   */
+  private static final long MIN_COMPACT_SIZE = 16 * 1024;
+
+  /** State of one secret, as of the last write to the snapshot or journal. */
+  private static class Entry {
+    final long id;
+    int revision;
+
+    Entry(long id, int revision) {
+      this.id = id;
+      this.revision = revision;
+    }
+  }
+
+  // Secrets as last persisted, keyed by object identity.  Secrets compare
+  // equal by description, so a regular map cannot be used.  Null means the
+  // state of the file is unknown and the next save must be a full save.
+  private static IdentityHashMap<Secret, Entry> entries;
+  private static long nextId;
+  private static Cipher cipher;
+  private static ChunkedCipher chunkedCipher;
+  private static byte[] salt;
+  private static int rounds;
+  private static long snapshotLength;
+  private static byte[] snapshotTail;
+  private static long journalLength;
+  // Number of records in the journal, which is also the index of the next
+  // record.  Zero if there is no journal yet.
+  private static long journalRecords;
+
+  /**
+   * Records that the given secrets were just written to the snapshot file.
+   * Any existing journal is deleted, since it no longer applies.
+   *
+   * @param snapshot The secrets file that was written.
+   * @param cipher The cipher used to encrypt the snapshot.
+   * @param key The raw key the cipher was created with, to seal the journal
+   *     records.  If null, there is no journal and every save is a full save.
+   * @param salt The salt used to create the cipher.
+   * @param rounds The number of rounds for bcrypt.
+   * @param secrets The secrets written to the snapshot, in order.
+   */
+  static void reset(File snapshot, Cipher cipher, byte[] key, byte[] salt,
+                    int rounds, ArrayList<Secret> secrets) {
+    File journal = getJournalFile(snapshot);
+    if (journal.exists() && !journal.delete()) {
+      Log.e(LOG_TAG, "reset: could not delete journal");
+      clear();
+      return;
+    }
+
+    if (null == key) {
+      clear();
+      return;
+    }
+
+    try {
+      setSnapshot(snapshot, cipher, key, salt, rounds);
+    } catch (IOException ex) {
+      Log.e(LOG_TAG, "reset", ex);
+      clear();
+      return;
+    }
+
+    entries = new IdentityHashMap<Secret, Entry>(secrets.size());
+    for (nextId = 0; nextId < secrets.size(); ++nextId) {
+      Secret secret = secrets.get((int) nextId);
+      entries.put(secret, new Entry(nextId, secret.getRevision()));
+    }
+  }
+
+  /** Forgets the persisted state, so that the next save is a full save. */
+  static void clear() {
+    entries = null;
+    nextId = 0;
+    cipher = null;
+    chunkedCipher = null;
+    salt = null;
+    rounds = 0;
+    snapshotLength = 0;
+    snapshotTail = null;
+    journalLength = 0;
+    journalRecords = 0;
+  }
+
+  /**
+   * Applies the journal, if any, to the secrets just read from the snapshot.
+   * If the journal is missing, does not belong to the snapshot or cannot be
+   * decrypted, the snapshot secrets are returned unchanged.
+   *
+   * @param snapshot The secrets file the secrets were read from.
+   * @param info The ciphers that decrypted the snapshot.
+   * @param secrets The secrets read from the snapshot, in order.
+   * @return The secrets with all journaled changes applied, sorted.
+   */
+  static ArrayList<Secret> replay(File snapshot, SecurityUtils.CipherInfo info,
+                                  ArrayList<Secret> secrets) {
+    clear();
+
+    TreeMap<Long, Secret> byId = new TreeMap<Long, Secret>();
+    for (int i = 0; i < secrets.size(); ++i)
+      byId.put(Long.valueOf(i), secrets.get(i));
+
+    long next = secrets.size();
+    boolean isComplete = true;
+    File journal = getJournalFile(snapshot);
+
+    if (null == info.key)
+      return secrets;
+
+    try {
+      setSnapshot(snapshot, info.encryptCipher, info.key, info.salt,
+                  info.rounds);
+    } catch (IOException ex) {
+      Log.e(LOG_TAG, "replay", ex);
+      return secrets;
+    }
+
+    if (journal.exists()) {
+      DataInputStream input = null;
+      try {
+        input = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(journal), FileUtils.STREAM_BUFFER_SIZE));
+        long length = readHeader(input);
+        if (length < 0) {
+          Log.w(LOG_TAG, "replay: journal does not match snapshot");
+          journal.delete();
+        } else {
+          journalLength = length;
+          journalRecords = 1;
+
+          // The changes of a save, applied when its COMMIT record is read.
+          ArrayList<Long> ids = new ArrayList<Long>();
+          ArrayList<Secret> puts = new ArrayList<Secret>();
+          for (long index = 1;; ++index) {
+            byte[] sealed = readSealed(input);
+            if (null == sealed)
+              break;
+
+            DataInputStream record = new DataInputStream(
+                new ByteArrayInputStream(chunkedCipher.openRecord(
+                    ByteBuffer.wrap(sealed), index)));
+            length += 4 + sealed.length;
+            int op = record.readUnsignedByte();
+            Long id = Long.valueOf(record.readLong());
+            if (OP_PUT == (op & ~FLAG_COMMIT)) {
+              ids.add(id);
+              puts.add(Secret.fromBinary(record));
+            } else if (OP_DELETE == (op & ~FLAG_COMMIT)) {
+              ids.add(id);
+              puts.add(null);
+            } else {
+              throw new IOException("Unknown journal operation " + op);
+            }
+
+            if (0 != (op & FLAG_COMMIT)) {
+              for (int i = 0; i < ids.size(); ++i) {
+                Long changed = ids.get(i);
+                if (null == puts.get(i)) {
+                  byId.remove(changed);
+                } else {
+                  byId.put(changed, puts.get(i));
+                }
+                next = Math.max(next, changed.longValue() + 1);
+              }
+              ids.clear();
+              puts.clear();
+              journalLength = length;
+              journalRecords = index + 1;
+            }
+          }
+
+          if (!ids.isEmpty())
+            throw new IOException("Journal ends in the middle of a save");
+        }
+      } catch (Exception ex) {
+        // Most likely a partial save written when the app was killed, or a
+        // damaged record.  Every complete save before it is still good.
+        // Force the next save to write a new snapshot, which discards the
+        // damaged journal.
+        Log.e(LOG_TAG, "replay: stopping at damaged record", ex);
+        isComplete = false;
+      } finally {
+        try {if (null != input) input.close();} catch (IOException ex) {}
+      }
+    }
+
+    ArrayList<Secret> replayed = new ArrayList<Secret>(byId.size());
+    IdentityHashMap<Secret, Entry> state =
+        new IdentityHashMap<Secret, Entry>(byId.size());
+    for (Map.Entry<Long, Secret> e : byId.entrySet()) {
+      Secret secret = e.getValue();
+      replayed.add(secret);
+      state.put(secret, new Entry(e.getKey().longValue(),
+                                  secret.getRevision()));
+    }
+
+    // The snapshot is written in sorted order, so sorting puts journaled
+    // secrets where a full save would have.
+    Collections.sort(replayed);
+
+    if (isComplete) {
+      entries = state;
+      nextId = next;
+    } else {
+      clear();
+    }
+
+    return replayed;
+  }
+
+  /**
+   * Appends the changes between the last persisted state and the given
+   * secrets to the journal.
+   *
+   * @param snapshot The secrets file the journal applies to.
+   * @param cipher The encryption cipher to use.
+   * @param salt The salt used to create the cipher.
+   * @param rounds The number of rounds for bcrypt.
+   * @param secrets The secrets to save.
+   * @return False if the changes could not be journaled and a full save is
+   *     needed instead, either because the journal is too large, the cipher
+   *     has changed, or an error occurred.
+   */
+  static boolean append(File snapshot, Cipher cipher, byte[] salt, int rounds,
+                        ArrayList<Secret> secrets) {
+    if (null == entries || cipher != SecretsJournal.cipher ||
+        !Arrays.equals(salt, SecretsJournal.salt) ||
+        rounds != SecretsJournal.rounds) {
+      return false;
+    }
+
+    // Work out which secrets were added, changed or removed.  Ids are only
+    // committed to the state once the records are safely on disk.
+    IdentityHashMap<Secret, Entry> state =
+        new IdentityHashMap<Secret, Entry>(secrets.size());
+    ArrayList<Secret> puts = new ArrayList<Secret>();
+    ArrayList<Entry> putEntries = new ArrayList<Entry>();
+    long next = nextId;
+
+    for (Secret secret : secrets) {
+      Entry entry = entries.get(secret);
+      if (null == entry) {
+        entry = new Entry(next++, secret.getRevision());
+        puts.add(secret);
+        putEntries.add(entry);
+      } else if (entry.revision != secret.getRevision()) {
+        puts.add(secret);
+        putEntries.add(entry);
+      }
+      state.put(secret, entry);
+    }
+
+    ArrayList<Long> deletes = new ArrayList<Long>();
+    for (Iterator<Map.Entry<Secret, Entry>> it = entries.entrySet().iterator();
+         it.hasNext();) {
+      Map.Entry<Secret, Entry> e = it.next();
+      if (!state.containsKey(e.getKey()))
+        deletes.add(Long.valueOf(e.getValue().id));
+    }
+
+    if (puts.isEmpty() && deletes.isEmpty())
+      return true;
+
+    // If the change is big compared to the snapshot, writing a new snapshot
+    // is cheaper than journaling it.
+    if (puts.size() + deletes.size() > secrets.size() / 2 + 1)
+      return false;
+
+    File journal = getJournalFile(snapshot);
+    FileOutputStream output = null;
+    try {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      DataOutputStream data = new DataOutputStream(buffer);
+      boolean isNew = !journal.exists() || 0 == journalRecords;
+      long index = isNew ? 0 : journalRecords;
+      if (isNew) {
+        writeHeader(data);
+        writeRecord(data, index++, encodeBegin());
+      }
+
+      int last = deletes.size() + puts.size() - 1;
+      for (int i = 0; i < deletes.size(); ++i) {
+        writeRecord(data, index++, encodeChange(OP_DELETE, i == last,
+                                                deletes.get(i).longValue(),
+                                                null));
+      }
+
+      for (int i = 0; i < puts.size(); ++i) {
+        writeRecord(data, index++,
+                    encodeChange(OP_PUT, deletes.size() + i == last,
+                                 putEntries.get(i).id, puts.get(i)));
+      }
+      data.flush();
+
+      long length = (isNew ? 0 : journalLength) + buffer.size();
+      if (length > MAX_JOURNAL_SIZE)
+        return false;
+
+      output = new FileOutputStream(journal, !isNew);
+      buffer.writeTo(output);
+      output.close();
+      output = null;
+      journalLength = length;
+      journalRecords = index;
+    } catch (Exception ex) {
+      Log.e(LOG_TAG, "append", ex);
+      clear();
+      return false;
+    } finally {
+      try {if (null != output) output.close();} catch (IOException ex) {}
+    }
+
+    for (int i = 0; i < puts.size(); ++i)
+      putEntries.get(i).revision = puts.get(i).getRevision();
+
+    entries = state;
+    nextId = next;
+    return true;
+  }
+
+  /**
+   * Returns true if the journal written with the given cipher has grown large
+   * enough that it should be folded into a new snapshot.
+   */
+  static boolean isCompactionDue(Cipher cipher) {
+    return null != entries && cipher == SecretsJournal.cipher &&
+        0 != journalRecords && journalLength > getCompactThreshold();
+  }
+
+  /**
+   * Returns true if the snapshot holds exactly the given secrets, written
+   * with the given cipher, and the journal holds no changes on top of it.
+   * The order of the secrets is not compared.
+   *
+   * @param snapshot The secrets file.
+   * @param cipher The encryption cipher.
+   * @param salt The salt used to create the cipher.
+   * @param rounds The number of rounds for bcrypt.
+   * @param secrets The secrets to compare with the snapshot.
+   */
+  static boolean isSnapshotOf(File snapshot, Cipher cipher, byte[] salt,
+                              int rounds, ArrayList<Secret> secrets) {
+    if (null == entries || cipher != SecretsJournal.cipher ||
+        !Arrays.equals(salt, SecretsJournal.salt) ||
+        rounds != SecretsJournal.rounds ||
+        snapshot.length() != snapshotLength ||
+        journalRecords > 1 ||
+        entries.size() != secrets.size()) {
+      return false;
+    }
+
+    for (Secret secret : secrets) {
+      Entry entry = entries.get(secret);
+      if (null == entry || entry.revision != secret.getRevision())
+        return false;
+    }
+    return true;
+  }
+
+  /** Returns the journal file that goes with the given secrets file. */
+  static File getJournalFile(File snapshot) {
+    return new File(snapshot.getParentFile(), JOURNAL_FILE_NAME);
+  }
+
+  /** Size above which the journal is folded into a new snapshot. */
+  private static long getCompactThreshold() {
+    return Math.min(MAX_JOURNAL_SIZE / 2,
+                    Math.max(MIN_COMPACT_SIZE, snapshotLength / 2));
+  }
+
+  /** Remembers the identity of the snapshot and the cipher that wrote it. */
+  private static void setSnapshot(File snapshot, Cipher cipher, byte[] key,
+                                  byte[] salt, int rounds)
+      throws IOException {
+    RandomAccessFile file = new RandomAccessFile(snapshot, "r");
+    try {
+      long length = file.length();
+      byte[] tail = new byte[TAIL_SIZE];
+      if (length >= TAIL_SIZE) {
+        file.seek(length - TAIL_SIZE);
+        file.readFully(tail);
+      }
+
+      SecretsJournal.chunkedCipher = new ChunkedCipher(key);
+      SecretsJournal.cipher = cipher;
+      SecretsJournal.salt = salt.clone();
+      SecretsJournal.rounds = rounds;
+      SecretsJournal.snapshotLength = length;
+      SecretsJournal.snapshotTail = tail;
+      SecretsJournal.journalLength = 0;
+      SecretsJournal.journalRecords = 0;
+    } finally {
+      try {file.close();} catch (IOException ex) {}
+    }
+  }
+
+  private static void writeHeader(DataOutputStream output) throws IOException {
+    output.write(SIGNATURE);
+    output.write(salt.length);
+    output.write(salt);
+    output.write(rounds);
+  }
+
+  /**
+   * Reads the header and the BEGIN record of the journal.
+   *
+   * @return The length of the header and BEGIN record, or -1 if the journal
+   *     does not match the current snapshot and cipher.
+   */
+  private static long readHeader(DataInputStream input) throws IOException {
+    byte[] signature = new byte[SIGNATURE.length];
+    input.readFully(signature);
+    if (!Arrays.equals(signature, SIGNATURE))
+      return -1;
+
+    byte[] journalSalt = new byte[input.readUnsignedByte()];
+    input.readFully(journalSalt);
+    int journalRounds = input.readUnsignedByte();
+    if (!Arrays.equals(journalSalt, salt) || journalRounds != rounds)
+      return -1;
+
+    byte[] sealed = readSealed(input);
+    if (null == sealed)
+      return -1;
+
+    DataInputStream begin = new DataInputStream(new ByteArrayInputStream(
+        chunkedCipher.openRecord(ByteBuffer.wrap(sealed), 0)));
+    if (OP_BEGIN != begin.readUnsignedByte() ||
+        begin.readLong() != snapshotLength)
+      return -1;
+    byte[] tail = new byte[TAIL_SIZE];
+    begin.readFully(tail);
+    if (!Arrays.equals(tail, snapshotTail))
+      return -1;
+
+    return SIGNATURE.length + 1 + salt.length + 1 + 4 + sealed.length;
+  }
+
+  /** Reads the next sealed record, or returns null at the end of the file. */
+  private static byte[] readSealed(DataInputStream input) throws IOException {
+    int length;
+    try {
+      length = input.readInt();
+    } catch (EOFException ex) {
+      return null;
+    }
+
+    if (length < 0 || length > MAX_JOURNAL_SIZE)
+      throw new IOException("Invalid journal record length " + length);
+    byte[] sealed = new byte[length];
+    input.readFully(sealed);
+    return sealed;
+  }
+
+  private static byte[] encodeBegin() throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    DataOutputStream record = new DataOutputStream(buffer);
+    record.writeByte(OP_BEGIN);
+    record.writeLong(snapshotLength);
+    record.write(snapshotTail);
+    record.flush();
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Encodes a PUT or DELETE record.  The secret of a PUT is written with
+   * Secret.toBinary(), like the records of the secrets file.
+   */
+  private static byte[] encodeChange(int op, boolean commit, long id,
+                                     Secret secret) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    DataOutputStream record = new DataOutputStream(buffer);
+    record.writeByte(commit ? op | FLAG_COMMIT : op);
+    record.writeLong(id);
+    if (null != secret)
+      secret.toBinary(record);
+    record.flush();
+    return buffer.toByteArray();
+  }
+
+  private static void writeRecord(DataOutputStream output, long index,
+                                  byte[] plain) throws IOException {
+    byte[] sealed = chunkedCipher.sealRecord(index, plain);
+    output.writeInt(sealed.length);
+    output.write(sealed);
+  }
+}
@@ -28,13 +28,16 @@ import javax.crypto.Cipher;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.ListActivity;
+import android.app.ProgressDialog;
 import android.app.SearchManager;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Bundle;
 import android.text.ClipboardManager;
+import android.text.format.DateUtils;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
@@ -108,6 +111,8 @@ public class SecretsListActivity extends ListActivity {
   private boolean isConfigChange; // being destroyed for config change?
   private String restorePoint; // That file that should be restored from
   private OnlineSyncAgent selectedOSA; // currently selected agent
+  private RunningImport importer; // import running in the background
+  private ProgressDialog importProgress; // progress of the running import
 
   private boolean allowNextResume; // Allow the next onResume()
 
@@ -185,7 +190,8 @@ public class SecretsListActivity extends ListActivity {
       public boolean onDoubleTap(MotionEvent e) {
         int position = getListView().pointToPosition((int) e.getX(),
             (int) e.getY());
-        if (AdapterView.INVALID_POSITION != position) {
+        if (AdapterView.INVALID_POSITION != position &&
+            checkReadable(getSecret(position))) {
           SetEditViews(position);
           animateToEditView();
           hideToast();
@@ -205,11 +211,27 @@ public class SecretsListActivity extends ListActivity {
 
     registerForContextMenu(getListView());
     allowNextResume = true;
+
+    // Take over an import started before a configuration change.
+    importer = (RunningImport) getLastNonConfigurationInstance();
+    if (null != importer) {
+      importer.activity = this;
+      importedFile = importer.task.getFile();
+      if (importer.isFinished) {
+        finishImport(importer.task, importer.secrets);
+      } else {
+        showImportProgress();
+        updateImportProgress(importer.task);
+      }
+    }
   }
 
   private void onItemClicked(int position) {
     if (AdapterView.INVALID_POSITION != position) {
       Secret secret = getSecret(position);
+      if (!checkReadable(secret))
+        return;
+
       CharSequence password = secret.getPassword(false);
       if (password.length() == 0)
         password = getText(R.string.no_password);
@@ -340,6 +362,8 @@ public class SecretsListActivity extends ListActivity {
     menu.findItem(R.id.list_sync).setVisible(!isEditing);
     menu.findItem(R.id.list_import).setVisible(!isEditing);
     menu.findItem(R.id.list_export).setVisible(!isEditing && !secretsListEmpty);
+    menu.findItem(R.id.list_encrypt_export).setVisible(!isEditing)
+        .setChecked(FileUtils.isEncryptedExport(this));
     menu.findItem(R.id.list_menu_change_password).setVisible(!isEditing);
 
     menu.findItem(R.id.list_save).setVisible(isEditing);
@@ -388,6 +412,10 @@ public class SecretsListActivity extends ListActivity {
     case R.id.list_export:
       exportSecrets();
       break;
+    case R.id.list_encrypt_export:
+      item.setChecked(!item.isChecked());
+      FileUtils.setEncryptedExport(this, item.isChecked());
+      break;
     case R.id.list_import:
       importSecrets();
       break;
@@ -418,16 +446,22 @@ public class SecretsListActivity extends ListActivity {
     boolean handled = false;
     switch (item.getItemId()) {
     case R.id.list_edit:
+      if (AdapterView.INVALID_POSITION != cmenuPosition &&
+          !checkReadable(secretsList.getSecret(cmenuPosition)))
+        break;
       SetEditViews(cmenuPosition);
       animateToEditView();
       break;
     case R.id.list_delete:
-      if (AdapterView.INVALID_POSITION != cmenuPosition) {
+      if (AdapterView.INVALID_POSITION != cmenuPosition &&
+          checkReadable(secretsList.getSecret(cmenuPosition))) {
         showDialog(DIALOG_DELETE_SECRET);
       }
       break;
     case R.id.list_access: {
       Secret secret = secretsList.getSecret(cmenuPosition);
+      if (!checkReadable(secret))
+        break;
       Intent intent = new Intent(this, AccessLogActivity.class);
       intent.putExtra(EXTRA_ACCESS_LOG, secret);
       startActivityForResult(intent, RC_ACCESS_LOG);
@@ -441,6 +475,8 @@ public class SecretsListActivity extends ListActivity {
           (ClipboardManager) getSystemService(CLIPBOARD_SERVICE);
       int typeId;
       if (item.getItemId() == R.id.list_copy_password_to_clipboard) {
+        if (!checkReadable(secret))
+          break;
         cm.setText(secret.getPassword(false));
         typeId = R.string.password_copied_to_clipboard;
       } else {
@@ -505,6 +541,9 @@ public class SecretsListActivity extends ListActivity {
       return;
     }
 
+    if (null != importer)
+      return;
+
     importedFile = FileUtils.getFileToImport();
     if (null == importedFile) {
       String template = getText(R.string.import_not_found).toString();
@@ -513,18 +552,100 @@ public class SecretsListActivity extends ListActivity {
       return;
     }
 
-    ArrayList<Secret> secrets = new ArrayList<Secret>();
-    boolean allSucceeded = FileUtils.importSecrets(this, importedFile, secrets);
+    // The file is read in a background thread, since it may hold many
+    // thousands of secrets.  The secrets are merged into the list once the
+    // whole file is read, unless the import is cancelled.  The import keeps
+    // running across configuration changes, see RunningImport.
+    final RunningImport running = new RunningImport();
+    running.activity = this;
+    running.task = new SecretsImporter(importedFile,
+        SecurityUtils.getKey(SecurityUtils.getEncryptionCipher()),
+        new SecretsImporter.Listener() {
+          @Override
+          public void onProgress(final SecretsImporter source) {
+            runOnUiThread(new Runnable() {
+              @Override
+              public void run() {
+                if (null != running.activity)
+                  running.activity.updateImportProgress(source);
+              }
+            });
+          }
+        });
+    importer = running;
+    showImportProgress();
 
-    if (!secrets.isEmpty()) {
-      for (Secret secret : secrets) {
-        secretsList.insert(secret);
-      }
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        final ArrayList<Secret> secrets = running.task.run();
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            // If the activity is being recreated, the new instance finishes
+            // the import once it takes it over.
+            running.isFinished = true;
+            running.secrets = secrets;
+            if (null != running.activity)
+              running.activity.finishImport(running.task, secrets);
+          }
+        });
+      }}, "importSecrets").start();
+  }
+
+  /** Shows the progress dialog of the running import. */
+  private void showImportProgress() {
+    final SecretsImporter task = importer.task;
+    importProgress = new ProgressDialog(this);
+    importProgress.setTitle(R.string.list_menu_import);
+    importProgress.setMessage(task.getFile().getName());
+    importProgress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+    importProgress.setMax(100);
+    importProgress.setCancelable(false);
+    importProgress.setButton(DialogInterface.BUTTON_NEGATIVE,
+        getText(android.R.string.cancel),
+        new DialogInterface.OnClickListener() {
+          @Override
+          public void onClick(DialogInterface dialog, int which) {
+            task.cancel();
+          }
+        });
+    importProgress.show();
+  }
+
+  private void updateImportProgress(SecretsImporter task) {
+    if (null == importer || task != importer.task || null == importProgress)
+      return;
+
+    String template = getText(R.string.import_progress).toString();
+    importProgress.setMessage(MessageFormat.format(template, task.getRows(),
+        task.getRowsPerSecond()));
+    importProgress.setProgress(task.getPercent());
+  }
+
+  private void finishImport(SecretsImporter task, ArrayList<Secret> secrets) {
+    // Ignore imports cancelled when an instance was destroyed.
+    if (null == importer || task != importer.task)
+      return;
+
+    importer = null;
+    if (null != importProgress) {
+      importProgress.dismiss();
+      importProgress = null;
+    }
+
+    if (null == secrets) {
+      importedFile = null;
+      showToast(R.string.import_cancelled);
+      return;
+    }
 
+    if (!secrets.isEmpty()) {
+      secretsList.insertAll(secrets);
       secretsList.notifyDataSetChanged();
       setTitle();
 
-      if (allSucceeded) {
+      if (task.isComplete()) {
         showDialog(DIALOG_IMPORT_SUCCESS);
       } else {
         String template = getText(R.string.import_partial).toString();
@@ -552,7 +673,8 @@ public class SecretsListActivity extends ListActivity {
     }
 
     if (FileUtils.exportSecrets(this, secretsList.getAllSecrets())) {
-      showToast(R.string.export_succeeded);
+      showToast(FileUtils.isEncryptedExport(this)
+          ? R.string.export_encrypted_succeeded : R.string.export_succeeded);
     } else {
       showToast(R.string.export_failed);
     }
@@ -592,6 +714,20 @@ public class SecretsListActivity extends ListActivity {
       showToast(R.string.error_save_secrets);
     }
   }
+
+  /**
+   * An import running in the background, kept across configuration changes
+   * with onRetainNonConfigurationInstance().  The callbacks of the import go
+   * to the current instance of the activity, if any.  Only used on the UI
+   * thread.
+   */
+  private static class RunningImport {
+    SecretsImporter task;
+    SecretsListActivity activity;
+    boolean isFinished;
+    ArrayList<Secret> secrets;
+  }
+
   private class RestoreDialogState {
     public int selected = 0;
 
@@ -862,36 +998,26 @@ public class SecretsListActivity extends ListActivity {
 
           String password = password1.getText().toString();
           FileUtils.SaltAndRounds saltAndRounds = FileUtils.getSaltAndRounds(
-              null, restorePoint);
+              SecretsListActivity.this, restorePoint);
 
           String message = null;
 
           SecurityUtils.CipherInfo info = SecurityUtils.createCiphers(password,
               saltAndRounds.salt, saltAndRounds.rounds);
-          if (restoreSecrets(restorePoint, info, false)) {
-            SecurityUtils.clearCiphers();
-            SecurityUtils.saveCiphers(info);
-            message = getText(R.string.password_changed).toString();
-            message += '\n';
-            message += getText(R.string.restore_succeeded).toString();
-          } else {
-            ArrayList<Secret> secrets =
-                FileUtils.loadSecretsV3(SecretsListActivity.this, info,
-                                        restorePoint);
-
-            if (secrets == null) {
-              Cipher cipher2 = SecurityUtils.createDecryptionCipherV2(password,
-                  saltAndRounds.salt, saltAndRounds.rounds);
-              secrets = FileUtils.loadSecretsV2(
-                  SecretsListActivity.this, restorePoint, cipher2,
-                  saltAndRounds.salt, saltAndRounds.rounds);
-            }
-
-            if (secrets == null) {
-              Cipher cipher1 = SecurityUtils.createDecryptionCipherV1(password);
-              secrets = FileUtils.loadSecretsV1(SecretsListActivity.this,
-                  cipher1, restorePoint);
+          int format = FileUtils.detectFormat(SecretsListActivity.this,
+              restorePoint, info);
+          if (FileUtils.FORMAT_CURRENT == format ||
+              FileUtils.FORMAT_V4 == format) {
+            if (restoreSecrets(restorePoint, info, false)) {
+              SecurityUtils.clearCiphers();
+              SecurityUtils.saveCiphers(info);
+              message = getText(R.string.password_changed).toString();
+              message += '\n';
+              message += getText(R.string.restore_succeeded).toString();
             }
+          } else {
+            ArrayList<Secret> secrets = FileUtils.loadSecrets(
+                SecretsListActivity.this, restorePoint, format, password, info);
 
             if (secrets != null) {
               LoginActivity.replaceSecrets(secrets);
@@ -960,12 +1086,57 @@ public class SecretsListActivity extends ListActivity {
   }
 
   private void setCipherStrengthLabel(Dialog dialog, int rounds) {
-    String template = getText(R.string.cipher_strength_label).toString();
-    String msg = MessageFormat.format(template, rounds);
+    // Show how long unlocking would take with these rounds, once the device
+    // has been measured.
+    KdfCalibration.Profile profile = KdfCalibration.getSavedProfile(this);
+    String msg;
+    if (null == profile) {
+      String template = getText(R.string.cipher_strength_label).toString();
+      msg = MessageFormat.format(template, rounds);
+    } else {
+      double seconds = profile.estimateMillis(rounds) / 1000;
+      if (seconds < 60) {
+        String template = getText(R.string.cipher_strength_label_seconds)
+            .toString();
+        msg = MessageFormat.format(template, rounds, seconds);
+      } else {
+        String template = getText(R.string.cipher_strength_label_elapsed)
+            .toString();
+        msg = MessageFormat.format(template, rounds,
+            DateUtils.formatElapsedTime((long) seconds));
+      }
+    }
     TextView text = (TextView) dialog.findViewById(R.id.cipher_strength_label);
     text.setText(msg);
   }
 
+  /**
+   * Measures bcrypt on this device in a background thread, if it has never
+   * been measured, and then updates the label of the change password dialog.
+   */
+  private void calibrateCipherStrength(final Dialog dialog) {
+    if (null != KdfCalibration.getSavedProfile(this))
+      return;
+
+    final Context ctx = getApplicationContext();
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        KdfCalibration.getProfile(ctx);
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            if (!dialog.isShowing())
+              return;
+
+            SeekBar bar = (SeekBar) dialog.findViewById(R.id.cipher_strength);
+            setCipherStrengthLabel(dialog,
+                                   bar.getProgress() + PROGRESS_ROUNDS_OFFSET);
+          }
+        });
+      }}, "calibrateCipherStrength").start();
+  }
+
   @Override
   protected void onPrepareDialog(int id, Dialog dialog) {
     super.onPrepareDialog(id, dialog);
@@ -993,6 +1164,7 @@ public class SecretsListActivity extends ListActivity {
       int rounds = SecurityUtils.getRounds();
       bar.setProgress(rounds - PROGRESS_ROUNDS_OFFSET);
       setCipherStrengthLabel(dialog, rounds);
+      calibrateCipherStrength(dialog);
       TextView password1 = (TextView) dialog.findViewById(R.id.password);
       password1.setText("");
       TextView password2 = (TextView) dialog
@@ -1068,12 +1240,25 @@ public class SecretsListActivity extends ListActivity {
   public Object onRetainNonConfigurationInstance() {
     Log.d(LOG_TAG, "SecretsListActivity.onRetainNonConfigurationInstance");
     isConfigChange = true;
-    return super.onRetainNonConfigurationInstance();
+    return importer;
   }
 
 
   @Override
   protected void onDestroy() {
+    // The import is only stopped if the activity is going away for good.
+    // Otherwise the new instance takes it over, see onCreate().
+    if (null != importer) {
+      importer.activity = null;
+      if (!isConfigChange)
+        importer.task.cancel();
+      importer = null;
+    }
+    if (null != importProgress) {
+      importProgress.dismiss();
+      importProgress = null;
+    }
+
     if (!isConfigChange) {
       Log.d(LOG_TAG, "SecretsListActivity.onDestroy");
       LoginActivity.clearSecrets();
@@ -1176,6 +1361,18 @@ public class SecretsListActivity extends ListActivity {
   }
 
 
+  /**
+   * Returns true if the secret can be decrypted, otherwise shows an error.  A
+   * secret whose record is damaged cannot be shown or modified.
+   */
+  private boolean checkReadable(Secret secret) {
+    if (secret.isReadable())
+      return true;
+
+    showToast(R.string.error_load_secret);
+    return false;
+  }
+
   private void showToast(int message) {
     showToast(getText(message));
   }
@@ -172,7 +172,8 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
             if (!secret.getDescription().toLowerCase().contains(prefixString) &&
                 !secret.getEmail().toLowerCase().contains(prefixString) &&
                 !secret.getUsername().toLowerCase().contains(prefixString) &&
-                !secret.getNote().toLowerCase().contains(prefixString))
+                (!secret.isReadable() ||
+                 !secret.getNote().toLowerCase().contains(prefixString)))
               secrets.remove(i);
           } else {
             String description = secret.getDescription().toLowerCase();
@@ -310,6 +311,52 @@ public class SecretsListAdapter extends BaseAdapter implements Filterable {
     return i;
   }
 
+  /**
+   * Inserts many secrets at once, for example after an import.  This gives
+   * the same result as calling insert() for each secret, but since the
+   * secrets are already sorted, they are merged into the list in one pass
+   * instead of being inserted one at a time.
+   *
+   * @param sorted The secrets to insert, in sorted order.
+   */
+  public void insertAll(ArrayList<Secret> sorted) {
+    synchronized (allSecrets) {
+      ArrayList<Secret> merged = SecretsImporter.merge(allSecrets, sorted);
+      if (secrets != allSecrets)
+        secrets = SecretsImporter.merge(secrets, sorted);
+      allSecrets.clear();
+      allSecrets.addAll(merged);
+
+      // Both lists are sorted, so deleted secrets replaced by an inserted one
+      // can be found in one pass too.
+      int j = 0;
+      for (int i = 0; i < deletedSecrets.size() && j < sorted.size();) {
+        int compare = deletedSecrets.get(i).compareTo(sorted.get(j));
+        if (compare < 0) {
+          ++i;
+        } else if (compare > 0) {
+          ++j;
+        } else {
+          deletedSecrets.remove(i);
+        }
+      }
+    }
+
+    usernameAdapter.setNotifyOnChange(false);
+    emailAdapter.setNotifyOnChange(false);
+    for (Secret secret : sorted) {
+      if (usernames.add(secret.getUsername()))
+        usernameAdapter.add(secret.getUsername());
+
+      if (emails.add(secret.getEmail()))
+        emailAdapter.add(secret.getEmail());
+    }
+    usernameAdapter.setNotifyOnChange(true);
+    emailAdapter.setNotifyOnChange(true);
+    usernameAdapter.notifyDataSetChanged();
+    emailAdapter.notifyDataSetChanged();
+  }
+
   public void syncSecrets(ArrayList<Secret> changedSecrets) {
     if (changedSecrets != null) {
       synchronized (allSecrets) {
@@ -16,6 +16,7 @@ package net.tawacentral.roger.secrets;
 
 import java.security.SecureRandom;
 import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
 
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
@@ -44,6 +45,8 @@ public class SecurityUtils {
     public Cipher decryptCipher;
     public byte[] salt;
     public int rounds;
+    /** The raw key derived from the password, used by ChunkedCipher. */
+    public byte[] key;
   }
 
   // The following three constants were used with the initial implementation of
@@ -102,6 +105,7 @@ public class SecurityUtils {
   private static Cipher decryptCipher;
   private static byte[] salt;
   private static int rounds;
+  private static byte[] key;
 
   /**
    * Get the cipher used to encrypt data using the password given to the
@@ -134,6 +138,19 @@ public class SecurityUtils {
   public static int getRounds() {
     return rounds;
   }
+
+  /**
+   * Gets the raw key used to create the given encryption cipher.
+   *
+   * @param cipher An encryption cipher.
+   * @return The raw key, or null if the cipher is not the current encryption
+   *     cipher.
+   */
+  public static byte[] getKey(Cipher cipher) {
+    if (null == cipher || cipher != encryptCipher || null == key)
+      return null;
+    return key.clone();
+  }
   
   /** Gets information about current ciphers. */
   public static CipherInfo getCipherInfo() {
@@ -142,6 +159,7 @@ public class SecurityUtils {
     info.decryptCipher = decryptCipher;
     info.salt = salt.clone();
     info.rounds = rounds;
+    info.key = null == key ? null : key.clone();
     return info;
   }
 
@@ -149,7 +167,7 @@ public class SecurityUtils {
    * Creates a new unique random salt.
    * @return A new salt value used to generate the secret key. 
    */
-  private static byte[] createNewSalt() {
+  static byte[] createNewSalt() {
     byte[] bytes = new byte[BCrypt.BCRYPT_SALT_LEN];
     SecureRandom random = new SecureRandom();
     random.nextBytes(bytes);
@@ -269,14 +287,16 @@ public class SecurityUtils {
       // earlier, create an initial vector of all zeros.
       IvParameterSpec params = new IvParameterSpec(new byte[16]);
 
-      info.encryptCipher = Cipher.getInstance(CIPHER_FACTORY);
-      info.encryptCipher.init(Cipher.ENCRYPT_MODE, spec, params);
-
-      info.decryptCipher = Cipher.getInstance(CIPHER_FACTORY);
-      info.decryptCipher.init(Cipher.DECRYPT_MODE, spec, params);
+      // The ciphers are shared, so they are only used as handles to get a
+      // cipher for each use, see CipherProvider.
+      info.encryptCipher = new CipherProvider(CIPHER_FACTORY,
+          Cipher.ENCRYPT_MODE, spec, params).newHandle();
+      info.decryptCipher = new CipherProvider(CIPHER_FACTORY,
+          Cipher.DECRYPT_MODE, spec, params).newHandle();
 
       info.salt = salt;
       info.rounds = rounds;
+      info.key = rawBytes;
     } catch (Exception ex) {
       Log.d(LOG_TAG, "createCiphers", ex);
       info = null;
@@ -301,6 +321,7 @@ public class SecurityUtils {
     decryptCipher = info.decryptCipher;
     salt = info.salt.clone();
     rounds = info.rounds;
+    key = null == info.key ? null : info.key.clone();
   }
 
   /** Clear the ciphers from memory. */
@@ -309,62 +330,31 @@ public class SecurityUtils {
     encryptCipher = null;
     salt = null;
     rounds = 0;
+    if (null != key) {
+      Arrays.fill(key, (byte) 0);
+      key = null;
+    }
   }
 
+  /**
+   * The longest time, in milliseconds, that deriving the key should take on
+   * this device with the rounds chosen by determineBestRounds().
+   */
+  public static final int UNLOCK_TARGET_MILLIS = 900;
+
   /**
    * Determines the ideal number of rounds to use for the bcrypt algorithm.
    * More rounds are more secure, but require more time to log into Secrets.
    * This function tries to balance security and convenience.
    *
    * Each round increment doubles the amount of work required by bcrypt to
-   * generate a key.  This function assumes that time is proportional to work.
-   * So for example, if 4 rounds takes 0.1 seconds to generate a key, 5 rounds
-   * will take 0.2 seconds, 6 rounds 0.4 seconds, and so on.  The assumption
-   * will be that the key must be generated in less than 0.9 seconds to remain
-   * convenient for the user.
-   *
-   * This function calculate how long it takes to generate a key using 4 rounds
-   * on the current device, then determines the maximum number of rounds such
-   * that the time to generate will remain below the convenience threshold. 
+   * generate a key.  This function picks the largest number of rounds such
+   * that the key can be generated in less than UNLOCK_TARGET_MILLIS, to remain
+   * convenient for the user.  The time is estimated from the profile of this
+   * device, measured once, see KdfCalibration.
    */
   public static int determineBestRounds() {
-      byte[] salt = createNewSalt();
-      int plaintext[] = {0x155cbf8e, 0x57f57513, 0x3da787b9, 0x71679d82,
-                         0x7cf72e93, 0x1ae25274, 0x64b54adc, 0x335cbd0b};
-      final byte[] password = {1, 2, 3, 4, 5, 6, 7, 8};
-      BCrypt bcrypt = new BCrypt();
-
-      // Calculate the time to create a cipher key with 4 rounds, in msecs.
-      // Do it twice and take the average.
-      final long start = System.currentTimeMillis();
-      bcrypt.crypt_raw(password, salt, 4, plaintext);
-      bcrypt.crypt_raw(password, salt, 4, plaintext);
-      final long T4 = (System.currentTimeMillis() - start) / 2;
-
-      // If T4 is the time in msecs to create the key with 4 rounds, then
-      // the time Tn to calculate the key using n rounds (n > 4) is:
-      //
-      //   Tn = 2^(n - 4) * T4
-      //
-      // where we want Tn to be less than 900 msecs.  Solving for n gives:
-      //
-      //   Tn = 2^(n - 4) * T4 < 900
-      //   n - 4 + log2(T4) < log2(900)
-      //   n < 4 + log2(900) - log2(T4)          -- solve for n
-      //   n < 4 + ln(900)/ln(2) - ln(T4)/ln(2)  -- convert to natural logs 
-      //
-      // The best number of rounds is the floor of n.
-      final double n = 4 + (Math.log(900) - Math.log(T4)) / Math.log(2);
-      int rounds = (int) n;
-
-      // Make sure rounds does not exceed its valid range.
-      if (rounds < 4) {
-        rounds = 4;
-      } else if (rounds > 31) {
-        rounds = 31;
-      }
-
-      return rounds;
+    return KdfCalibration.getProfile(null).getBestRounds(UNLOCK_TARGET_MILLIS);
   }
 
   public static void test_behaviour() {
@@ -329,9 +329,10 @@ public class BCrypt {
     51, 52, 53, -1, -1, -1, -1, -1
   };
 
-  // Expanded Blowfish key
+  // Expanded Blowfish key, with each of the four S-boxes in
+  // its own array so that they can be indexed by a byte directly
   private int P[];
-  private int S[];
+  private int S[][];
 
 
   private static String encode_base64(byte d[], int len)
@@ -431,31 +432,53 @@ public class BCrypt {
 
   /**
    * Blowfish encipher a single 64-bit block encoded as
-   * two 32-bit halves
-   * @param lr  an array containing the two 32-bit half blocks
-   * @param off the position in the array of the blocks
+   * two 32-bit halves, and store the result in an array.
+   * The 16 rounds are unrolled and the key schedule is
+   * read through locals, since this is where all the time
+   * of bcrypt goes.
+   * @param l the left half of the block
+   * @param r the right half of the block
+   * @param dst the array to store the two enciphered halves in
+   * @param off the position in dst to store them at
    */
-  private final void encipher(int lr[], int off) {
-    int i, n, l = lr[off], r = lr[off + 1];
-
-    l ^= P[0];
-    for (i = 0; i <= BLOWFISH_NUM_ROUNDS - 2;) {
-      // Feistel substitution on left word
-      n = S[(l >> 24) & 0xff];
-      n += S[0x100 | ((l >> 16) & 0xff)];
-      n ^= S[0x200 | ((l >> 8) & 0xff)];
-      n += S[0x300 | (l & 0xff)];
-      r ^= n ^ P[++i];
-
-      // Feistel substitution on right word
-      n = S[(r >> 24) & 0xff];
-      n += S[0x100 | ((r >> 16) & 0xff)];
-      n ^= S[0x200 | ((r >> 8) & 0xff)];
-      n += S[0x300 | (r & 0xff)];
-      l ^= n ^ P[++i];
-    }
-    lr[off] = r ^ P[BLOWFISH_NUM_ROUNDS + 1];
-    lr[off + 1] = l;
+  private final void encipher(int l, int r, int dst[], int off) {
+    final int p[] = P, s0[] = S[0], s1[] = S[1], s2[] = S[2], s3[] = S[3];
+
+    l ^= p[0];
+    r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^
+        s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p[1];
+    l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^
+        s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p[2];
+    r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^
+        s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p[3];
+    l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^
+        s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p[4];
+    r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^
+        s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p[5];
+    l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^
+        s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p[6];
+    r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^
+        s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p[7];
+    l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^
+        s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p[8];
+    r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^
+        s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p[9];
+    l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^
+        s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p[10];
+    r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^
+        s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p[11];
+    l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^
+        s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p[12];
+    r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^
+        s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p[13];
+    l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^
+        s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p[14];
+    r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^
+        s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p[15];
+    l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^
+        s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p[16];
+    dst[off] = r ^ p[BLOWFISH_NUM_ROUNDS + 1];
+    dst[off + 1] = l;
   }
 
   /**
@@ -479,37 +502,88 @@ public class BCrypt {
     return word;
   }
 
+  /**
+   * Extract the words of key material that are xored into
+   * the P array each time the cipher is keyed.  They only
+   * depend on the key, so they are computed once per hash
+   * rather than once per round.
+   * @param data  the key to extract the words from
+   * @return  an array of as many words as the P array
+   */
+  private static int[] keywords(byte data[]) {
+    int words[] = new int[P_orig.length];
+    int offp[] = { 0 };
+
+    for (int i = 0; i < words.length; i++)
+      words[i] = streamtoword(data, offp);
+    return words;
+  }
+
   /**
    * Initialise the Blowfish key schedule
    */
   private void init_key() {
     P = (int[])P_orig.clone();
-    S = (int[])S_orig.clone();
+    S = new int[4][256];
+    for (int i = 0; i < S.length; i++)
+      System.arraycopy(S_orig, i * 256, S[i], 0, 256);
   }
 
   /**
-   * Key the Blowfish cipher
-   * @param key an array containing the key
+   * Key the Blowfish cipher.  This is the inner loop of bcrypt,
+   * so encipher() is inlined here, and each block is kept in
+   * locals from one encryption to the next.
+   * @param words the key material, see keywords()
    */
-  private void key(byte key[]) {
-    int i;
-    int koffp[] = { 0 };
-    int lr[] = { 0, 0 };
-    int plen = P.length, slen = S.length;
-
-    for (i = 0; i < plen; i++)
-      P[i] = P[i] ^ streamtoword(key, koffp);
-
-    for (i = 0; i < plen; i += 2) {
-      encipher(lr, 0);
-      P[i] = lr[0];
-      P[i + 1] = lr[1];
-    }
-
-    for (i = 0; i < slen; i += 2) {
-      encipher(lr, 0);
-      S[i] = lr[0];
-      S[i + 1] = lr[1];
+  private void key(int words[]) {
+    final int p[] = P, s0[] = S[0], s1[] = S[1], s2[] = S[2], s3[] = S[3];
+    int i, n, l = 0, r = 0;
+
+    for (i = 0; i < p.length; i++)
+      p[i] ^= words[i];
+
+    for (int box = -1; box < S.length; box++) {
+      final int dst[] = box < 0 ? p : S[box];
+      for (i = 0; i < dst.length; i += 2) {
+        l ^= p[0];
+        r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^
+            s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p[1];
+        l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^
+            s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p[2];
+        r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^
+            s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p[3];
+        l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^
+            s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p[4];
+        r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^
+            s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p[5];
+        l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^
+            s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p[6];
+        r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^
+            s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p[7];
+        l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^
+            s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p[8];
+        r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^
+            s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p[9];
+        l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^
+            s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p[10];
+        r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^
+            s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p[11];
+        l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^
+            s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p[12];
+        r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^
+            s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p[13];
+        l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^
+            s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p[14];
+        r ^= (((s0[l >>> 24] + s1[(l >>> 16) & 0xff]) ^
+            s2[(l >>> 8) & 0xff]) + s3[l & 0xff]) ^ p[15];
+        l ^= (((s0[r >>> 24] + s1[(r >>> 16) & 0xff]) ^
+            s2[(r >>> 8) & 0xff]) + s3[r & 0xff]) ^ p[16];
+        n = r ^ p[BLOWFISH_NUM_ROUNDS + 1];
+        dst[i] = n;
+        dst[i + 1] = l;
+        r = l;
+        l = n;
+      }
     }
   }
 
@@ -521,28 +595,28 @@ public class BCrypt {
    * @param key password information
    */
   private void ekskey(byte data[], byte key[]) {
-    int i;
+    int i, l = 0, r = 0;
     int koffp[] = { 0 }, doffp[] = { 0 };
-    int lr[] = { 0, 0 };
-    int plen = P.length, slen = S.length;
 
-    for (i = 0; i < plen; i++)
+    for (i = 0; i < P.length; i++)
       P[i] = P[i] ^ streamtoword(key, koffp);
 
-    for (i = 0; i < plen; i += 2) {
-      lr[0] ^= streamtoword(data, doffp);
-      lr[1] ^= streamtoword(data, doffp);
-      encipher(lr, 0);
-      P[i] = lr[0];
-      P[i + 1] = lr[1];
+    for (i = 0; i < P.length; i += 2) {
+      l ^= streamtoword(data, doffp);
+      r ^= streamtoword(data, doffp);
+      encipher(l, r, P, i);
+      l = P[i];
+      r = P[i + 1];
     }
 
-    for (i = 0; i < slen; i += 2) {
-      lr[0] ^= streamtoword(data, doffp);
-      lr[1] ^= streamtoword(data, doffp);
-      encipher(lr, 0);
-      S[i] = lr[0];
-      S[i + 1] = lr[1];
+    for (int s[] : S) {
+      for (i = 0; i < s.length; i += 2) {
+        l ^= streamtoword(data, doffp);
+        r ^= streamtoword(data, doffp);
+        encipher(l, r, s, i);
+        l = s[i];
+        r = s[i + 1];
+      }
     }
   }
 
@@ -559,6 +633,7 @@ public class BCrypt {
   public byte[] crypt_raw(byte password[], byte salt[], int log_rounds, int cdata[]) {
     int rounds, i, j;
     int clen = cdata.length;
+    int passwordw[], saltw[];
     byte ret[];
 
     if (log_rounds < 4 || log_rounds > 31)
@@ -569,14 +644,16 @@ public class BCrypt {
 
     init_key();
     ekskey(salt, password);
+    passwordw = keywords(password);
+    saltw = keywords(salt);
     for (i = 0; i < rounds; i++) {
-      key(password);
-      key(salt);
+      key(passwordw);
+      key(saltw);
     }
 
     for (i = 0; i < 64; i++) {
       for (j = 0; j < (clen >> 1); j++)
-        encipher(cdata, j << 1);
+        encipher(cdata[j << 1], cdata[(j << 1) + 1], cdata, j << 1);
     }
 
     ret = new byte[clen * 4];
@@ -588,7 +665,6 @@ public class BCrypt {
     }
     return ret;
   }
-
   /**
    * Hash a password using the OpenBSD bcrypt scheme
    * @param password  the password to hash
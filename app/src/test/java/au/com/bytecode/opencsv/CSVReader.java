@@ -24,6 +24,9 @@ package au.com.bytecode.opencsv;
  * - Added support of generics
  * - removed the following methods to keep the bytecode smaller:
  *   readAll(), some constructors
+ *
+ * The app now reads CSV with CsvTokenizer.  This copy is only kept in the
+ * unit test source set, as the baseline for CsvTokenizerBenchmark.
  */
 
 import java.io.BufferedReader;
@@ -23,6 +23,10 @@ package au.com.bytecode.opencsv;
  *
  * - removed the following methods to keep the bytecode smaller:
  *   writeAll(), all methods related to sql
+ *
+ * The app now writes CSV with CsvWriter.  This copy is only kept in the unit
+ * test source set, to check that CsvWriter writes the same text, and as the
+ * baseline for ExportBenchmark.
  */
 
 import java.io.IOException;
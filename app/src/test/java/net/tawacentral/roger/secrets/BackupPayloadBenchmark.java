@@ -0,0 +1,112 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+import android.content.ContextWrapper;
+
+/**
+ * Shows how many bytes SecretsBackupHelper sends for edits of growing size
+ * in the middle of a file, compared with the whole file that
+ * FileBackupHelper would send, and how long a backup takes.  See Benchmark
+ * for how to run it.
+ */
+public class BackupPayloadBenchmark {
+  private static final int FILE_SIZE = 4 * 1024 * 1024;
+  private static final int[] EDIT_SIZES = {1, 1024, 16 * 1024, 256 * 1024};
+
+  public static void main(String[] args) throws Exception {
+    final File dir = File.createTempFile("backup", "");
+    dir.delete();
+    dir.mkdirs();
+    ContextWrapper context = new ContextWrapper(null) {
+      @Override
+      public File getFileStreamPath(String name) {
+        return new File(dir, name);
+      }
+    };
+    final File file = context.getFileStreamPath("secrets");
+    final SecretsBackupHelper helper =
+        new SecretsBackupHelper(context, "secrets");
+    final int[] sent = new int[1];
+    final SecretsBackupHelper.EntityOutput output =
+        new SecretsBackupHelper.EntityOutput() {
+          @Override
+          public void writeEntityHeader(String key, int size) {
+          }
+
+          @Override
+          public void writeEntityData(byte[] data, int size) {
+            sent[0] += size;
+          }
+        };
+
+    Benchmark.report("%10s %10s %10s %10s", "edit B", "sent KB", "file KB",
+                     "backup ms");
+    Random random = new Random(1);
+    byte[] data = new byte[FILE_SIZE];
+    random.nextBytes(data);
+    for (int editSize : EDIT_SIZES) {
+      write(file, data);
+      final byte[][] state = new byte[1][];
+      Benchmark.Body backup = new Benchmark.Body() {
+        @Override
+        public void run() throws Exception {
+          ByteArrayOutputStream newState = new ByteArrayOutputStream();
+          helper.performBackup(null == state[0] ? null
+              : new ByteArrayInputStream(state[0]), output, newState);
+          state[0] = newState.toByteArray();
+        }
+      };
+      backup.run();
+
+      byte[] edit = new byte[editSize];
+      random.nextBytes(edit);
+      System.arraycopy(edit, 0, data, FILE_SIZE / 2, editSize);
+      write(file, data);
+      final byte[] before = state[0];
+      sent[0] = 0;
+      backup.run();
+      int editSent = sent[0];
+
+      double millis = Benchmark.time(2, 5, new Benchmark.Body() {
+        @Override
+        public void run() throws Exception {
+          helper.performBackup(new ByteArrayInputStream(before), output,
+                               new ByteArrayOutputStream());
+        }
+      });
+      Benchmark.report("%10d %10.1f %10.1f %10.1f", editSize,
+                       editSent / 1e3, FILE_SIZE / 1e3, millis);
+    }
+
+    file.delete();
+    dir.delete();
+  }
+
+  private static void write(File file, byte[] data) throws Exception {
+    FileOutputStream output = new FileOutputStream(file);
+    try {
+      output.write(data);
+    } finally {
+      output.close();
+    }
+  }
+}
@@ -0,0 +1,112 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A small harness for the benchmarks in the unit test source set.  JMH does
+ * not fit the Android unit test setup, so each benchmark is a plain class
+ * with a main() method, named *Benchmark, and run on a desktop JVM with the
+ * unit test classpath, for example from the IDE.  The unit tests do not run
+ * them.
+ *
+ * Each measurement first runs the body a few times so that the JIT compiles
+ * it, then reports the median of the timed runs, which is less affected by
+ * garbage collection pauses than the mean.  Desktop numbers are only good for
+ * comparing two implementations with each other; a phone is several times
+ * slower.
+ */
+final class Benchmark {
+  /** The code being measured. */
+  interface Body {
+    void run() throws Exception;
+  }
+
+  private Benchmark() {}
+
+  /**
+   * Runs the body warmUps times, then times it runs more times.
+   *
+   * @return The median time of the timed runs, in milliseconds.
+   */
+  static double time(int warmUps, int runs, Body body) throws Exception {
+    for (int i = 0; i < warmUps; ++i)
+      body.run();
+
+    long[] times = new long[runs];
+    for (int i = 0; i < runs; ++i) {
+      long start = System.nanoTime();
+      body.run();
+      times[i] = System.nanoTime() - start;
+    }
+
+    Arrays.sort(times);
+    return times[runs / 2] / 1e6;
+  }
+
+  /**
+   * Runs the body once and returns about how much more heap it used at its
+   * peak than before it started, in bytes.
+   */
+  static long peakHeap(Body body) throws Exception {
+    System.gc();
+    long before = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (MemoryType.HEAP == pool.getType()) {
+        pool.resetPeakUsage();
+        before += pool.getUsage().getUsed();
+      }
+    }
+
+    body.run();
+
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (MemoryType.HEAP == pool.getType())
+        peak += pool.getPeakUsage().getUsed();
+    }
+    return Math.max(0, peak - before);
+  }
+
+  /**
+   * Runs the body once and returns how many bytes it allocated on this
+   * thread, or -1 if the JVM cannot tell.
+   */
+  static long allocated(Body body) throws Exception {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      body.run();
+      return -1;
+    }
+
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) bean;
+    long id = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(id);
+    body.run();
+    return threads.getThreadAllocatedBytes(id) - before;
+  }
+
+  /** Prints one line of results. */
+  static void report(String format, Object... args) {
+    System.out.println(String.format(Locale.US, format, args));
+  }
+}
@@ -0,0 +1,163 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/** Tests the binary format (F4) of BinaryCodec and Secret.toBinary(). */
+public class BinaryCodecTest {
+  private static final long[] VALUES = {
+      0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, 1L << 32,
+      SecretsTestUtils.START_TIME, Long.MAX_VALUE
+  };
+
+  private static InputStream in(ByteArrayOutputStream output) {
+    return new ByteArrayInputStream(output.toByteArray());
+  }
+
+  @Test
+  public void testVarintRoundTrip() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    for (long value : VALUES)
+      BinaryCodec.writeVarint(output, value);
+    InputStream input = in(output);
+    for (long value : VALUES)
+      assertEquals(value, BinaryCodec.readVarint(input));
+    assertEquals(-1, input.read());
+  }
+
+  @Test
+  public void testVarintEncoding() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    BinaryCodec.writeVarint(output, 127);
+    BinaryCodec.writeVarint(output, 300);
+    assertArrayEquals(new byte[] {0x7f, (byte) 0xac, 0x02},
+                      output.toByteArray());
+  }
+
+  @Test
+  public void testSignedVarintRoundTrip() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    for (long value : VALUES) {
+      BinaryCodec.writeSignedVarint(output, value);
+      BinaryCodec.writeSignedVarint(output, -value);
+    }
+    BinaryCodec.writeSignedVarint(output, Long.MIN_VALUE);
+
+    InputStream input = in(output);
+    for (long value : VALUES) {
+      assertEquals(value, BinaryCodec.readSignedVarint(input));
+      assertEquals(-value, BinaryCodec.readSignedVarint(input));
+    }
+    assertEquals(Long.MIN_VALUE, BinaryCodec.readSignedVarint(input));
+  }
+
+  @Test
+  public void testSmallNegativeIsShort() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    BinaryCodec.writeSignedVarint(output, -3600000);
+    assertEquals(4, output.size());
+  }
+
+  @Test
+  public void testReadVarint32RejectsLargeValues() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    BinaryCodec.writeVarint(output, Integer.MAX_VALUE + 1L);
+    try {
+      BinaryCodec.readVarint32(in(output));
+      fail("Expected IOException");
+    } catch (IOException ex) {
+      // Expected.
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testMalformedVarint() throws Exception {
+    byte[] bytes = new byte[11];
+    java.util.Arrays.fill(bytes, (byte) 0x80);
+    BinaryCodec.readVarint(new ByteArrayInputStream(bytes));
+  }
+
+  @Test(expected = EOFException.class)
+  public void testTruncatedVarint() throws Exception {
+    BinaryCodec.readVarint(new ByteArrayInputStream(new byte[] {
+        (byte) 0x80}));
+  }
+
+  @Test
+  public void testStringRoundTrip() throws Exception {
+    String[] values = {null, "", "a", "Café ☃ 🔑", "line\r\nbreak"};
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    for (String value : values)
+      BinaryCodec.writeString(output, value);
+    InputStream input = in(output);
+    for (String value : values)
+      assertEquals(value, BinaryCodec.readString(input));
+  }
+
+  @Test(expected = EOFException.class)
+  public void testTruncatedString() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    BinaryCodec.writeString(output, "truncated");
+    byte[] bytes = output.toByteArray();
+    BinaryCodec.readString(new ByteArrayInputStream(bytes, 0,
+                                                    bytes.length - 1));
+  }
+
+  @Test
+  public void testSecretRoundTrip() throws Exception {
+    ArrayList<Secret> secrets = SecretsTestUtils.newSecrets(20);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    for (Secret secret : secrets)
+      secret.toBinary(output);
+
+    InputStream input = in(output);
+    ArrayList<Secret> read = new ArrayList<Secret>();
+    for (int i = 0; i < secrets.size(); ++i)
+      read.add(Secret.fromBinary(input));
+    assertEquals(-1, input.read());
+    SecretsTestUtils.assertSecretsEqual(secrets, read);
+  }
+
+  @Test
+  public void testSecretWithNullFields() throws Exception {
+    Secret secret = new Secret();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    secret.toBinary(output);
+    Secret read = Secret.fromBinary(in(output));
+    assertNull(read.getDescription());
+    SecretsTestUtils.assertSecretEquals(secret, read);
+  }
+
+  @Test(expected = EOFException.class)
+  public void testTruncatedSecret() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    SecretsTestUtils.newSecret(4).toBinary(output);
+    byte[] bytes = output.toByteArray();
+    Secret.fromBinary(new ByteArrayInputStream(bytes, 0, bytes.length - 1));
+  }
+}
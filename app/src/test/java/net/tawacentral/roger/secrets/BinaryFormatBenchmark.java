@@ -0,0 +1,81 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import org.json.JSONObject;
+
+/**
+ * Compares the size of the secrets serialized as JSON, as in the V4 format,
+ * with the binary format (F4), and the time to serialize and parse them.
+ * Neither is compressed or encrypted, so only the encodings are compared.
+ * See Benchmark for how to run it.
+ */
+public class BinaryFormatBenchmark {
+  private static final int[] COUNTS = {1000, 10000, 50000};
+
+  public static void main(String[] args) throws Exception {
+    Benchmark.report("%8s %-6s %10s %10s %10s", "secrets", "format",
+                     "KB", "write ms", "read ms");
+
+    for (int count : COUNTS) {
+      final ArrayList<Secret> secrets = SecretsTestUtils.newSecrets(count);
+
+      final byte[][] json = new byte[1][];
+      double jsonWrite = Benchmark.time(3, 9, new Benchmark.Body() {
+        @Override
+        public void run() throws Exception {
+          json[0] = FileUtils.toJSONSecrets(secrets).toString()
+              .getBytes("UTF-8");
+        }
+      });
+      double jsonRead = Benchmark.time(3, 9, new Benchmark.Body() {
+        @Override
+        public void run() throws Exception {
+          FileUtils.fromJSONSecrets(new JSONObject(new String(json[0],
+                                                              "UTF-8")));
+        }
+      });
+      Benchmark.report("%8d %-6s %10.1f %10.1f %10.1f", count, "json",
+                       json[0].length / 1e3, jsonWrite, jsonRead);
+
+      final byte[][] binary = new byte[1][];
+      double binaryWrite = Benchmark.time(3, 9, new Benchmark.Body() {
+        @Override
+        public void run() throws Exception {
+          ByteArrayOutputStream output = new ByteArrayOutputStream();
+          for (Secret secret : secrets)
+            secret.toBinary(output);
+          binary[0] = output.toByteArray();
+        }
+      });
+      double binaryRead = Benchmark.time(3, 9, new Benchmark.Body() {
+        @Override
+        public void run() throws Exception {
+          InputStream input = new ByteArrayInputStream(binary[0]);
+          ArrayList<Secret> read = new ArrayList<Secret>(secrets.size());
+          for (int i = 0; i < secrets.size(); ++i)
+            read.add(Secret.fromBinary(input));
+        }
+      });
+      Benchmark.report("%8d %-6s %10.1f %10.1f %10.1f", count, "binary",
+                       binary[0].length / 1e3, binaryWrite, binaryRead);
+    }
+  }
+}
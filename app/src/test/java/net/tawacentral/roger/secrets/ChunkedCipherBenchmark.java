@@ -0,0 +1,118 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.zip.Deflater;
+
+/**
+ * Measures how saving and loading in the chunked cipher format (C4) scale
+ * with the number of cores.  ChunkedCipher sizes its thread pool when it is
+ * first used, so each number of cores is measured in a JVM of its own,
+ * started with -XX:ActiveProcessorCount.  Asking for more cores than the
+ * machine has only measures the overhead of the extra threads.  See
+ * Benchmark for how to run it.
+ *
+ * Save is IndexedSecretsFile.write(), which seals the records on all cores
+ * and the index as a stream.  Load is IndexedSecretsFile.read(), which
+ * decrypts only the index, as at login.  Records are opened one at a time
+ * when first asked for, so opening them does not scale with the cores and is
+ * not measured here.  The stream line is the raw throughput of a
+ * ChunkedCipher stream, encrypting and then decrypting.
+ */
+public class ChunkedCipherBenchmark {
+  private static final int[] CORES = {1, 2, 4, 8};
+  private static final int[] COUNTS = {10000, 100000, 500000};
+  private static final int STREAM_SIZE = 64 * 1024 * 1024;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0) {
+      measure(Integer.parseInt(args[0]));
+      return;
+    }
+
+    Benchmark.report("%5s %8s %10s %10s %10s", "cores", "secrets",
+                     "MB", "save ms", "load ms");
+    String java = System.getProperty("java.home") + File.separator + "bin" +
+        File.separator + "java";
+    for (int cores : CORES) {
+      Process process = new ProcessBuilder(java, "-Xmx2g",
+          "-XX:ActiveProcessorCount=" + cores,
+          "-cp", System.getProperty("java.class.path"),
+          ChunkedCipherBenchmark.class.getName(), String.valueOf(cores))
+          .inheritIO().start();
+      process.waitFor();
+    }
+  }
+
+  /** Measures with the number of cores this JVM was started with. */
+  private static void measure(int cores) throws Exception {
+    final ChunkedCipher cipher = new ChunkedCipher(new byte[32]);
+    for (int count : COUNTS) {
+      final ArrayList<Secret> secrets = SecretsTestUtils.newSecrets(count);
+      final byte[][] file = new byte[1][];
+      double save = Benchmark.time(2, 5, new Benchmark.Body() {
+        @Override
+        public void run() throws Exception {
+          ByteArrayOutputStream output = new ByteArrayOutputStream();
+          IndexedSecretsFile.write(output, cipher, secrets,
+                                   Deflater.DEFAULT_COMPRESSION);
+          file[0] = output.toByteArray();
+        }
+      });
+      double load = Benchmark.time(2, 5, new Benchmark.Body() {
+        @Override
+        public void run() throws Exception {
+          IndexedSecretsFile.read(ByteBuffer.wrap(file[0]), cipher,
+                                  IndexedSecretsFile.VERSION);
+        }
+      });
+      Benchmark.report("%5d %8d %10.1f %10.1f %10.1f", cores, count,
+                       file[0].length / 1e6, save, load);
+    }
+
+    final byte[] plain = new byte[STREAM_SIZE];
+    final byte[][] encrypted = new byte[1][];
+    double encrypt = Benchmark.time(2, 5, new Benchmark.Body() {
+      @Override
+      public void run() throws Exception {
+        ByteArrayOutputStream output =
+            new ByteArrayOutputStream(STREAM_SIZE + STREAM_SIZE / 64);
+        OutputStream stream = cipher.newOutputStream(output);
+        stream.write(plain);
+        stream.close();
+        encrypted[0] = output.toByteArray();
+      }
+    });
+    double decrypt = Benchmark.time(2, 5, new Benchmark.Body() {
+      @Override
+      public void run() throws Exception {
+        InputStream stream = cipher.newInputStream(
+            MappedSecretsFile.newInputStream(ByteBuffer.wrap(encrypted[0])));
+        byte[] buffer = new byte[ChunkedCipher.CHUNK_SIZE];
+        while (stream.read(buffer) > 0) {
+        }
+        stream.close();
+      }
+    });
+    Benchmark.report("%5d %8s %10.1f %10.1f %10.1f", cores, "stream",
+                     STREAM_SIZE / 1e6, encrypt, decrypt);
+  }
+}
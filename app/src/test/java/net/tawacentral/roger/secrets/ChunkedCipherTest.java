@@ -0,0 +1,274 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the chunked cipher format (C4): round trips of streams and sealed
+ * records, and detection of tampering.
+ */
+public class ChunkedCipherTest {
+  // Flags, length, initial vector and MAC around the encrypted data.
+  private static final int CHUNK_OVERHEAD = 1 + 4 + 16 + 32;
+
+  private byte[] key;
+  private ChunkedCipher cipher;
+
+  @Before
+  public void setUp() throws Exception {
+    key = new byte[32];
+    new Random(1).nextBytes(key);
+    cipher = new ChunkedCipher(key);
+  }
+
+  private static byte[] randomBytes(int length, long seed) {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] encrypt(ChunkedCipher cipher, byte[] plain)
+      throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    OutputStream encrypted = cipher.newOutputStream(output);
+    // Odd sized writes, so that they straddle the chunk boundaries.
+    for (int offset = 0; offset < plain.length; offset += 1000) {
+      encrypted.write(plain, offset, Math.min(1000, plain.length - offset));
+    }
+    encrypted.close();
+    return output.toByteArray();
+  }
+
+  private static byte[] decrypt(ChunkedCipher cipher, byte[] data)
+      throws IOException {
+    InputStream input =
+        cipher.newInputStream(new ByteArrayInputStream(data));
+    ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int n; (n = input.read(buffer)) > 0;)
+      plain.write(buffer, 0, n);
+    input.close();
+    return plain.toByteArray();
+  }
+
+  /** Splits an encrypted stream into its chunks. */
+  private static ArrayList<byte[]> split(byte[] data) {
+    ArrayList<byte[]> chunks = new ArrayList<byte[]>();
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    while (buffer.hasRemaining()) {
+      int size = CHUNK_OVERHEAD + buffer.getInt(buffer.position() + 1);
+      byte[] chunk = new byte[size];
+      buffer.get(chunk);
+      chunks.add(chunk);
+    }
+    return chunks;
+  }
+
+  private static byte[] join(ArrayList<byte[]> chunks) {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    for (byte[] chunk : chunks)
+      output.write(chunk, 0, chunk.length);
+    return output.toByteArray();
+  }
+
+  private void assertDecryptFails(byte[] data) {
+    try {
+      decrypt(cipher, data);
+      fail("Expected IOException");
+    } catch (IOException ex) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testStreamRoundTrip() throws Exception {
+    int size = ChunkedCipher.CHUNK_SIZE;
+    int[] lengths = {0, 1, 15, 16, size - 1, size, size + 1, 7 * size + 123};
+    for (int length : lengths) {
+      byte[] plain = randomBytes(length, length);
+      byte[] encrypted = encrypt(cipher, plain);
+      assertArrayEquals("length " + length, plain, decrypt(cipher, encrypted));
+    }
+  }
+
+  @Test
+  public void testStreamIsSplitIntoChunks() throws Exception {
+    byte[] encrypted = encrypt(cipher,
+                               new byte[3 * ChunkedCipher.CHUNK_SIZE + 1]);
+    ArrayList<byte[]> chunks = split(encrypted);
+    assertEquals(4, chunks.size());
+    for (int i = 0; i < chunks.size(); ++i)
+      assertEquals(i == chunks.size() - 1 ? 1 : 0, chunks.get(i)[0]);
+  }
+
+  @Test
+  public void testSamePlainTextEncryptsDifferently() throws Exception {
+    byte[] plain = randomBytes(1000, 2);
+    assertFalse(Arrays.equals(encrypt(cipher, plain), encrypt(cipher, plain)));
+  }
+
+  @Test
+  public void testStreamDetectsFlippedBit() throws Exception {
+    byte[] encrypted = encrypt(cipher,
+                               randomBytes(2 * ChunkedCipher.CHUNK_SIZE, 3));
+    // A bit in the flags, the initial vector, the data and the MAC of the
+    // second chunk, and of the last byte of the stream.
+    int second = split(encrypted).get(0).length;
+    int[] offsets = {second, second + 5, second + 100, second + 5000,
+                     encrypted.length - 1};
+    for (int offset : offsets) {
+      byte[] tampered = encrypted.clone();
+      tampered[offset] ^= 0x10;
+      assertDecryptFails(tampered);
+    }
+  }
+
+  @Test
+  public void testStreamDetectsReorderedChunks() throws Exception {
+    ArrayList<byte[]> chunks = split(encrypt(cipher,
+        randomBytes(3 * ChunkedCipher.CHUNK_SIZE + 10, 4)));
+    byte[] first = chunks.get(0);
+    chunks.set(0, chunks.get(1));
+    chunks.set(1, first);
+    assertDecryptFails(join(chunks));
+  }
+
+  @Test
+  public void testStreamDetectsTruncation() throws Exception {
+    ArrayList<byte[]> chunks = split(encrypt(cipher,
+        randomBytes(3 * ChunkedCipher.CHUNK_SIZE + 10, 5)));
+
+    // Dropping the final chunk leaves no chunk flagged as final.
+    chunks.remove(chunks.size() - 1);
+    assertDecryptFails(join(chunks));
+
+    // Cutting into a chunk.
+    byte[] encrypted = join(chunks);
+    assertDecryptFails(Arrays.copyOf(encrypted, encrypted.length - 10));
+  }
+
+  @Test
+  public void testStreamDetectsWrongKey() throws Exception {
+    byte[] encrypted = encrypt(cipher, randomBytes(100, 6));
+    byte[] otherKey = key.clone();
+    otherKey[0] ^= 1;
+    try {
+      decrypt(new ChunkedCipher(otherKey), encrypted);
+      fail("Expected IOException");
+    } catch (IOException ex) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testStreamRejectsSealedRecord() throws Exception {
+    assertDecryptFails(cipher.sealRecord(randomBytes(100, 7)));
+  }
+
+  @Test
+  public void testRecordRoundTrip() throws Exception {
+    byte[] plain = randomBytes(3 * ChunkedCipher.CHUNK_SIZE, 8);
+    ByteBuffer sealed = ByteBuffer.wrap(cipher.sealRecord(plain));
+    assertEquals(sealed.remaining(), ChunkedCipher.getRecordSize(sealed));
+    byte[] id = ChunkedCipher.getRecordId(sealed);
+    assertArrayEquals(plain, cipher.openRecord(sealed, id));
+    assertEquals(0, sealed.position());
+  }
+
+  @Test
+  public void testRecordInLargerBuffer() throws Exception {
+    byte[] first = cipher.sealRecord(randomBytes(10, 9));
+    byte[] second = cipher.sealRecord(randomBytes(20, 10));
+    ByteBuffer buffer = ByteBuffer.allocate(first.length + second.length);
+    buffer.put(first).put(second).position(first.length);
+    assertEquals(second.length, ChunkedCipher.getRecordSize(buffer));
+    assertArrayEquals(randomBytes(20, 10), cipher.openRecord(buffer,
+        ChunkedCipher.getRecordId(buffer)));
+  }
+
+  @Test
+  public void testRecordDetectsTampering() throws Exception {
+    byte[] sealed = cipher.sealRecord(randomBytes(100, 11));
+    byte[] id = ChunkedCipher.getRecordId(ByteBuffer.wrap(sealed));
+    for (int offset = 0; offset < sealed.length; offset += 7) {
+      byte[] tampered = sealed.clone();
+      tampered[offset] ^= 1;
+      try {
+        cipher.openRecord(ByteBuffer.wrap(tampered), id);
+        fail("Expected IOException at offset " + offset);
+      } catch (IOException ex) {
+        // Expected.
+      }
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testRecordDetectsSwap() throws Exception {
+    byte[] expected = cipher.sealRecord(randomBytes(100, 12));
+    byte[] other = cipher.sealRecord(randomBytes(100, 12));
+    cipher.openRecord(ByteBuffer.wrap(other),
+                      ChunkedCipher.getRecordId(ByteBuffer.wrap(expected)));
+  }
+
+  @Test
+  public void testIndexedRecord() throws Exception {
+    byte[] plain = randomBytes(100, 13);
+    ByteBuffer sealed = ByteBuffer.wrap(cipher.sealRecord(42, plain));
+    assertArrayEquals(plain, cipher.openRecord(sealed, 42));
+    try {
+      cipher.openRecord(sealed, 41);
+      fail("Expected IOException");
+    } catch (IOException ex) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testKeyCheck() throws Exception {
+    byte[] check = ChunkedCipher.computeKeyCheck(key);
+    assertEquals(ChunkedCipher.KEY_CHECK_SIZE, check.length);
+    assertArrayEquals(check, ChunkedCipher.computeKeyCheck(key.clone()));
+
+    byte[] otherKey = key.clone();
+    otherKey[31] ^= 1;
+    assertFalse(Arrays.equals(check, ChunkedCipher.computeKeyCheck(otherKey)));
+  }
+
+  @Test
+  public void testHasSameKey() throws Exception {
+    assertTrue(cipher.hasSameKey(new ChunkedCipher(key.clone())));
+    byte[] otherKey = key.clone();
+    otherKey[5] ^= 1;
+    assertFalse(cipher.hasSameKey(new ChunkedCipher(otherKey)));
+  }
+}
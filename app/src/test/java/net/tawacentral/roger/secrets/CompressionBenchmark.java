@@ -0,0 +1,67 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.zip.Deflater;
+
+/**
+ * Shows the trade-off between the size of the secrets file and the time to
+ * save and load it, for each DEFLATE level, as used for COMPRESSION_LEVEL in
+ * FileUtils.  Load reads the index and then decrypts every record, as opening
+ * each secret once would.  See Benchmark for how to run it.
+ */
+public class CompressionBenchmark {
+  private static final int[] COUNTS = {1000, 10000};
+  private static final int[] LEVELS = {
+      Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, 3,
+      Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION
+  };
+
+  public static void main(String[] args) throws Exception {
+    final ChunkedCipher cipher = new ChunkedCipher(new byte[32]);
+    Benchmark.report("%8s %6s %10s %10s %10s", "secrets", "level",
+                     "KB", "save ms", "load ms");
+
+    for (int count : COUNTS) {
+      final ArrayList<Secret> secrets = SecretsTestUtils.newSecrets(count);
+      for (final int level : LEVELS) {
+        final byte[][] file = new byte[1][];
+        double save = Benchmark.time(3, 9, new Benchmark.Body() {
+          @Override
+          public void run() throws Exception {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            IndexedSecretsFile.write(output, cipher, secrets, level);
+            file[0] = output.toByteArray();
+          }
+        });
+        double load = Benchmark.time(3, 9, new Benchmark.Body() {
+          @Override
+          public void run() throws Exception {
+            for (Secret secret : IndexedSecretsFile.read(
+                     ByteBuffer.wrap(file[0]), cipher,
+                     IndexedSecretsFile.VERSION)) {
+              secret.getNote();
+            }
+          }
+        });
+        Benchmark.report("%8d %6d %10.1f %10.1f %10.1f", count, level,
+                         file[0].length / 1e3, save, load);
+      }
+    }
+  }
+}
@@ -0,0 +1,86 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ * Compares CsvTokenizer with the CSVReader it replaced, on exports of a few
+ * megabytes with multi-line notes.  "tokenize" only splits the fields, as
+ * SecretsImporter does for columns it skips, and "strings" also creates a
+ * string for every field, as CSVReader always does.  See Benchmark for how
+ * to run it.
+ */
+public class CsvTokenizerBenchmark {
+  private static final int[] COUNTS = {10000, 50000, 200000};
+
+  public static void main(String[] args) throws Exception {
+    Benchmark.report("%8s %8s %-10s %10s %12s", "secrets", "MB", "reader",
+                     "ms", "alloc MB");
+
+    for (int count : COUNTS) {
+      StringWriter text = new StringWriter();
+      CsvWriter writer = new CsvWriter(text);
+      for (Secret secret : SecretsTestUtils.newSecrets(count)) {
+        writer.writeField(secret.getDescription());
+        writer.writeField(secret.getUsername());
+        writer.writeField(secret.getPasswordForExport());
+        writer.writeField(secret.getEmail());
+        writer.writeField(secret.getNote());
+        writer.endRow();
+      }
+      writer.close();
+      final String csv = text.toString();
+      double megabytes = csv.length() / 1e6;
+
+      report(count, megabytes, "CSVReader", new Benchmark.Body() {
+        @Override
+        public void run() throws Exception {
+          CSVReader reader = new CSVReader(new StringReader(csv));
+          while (null != reader.readNext()) {
+          }
+        }
+      });
+      report(count, megabytes, "tokenize", new Benchmark.Body() {
+        @Override
+        public void run() throws Exception {
+          CsvTokenizer tokenizer = new CsvTokenizer(new StringReader(csv));
+          while (null != tokenizer.next()) {
+          }
+        }
+      });
+      report(count, megabytes, "strings", new Benchmark.Body() {
+        @Override
+        public void run() throws Exception {
+          CsvTokenizer tokenizer = new CsvTokenizer(new StringReader(csv));
+          for (CsvTokenizer.Row row = tokenizer.next(); null != row;
+               row = tokenizer.next()) {
+            row.toArray();
+          }
+        }
+      });
+    }
+  }
+
+  private static void report(int count, double megabytes, String name,
+                             Benchmark.Body body) throws Exception {
+    double millis = Benchmark.time(3, 9, body);
+    Benchmark.report("%8d %8.1f %-10s %10.1f %12.1f", count, megabytes, name,
+                     millis, Benchmark.allocated(body) / 1e6);
+  }
+}
@@ -0,0 +1,198 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests CsvTokenizer.  Each text is also read one character at a time, so
+ * that every token straddles a refill of the buffer somewhere.
+ */
+public class CsvTokenizerTest {
+  /** A reader that returns at most one character per read. */
+  private static class TrickleReader extends Reader {
+    private final Reader reader;
+
+    TrickleReader(String text) {
+      reader = new StringReader(text);
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) throws IOException {
+      return reader.read(buffer, offset, Math.min(length, 1));
+    }
+
+    @Override
+    public void close() throws IOException {
+      reader.close();
+    }
+  }
+
+  private static List<List<String>> tokenize(Reader reader)
+      throws IOException {
+    CsvTokenizer tokenizer = new CsvTokenizer(reader);
+    List<List<String>> rows = new ArrayList<List<String>>();
+    for (CsvTokenizer.Row row = tokenizer.next(); null != row;
+         row = tokenizer.next()) {
+      rows.add(Arrays.asList(row.toArray()));
+    }
+    tokenizer.close();
+    return rows;
+  }
+
+  /** Checks that the text splits into the given rows. */
+  private static void assertRows(String text, String[]... expected)
+      throws IOException {
+    List<List<String>> rows = new ArrayList<List<String>>();
+    for (String[] row : expected)
+      rows.add(Arrays.asList(row));
+    assertEquals(rows, tokenize(new StringReader(text)));
+    assertEquals(rows, tokenize(new TrickleReader(text)));
+  }
+
+  private static String[] row(String... fields) {
+    return fields;
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    assertRows("");
+    assertRows("\r\n\n");
+  }
+
+  @Test
+  public void testSimple() throws Exception {
+    assertRows("a,b,c\nd,e,f\n", row("a", "b", "c"), row("d", "e", "f"));
+  }
+
+  @Test
+  public void testNoFinalLineBreak() throws Exception {
+    assertRows("a,b\nc,d", row("a", "b"), row("c", "d"));
+  }
+
+  @Test
+  public void testEmptyFields() throws Exception {
+    assertRows(",a,,\n", row("", "a", "", ""));
+    assertRows("a,", row("a", ""));
+    assertRows("\"\"", row(""));
+  }
+
+  @Test
+  public void testLineEndings() throws Exception {
+    assertRows("a\r\nb\rc\nd", row("a"), row("b"), row("c"), row("d"));
+  }
+
+  @Test
+  public void testBlankLinesSkipped() throws Exception {
+    assertRows("a\n\n\r\n\rb\n", row("a"), row("b"));
+  }
+
+  @Test
+  public void testQuotedSeparator() throws Exception {
+    assertRows("\"a,b\",c\n", row("a,b", "c"));
+  }
+
+  @Test
+  public void testDoubledQuotes() throws Exception {
+    assertRows("\"say \"\"hi\"\"\",\"\"\"\"\n", row("say \"hi\"", "\""));
+  }
+
+  @Test
+  public void testEmbeddedLineBreaks() throws Exception {
+    assertRows("\"line one\r\nline two\nline three\rend\",x\r\ny\r\n",
+               row("line one\r\nline two\nline three\rend", "x"), row("y"));
+  }
+
+  @Test
+  public void testByteOrderMark() throws Exception {
+    assertRows("\uFEFFa,b\n", row("a", "b"));
+    assertRows("\uFEFF");
+    // Only a mark at the very start is skipped.
+    assertRows("a,\uFEFFb\n", row("a", "\uFEFFb"));
+  }
+
+  @Test
+  public void testMissingClosingQuote() throws Exception {
+    assertRows("a,\"unterminated\nstill, here", row("a",
+               "unterminated\nstill, here"));
+    assertRows("\"ends on a quote\"\"", row("ends on a quote\""));
+  }
+
+  @Test
+  public void testTextAfterClosingQuote() throws Exception {
+    assertRows("\"quoted\"tail,b\n", row("quotedtail", "b"));
+  }
+
+  @Test
+  public void testQuoteInUnquotedField() throws Exception {
+    assertRows("5\" disk,b\n", row("5\" disk", "b"));
+  }
+
+  @Test
+  public void testLongField() throws Exception {
+    char[] chars = new char[100000];
+    Arrays.fill(chars, 'x');
+    String field = new String(chars);
+    assertRows(field + ",\"" + field + "\"\n", row(field, field));
+  }
+
+  @Test
+  public void testCustomSeparatorAndQuote() throws Exception {
+    CsvTokenizer tokenizer =
+        new CsvTokenizer(new StringReader("'a;b';c\n"), ';', '\'');
+    assertEquals(Arrays.asList("a;b", "c"),
+                 Arrays.asList(tokenizer.next().toArray()));
+    assertNull(tokenizer.next());
+  }
+
+  @Test
+  public void testRowIsReused() throws Exception {
+    CsvTokenizer tokenizer = new CsvTokenizer(new StringReader("a,b\nc\n"));
+    CsvTokenizer.Row first = tokenizer.next();
+    CsvTokenizer.Row second = tokenizer.next();
+    assertTrue(first == second);
+    assertEquals(1, second.size());
+    assertEquals("c", second.get(0));
+  }
+
+  @Test
+  public void testRowAccessors() throws Exception {
+    CsvTokenizer.Row row =
+        new CsvTokenizer(new StringReader("Description,é\n")).next();
+    assertEquals(11, row.length(0));
+    assertTrue(row.equalsIgnoreCase(0, "DESCRIPTION"));
+    assertTrue(row.equalsIgnoreCase(1, "É"));
+    assertFalse(row.equalsIgnoreCase(0, "Descriptio"));
+    try {
+      row.get(2);
+      fail("Expected IndexOutOfBoundsException");
+    } catch (IndexOutOfBoundsException ex) {
+      // Expected.
+    }
+  }
+}
@@ -0,0 +1,149 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+/** Tests that CsvTokenizer reads back what CsvWriter writes. */
+public class CsvWriterTest {
+  private static final String[][] ROWS = {
+      {"Description", "Username", "Password", "Email", "Notes"},
+      {"plain", "", "p@ss,word", "a@example.com", "one line"},
+      {"quotes", "\"", "say \"\"hi\"\"", "\"\"", "end\""},
+      {"breaks", "a\nb", "c\r\nd", "e\rf", "\r\n"},
+      {"unicode", "Café", "☃ 🔑", "\uFEFFmark", "日本語"},
+  };
+
+  private static String write(String[][] rows) throws Exception {
+    StringWriter text = new StringWriter();
+    CsvWriter writer = new CsvWriter(text);
+    for (String[] row : rows)
+      writer.writeRow(row);
+    writer.close();
+    return text.toString();
+  }
+
+  private static ArrayList<String[]> read(CsvTokenizer tokenizer)
+      throws Exception {
+    ArrayList<String[]> rows = new ArrayList<String[]>();
+    for (CsvTokenizer.Row row = tokenizer.next(); null != row;
+         row = tokenizer.next()) {
+      rows.add(row.toArray());
+    }
+    return rows;
+  }
+
+  private static void assertRowsEqual(String[][] expected,
+                                      ArrayList<String[]> actual) {
+    assertEquals(expected.length, actual.size());
+    for (int i = 0; i < expected.length; ++i)
+      assertArrayEquals(expected[i], actual.get(i));
+  }
+
+  @Test
+  public void testOutput() throws Exception {
+    assertEquals("\"a\",\"b\"\"c\",,\"\"\n",
+                 write(new String[][] {{"a", "b\"c", null, ""}}));
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    assertRowsEqual(ROWS, read(new CsvTokenizer(
+        new StringReader(write(ROWS)))));
+  }
+
+  @Test
+  public void testNullIsReadAsEmpty() throws Exception {
+    ArrayList<String[]> rows = read(new CsvTokenizer(new StringReader(
+        write(new String[][] {{null, "a", null}}))));
+    assertArrayEquals(new String[] {"", "a", ""}, rows.get(0));
+  }
+
+  @Test
+  public void testSameTextAsCSVWriter() throws Exception {
+    String[][] rows = Arrays.copyOf(ROWS, ROWS.length + 1);
+    rows[ROWS.length] = new String[] {null, "x", null};
+
+    StringWriter text = new StringWriter();
+    CSVWriter writer = new CSVWriter(text);
+    for (String[] row : rows)
+      writer.writeNext(row);
+    writer.close();
+    assertEquals(text.toString(), write(rows));
+  }
+
+  @Test
+  public void testLongFieldsAndManyRows() throws Exception {
+    // More text than the buffer of either class holds, with fields longer
+    // than the buffer.
+    char[] chars = new char[40000];
+    Arrays.fill(chars, '"');
+    String quotes = new String(chars);
+    String[][] rows = new String[2000][];
+    for (int i = 0; i < rows.length; ++i) {
+      rows[i] = new String[] {"row " + i, 0 == i % 500 ? quotes : "x,\"y\""};
+    }
+    assertRowsEqual(rows, read(new CsvTokenizer(
+        new StringReader(write(rows)))));
+  }
+
+  @Test
+  public void testCustomSeparatorAndQuote() throws Exception {
+    StringWriter text = new StringWriter();
+    CsvWriter writer = new CsvWriter(text, ';', '\'');
+    writer.writeRow(new String[] {"a;b", "it's", "\"c\""});
+    writer.close();
+    assertEquals("'a;b';'it''s';'\"c\"'\n", text.toString());
+
+    CsvTokenizer tokenizer =
+        new CsvTokenizer(new StringReader(text.toString()), ';', '\'');
+    assertArrayEquals(new String[] {"a;b", "it's", "\"c\""},
+                      tokenizer.next().toArray());
+    assertNull(tokenizer.next());
+  }
+
+  @Test
+  public void testEncryptedRoundTrip() throws Exception {
+    // As exportSecrets() writes in the encrypted mode, and SecretsImporter
+    // reads it back.
+    ChunkedCipher cipher = new ChunkedCipher(new byte[32]);
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    CsvWriter writer = new CsvWriter(new OutputStreamWriter(
+        cipher.newOutputStream(file), "UTF-8"));
+    for (String[] row : ROWS)
+      writer.writeRow(row);
+    writer.close();
+
+    CsvTokenizer tokenizer = new CsvTokenizer(new InputStreamReader(
+        cipher.newInputStream(new ByteArrayInputStream(file.toByteArray())),
+        "UTF-8"));
+    assertRowsEqual(ROWS, read(tokenizer));
+  }
+}
@@ -0,0 +1,112 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * Compares exporting 100k secrets the way FileUtils.exportSecrets() does,
+ * plain and encrypted, with the CSVWriter over a FileWriter it replaced.  The
+ * "raw" line writes the same number of bytes with no formatting at all, which
+ * is as fast as the export can be on this disk.  On a device, writing to the
+ * SD card is far slower than on a desktop, so an export within a small factor
+ * of the raw write there is bound by I/O.  See Benchmark for how to run it.
+ */
+public class ExportBenchmark {
+  private static final int COUNT = 100000;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  public static void main(String[] args) throws Exception {
+    final ArrayList<Secret> secrets = SecretsTestUtils.newSecrets(COUNT);
+    final File file = File.createTempFile("export", ".csv");
+    final ChunkedCipher cipher = new ChunkedCipher(new byte[32]);
+    Benchmark.report("%-10s %10s %10s %12s", "writer", "MB", "ms",
+                     "alloc MB");
+
+    report(file, "CSVWriter", new Benchmark.Body() {
+      @Override
+      public void run() throws Exception {
+        // A FileWriter, as before, in UTF-8 like the default on Android.
+        CSVWriter writer = new CSVWriter(new OutputStreamWriter(
+            new FileOutputStream(file), "UTF-8"));
+        for (Secret secret : secrets) {
+          writer.writeNext(new String[] {
+              secret.getDescription(), secret.getUsername(),
+              secret.getPasswordForExport(), secret.getEmail(),
+              secret.getNote()
+          });
+        }
+        writer.close();
+      }
+    });
+    report(file, "CsvWriter", new Benchmark.Body() {
+      @Override
+      public void run() throws Exception {
+        export(secrets, new BufferedOutputStream(new FileOutputStream(file),
+                                                 BUFFER_SIZE), null);
+      }
+    });
+    report(file, "encrypted", new Benchmark.Body() {
+      @Override
+      public void run() throws Exception {
+        export(secrets, new BufferedOutputStream(new FileOutputStream(file),
+                                                 BUFFER_SIZE), cipher);
+      }
+    });
+
+    final byte[] raw = new byte[(int) file.length()];
+    report(file, "raw", new Benchmark.Body() {
+      @Override
+      public void run() throws Exception {
+        OutputStream output = new FileOutputStream(file);
+        for (int offset = 0; offset < raw.length; offset += BUFFER_SIZE)
+          output.write(raw, offset, Math.min(BUFFER_SIZE, raw.length - offset));
+        output.close();
+      }
+    });
+    file.delete();
+  }
+
+  private static void export(ArrayList<Secret> secrets, OutputStream file,
+                             ChunkedCipher cipher) throws Exception {
+    OutputStream output = null == cipher ? file
+                                         : cipher.newOutputStream(file);
+    CsvWriter writer = new CsvWriter(new OutputStreamWriter(output, "UTF-8"));
+    for (Secret secret : secrets) {
+      writer.writeField(secret.getDescription());
+      writer.writeField(secret.getUsername());
+      writer.writeField(secret.getPasswordForExport());
+      writer.writeField(secret.getEmail());
+      writer.writeField(secret.getNote());
+      writer.endRow();
+    }
+    writer.close();
+    file.close();
+  }
+
+  private static void report(File file, String name, Benchmark.Body body)
+      throws Exception {
+    double millis = Benchmark.time(3, 9, body);
+    Benchmark.report("%-10s %10.1f %10.1f %12.1f", name, file.length() / 1e6,
+                     millis, Benchmark.allocated(body) / 1e6);
+  }
+}
@@ -0,0 +1,77 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+
+/**
+ * Shows how SecretsImporter scales with the number of threads it parses the
+ * file on, with exports of tens to hundreds of megabytes.  The threads only
+ * help up to the number of cores of the machine, which is printed first.
+ * See Benchmark for how to run it.
+ */
+public class ImportBenchmark {
+  private static final int[] COUNTS = {100000, 1000000};
+  private static final int[] THREADS = {1, 2, 4, 8};
+
+  public static void main(String[] args) throws Exception {
+    Benchmark.report("%d cores", Runtime.getRuntime().availableProcessors());
+    Benchmark.report("%8s %8s %8s %10s %10s", "secrets", "MB", "threads",
+                     "ms", "rows/s");
+
+    final File file = File.createTempFile("import", ".csv");
+    for (int count : COUNTS) {
+      write(file, count);
+      for (final int threads : THREADS) {
+        double millis = Benchmark.time(1, 3, new Benchmark.Body() {
+          @Override
+          public void run() throws Exception {
+            SecretsImporter importer = new SecretsImporter(file, null, null);
+            importer.setThreads(threads);
+            if (null == importer.run() || !importer.isComplete())
+              throw new AssertionError("Import failed");
+          }
+        });
+        Benchmark.report("%8d %8.1f %8d %10.1f %10.0f", count,
+                         file.length() / 1e6, threads, millis,
+                         count / millis * 1000);
+      }
+    }
+    file.delete();
+  }
+
+  /** Writes an export of count secrets, with a few lines of notes each. */
+  private static void write(File file, int count) throws Exception {
+    CsvWriter writer = new CsvWriter(new OutputStreamWriter(
+        new FileOutputStream(file), "UTF-8"));
+    writer.writeRow(new String[] {
+        FileUtils.COL_DESCRIPTION, FileUtils.COL_USERNAME,
+        FileUtils.COL_PASSWORD, FileUtils.COL_EMAIL, FileUtils.COL_NOTES
+    });
+    for (int i = 0; i < count; ++i) {
+      Secret secret = SecretsTestUtils.newSecret(i);
+      writer.writeField(secret.getDescription());
+      writer.writeField(secret.getUsername());
+      writer.writeField(secret.getPasswordForExport());
+      writer.writeField(secret.getEmail());
+      writer.writeField(secret.getNote() + "\nMore notes about this account, "
+                        + "kept by the previous password manager.");
+      writer.endRow();
+    }
+    writer.close();
+  }
+}
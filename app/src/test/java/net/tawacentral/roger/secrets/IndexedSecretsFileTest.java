@@ -0,0 +1,143 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.zip.Deflater;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests writing and reading the indexed format of the secrets file. */
+public class IndexedSecretsFileTest {
+  private ChunkedCipher cipher;
+
+  @Before
+  public void setUp() throws Exception {
+    byte[] key = new byte[32];
+    for (int i = 0; i < key.length; ++i)
+      key[i] = (byte) (i * 3);
+    cipher = new ChunkedCipher(key);
+  }
+
+  private byte[] write(ArrayList<Secret> secrets, int level)
+      throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    IndexedSecretsFile.write(output, cipher, secrets, level);
+    return output.toByteArray();
+  }
+
+  private ArrayList<Secret> read(byte[] file) throws IOException {
+    return IndexedSecretsFile.read(ByteBuffer.wrap(file), cipher,
+                                   IndexedSecretsFile.VERSION);
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    ArrayList<Secret> secrets = SecretsTestUtils.newSecrets(100);
+    SecretsTestUtils.assertSecretsEqual(secrets,
+        read(write(secrets, Deflater.NO_COMPRESSION)));
+  }
+
+  @Test
+  public void testCompressedRoundTrip() throws Exception {
+    ArrayList<Secret> secrets = SecretsTestUtils.newSecrets(100);
+    SecretsTestUtils.assertSecretsEqual(secrets,
+        read(write(secrets, Deflater.BEST_COMPRESSION)));
+  }
+
+  @Test
+  public void testCompressionMakesFileSmaller() throws Exception {
+    ArrayList<Secret> secrets = SecretsTestUtils.newSecrets(100);
+    byte[] stored = write(secrets, Deflater.NO_COMPRESSION);
+    byte[] deflated = write(secrets, Deflater.BEST_SPEED);
+    assertTrue(deflated.length < stored.length);
+
+    // The reader tells the two apart from the flags of the file.
+    SecretsTestUtils.assertSecretsEqual(read(stored), read(deflated));
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    assertEquals(0, read(write(new ArrayList<Secret>(),
+                               Deflater.DEFAULT_COMPRESSION)).size());
+  }
+
+  @Test
+  public void testRewriteCopiesLoadedRecords() throws Exception {
+    ArrayList<Secret> secrets = SecretsTestUtils.newSecrets(50);
+    ArrayList<Secret> loaded = read(write(secrets,
+                                          Deflater.DEFAULT_COMPRESSION));
+
+    // Secrets that were not modified are written from their records, without
+    // being decrypted.
+    loaded.get(3).setNote("changed");
+    secrets.get(3).setNote("changed");
+    SecretsTestUtils.assertSecretsEqual(secrets,
+        read(write(loaded, Deflater.DEFAULT_COMPRESSION)));
+  }
+
+  @Test
+  public void testUnknownVersion() throws Exception {
+    byte[] file = write(SecretsTestUtils.newSecrets(1),
+                        Deflater.NO_COMPRESSION);
+    try {
+      IndexedSecretsFile.read(ByteBuffer.wrap(file), cipher,
+                              IndexedSecretsFile.VERSION + 1);
+      fail("Expected IOException");
+    } catch (IOException ex) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testDetectsTamperedIndex() throws Exception {
+    byte[] file = write(SecretsTestUtils.newSecrets(10),
+                        Deflater.NO_COMPRESSION);
+    // The index sits between the records and its offset at the end.
+    file[file.length - 20] ^= 1;
+    try {
+      read(file);
+      fail("Expected IOException");
+    } catch (IOException ex) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testDetectsTamperedRecord() throws Exception {
+    byte[] file = write(SecretsTestUtils.newSecrets(10),
+                        Deflater.NO_COMPRESSION);
+    // The first record starts after the flags byte.
+    file[40] ^= 1;
+    ArrayList<Secret> secrets = read(file);
+    try {
+      secrets.get(0).getNote();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException ex) {
+      // Expected.
+    }
+    // The other records are still readable.
+    SecretsTestUtils.assertSecretEquals(SecretsTestUtils.newSecret(1),
+                                        secrets.get(1));
+  }
+}
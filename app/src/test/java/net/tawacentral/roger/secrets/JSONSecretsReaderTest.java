@@ -0,0 +1,137 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import static net.tawacentral.roger.secrets.SecretsTestUtils.assertSecretsEqual;
+import static net.tawacentral.roger.secrets.SecretsTestUtils.newCiphers;
+import static net.tawacentral.roger.secrets.SecretsTestUtils.newSecrets;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+/** Tests the streaming reader of V4 secrets, JSONSecretsReader. */
+public class JSONSecretsReaderTest {
+  private static ArrayList<Secret> readAll(Reader reader)
+      throws IOException, JSONException {
+    JSONSecretsReader secretsReader = new JSONSecretsReader(reader);
+    ArrayList<Secret> secrets = new ArrayList<Secret>();
+    for (Secret secret = secretsReader.next(); null != secret;
+         secret = secretsReader.next()) {
+      secrets.add(secret);
+    }
+    return secrets;
+  }
+
+  private static ArrayList<Secret> readAll(String json)
+      throws IOException, JSONException {
+    return readAll(new StringReader(json));
+  }
+
+  @Test
+  public void testReadsWhatToJSONSecretsWrites() throws Exception {
+    ArrayList<Secret> secrets = newSecrets(50);
+    String json = FileUtils.toJSONSecrets(secrets).toString();
+    assertSecretsEqual(secrets, readAll(json));
+  }
+
+  @Test
+  public void testReadsEncryptedStream() throws Exception {
+    SecurityUtils.CipherInfo info = newCiphers();
+    ArrayList<Secret> secrets = newSecrets(500);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    FileUtils.writeEncryptedJSONSecrets(output, info.encryptCipher, secrets);
+
+    // The same pipeline as FileUtils.readSecrets() for V4 files.
+    Reader reader = new InputStreamReader(
+        MappedSecretsFile.newCipherInputStream(
+            ByteBuffer.wrap(output.toByteArray()), info.decryptCipher),
+        "UTF-8");
+    assertSecretsEqual(secrets, readAll(reader));
+  }
+
+  @Test
+  public void testReadsStringsLongerThanBuffer() throws Exception {
+    ArrayList<Secret> secrets = newSecrets(3);
+    StringBuilder note = new StringBuilder();
+    for (int i = 0; note.length() < 50000; ++i)
+      note.append("line ").append(i).append(" \"quoted\"\n");
+    secrets.get(1).setNote(note.toString());
+
+    String json = FileUtils.toJSONSecrets(secrets).toString();
+    assertSecretsEqual(secrets, readAll(json));
+  }
+
+  @Test
+  public void testSkipsMembersBeforeSecrets() throws Exception {
+    String json = "{ \"version\" : 4, \"other\" : {\"a\": [1, 2.5, null]},\n" +
+        "  \"secrets\" : [ {\"description\":\"d\",\"username\":\"u\"," +
+        "\"password\":\"p\",\"email\":\"e\",\"note\":\"n\"} ] }";
+    ArrayList<Secret> secrets = readAll(json);
+    assertEquals(1, secrets.size());
+    assertEquals("d", secrets.get(0).getDescription());
+    assertEquals(1, secrets.get(0).getAccessLog().size());
+  }
+
+  @Test
+  public void testDecodesEscapes() throws Exception {
+    String json = "{\"secrets\":[{\"description\":\"a\\\"b\\\\c\\/d\"," +
+        "\"username\":\"\\u00e9\\u2603\",\"password\":\"\\t\\b\\f\"," +
+        "\"email\":\"\",\"note\":\"x\\r\\ny\"}]}";
+    Secret secret = readAll(json).get(0);
+    assertEquals("a\"b\\c/d", secret.getDescription());
+    assertEquals("\u00e9\u2603", secret.getUsername());
+    assertEquals("\t\b\f", secret.getPasswordForExport());
+    assertEquals("x\r\ny", secret.getNote());
+  }
+
+  @Test
+  public void testReadsEmptyArray() throws Exception {
+    JSONSecretsReader reader =
+        new JSONSecretsReader(new StringReader("{\"secrets\":[]}"));
+    assertNull(reader.next());
+    assertNull(reader.next());
+  }
+
+  @Test(expected = JSONException.class)
+  public void testRejectsMissingSecrets() throws Exception {
+    readAll("{\"other\":[]}");
+  }
+
+  @Test(expected = JSONException.class)
+  public void testRejectsUnterminatedString() throws Exception {
+    readAll("{\"secrets\":[{\"description\":\"abc");
+  }
+
+  @Test(expected = JSONException.class)
+  public void testRejectsMissingComma() throws Exception {
+    readAll("{\"secrets\":[{\"description\":\"d\",\"username\":\"u\"," +
+            "\"password\":\"p\",\"email\":\"e\",\"note\":\"n\"} {}]}");
+  }
+
+  @Test(expected = JSONException.class)
+  public void testRejectsInvalidEscape() throws Exception {
+    readAll("{\"secrets\":[{\"description\":\"\\x\"}]}");
+  }
+}
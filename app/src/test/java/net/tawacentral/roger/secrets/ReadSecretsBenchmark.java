@@ -0,0 +1,88 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Compares reading a V4 file as a stream, as FileUtils.readSecrets() does,
+ * with decrypting the whole file and parsing it into an org.json tree first,
+ * as it did before.  Reports the total time, the time until the first secret
+ * is available, and the peak heap used.  See Benchmark for how to run it.
+ */
+public class ReadSecretsBenchmark {
+  private static final int[] COUNTS = {1000, 10000, 50000};
+
+  public static void main(String[] args) throws Exception {
+    final SecurityUtils.CipherInfo info = SecretsTestUtils.newCiphers();
+    Benchmark.report("%8s %-8s %10s %12s %10s", "secrets", "reader",
+                     "total ms", "first ms", "peak MB");
+
+    for (int count : COUNTS) {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      FileUtils.writeEncryptedJSONSecrets(output, info.encryptCipher,
+                                          SecretsTestUtils.newSecrets(count));
+      final byte[] file = output.toByteArray();
+
+      Benchmark.Body tree = new Benchmark.Body() {
+        @Override
+        public void run() throws Exception {
+          FileUtils.fromEncryptedJSONSecretsStream(info.decryptCipher, file);
+        }
+      };
+      Benchmark.Body stream = new Benchmark.Body() {
+        @Override
+        public void run() throws Exception {
+          JSONSecretsReader reader = open(info, file);
+          ArrayList<Secret> secrets = new ArrayList<Secret>();
+          for (Secret secret = reader.next(); null != secret;
+               secret = reader.next()) {
+            secrets.add(secret);
+          }
+        }
+      };
+
+      // The tree is only complete once the whole file is parsed, so its
+      // first secret is available when it is done.
+      double treeMillis = Benchmark.time(3, 9, tree);
+      Benchmark.report("%8d %-8s %10.1f %12.1f %10.1f", count, "tree",
+                       treeMillis, treeMillis,
+                       Benchmark.peakHeap(tree) / 1e6);
+
+      double firstMillis = Benchmark.time(3, 9, new Benchmark.Body() {
+        @Override
+        public void run() throws Exception {
+          open(info, file).next();
+        }
+      });
+      Benchmark.report("%8d %-8s %10.1f %12.1f %10.1f", count, "stream",
+                       Benchmark.time(3, 9, stream), firstMillis,
+                       Benchmark.peakHeap(stream) / 1e6);
+    }
+  }
+
+  private static JSONSecretsReader open(SecurityUtils.CipherInfo info,
+                                        byte[] file) throws Exception {
+    Reader reader = new InputStreamReader(
+        MappedSecretsFile.newCipherInputStream(ByteBuffer.wrap(file),
+                                               info.decryptCipher),
+        "UTF-8");
+    return new JSONSecretsReader(reader);
+  }
+}
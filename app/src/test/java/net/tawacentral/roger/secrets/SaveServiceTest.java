@@ -0,0 +1,183 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+
+import javax.crypto.Cipher;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+/**
+ * Tests the skipping and coalescing of save requests in SaveService.  The
+ * service itself is not started, so requests stay in the mailbox and the
+ * counters show what execute() did with each one.
+ */
+public class SaveServiceTest {
+  private static final byte[] SALT = {1, 2, 3, 4, 5, 6, 7, 8};
+  private static final int ROUNDS = 4;
+
+  private Context context;
+  private Cipher cipher;
+  private ArrayList<Secret> secrets;
+
+  @Before
+  public void setUp() throws Exception {
+    SaveService.reset();
+    context = new ContextWrapper(null);
+    cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    secrets = new ArrayList<Secret>();
+    for (int i = 0; i < 3; ++i) {
+      Secret secret = new Secret();
+      secret.setDescription("secret " + i);
+      secret.setUsername("user");
+      secret.setPassword("password " + i, false);
+      secrets.add(secret);
+    }
+  }
+
+  @Test
+  public void testSkipsWhenNothingChanged() {
+    SaveService.setSaved(secrets, cipher, SALT, ROUNDS);
+    SaveService.execute(context, secrets, cipher, SALT, ROUNDS);
+    SaveService.execute(context, new ArrayList<Secret>(secrets), cipher, SALT,
+                        ROUNDS);
+
+    assertEquals(2, SaveService.getSavesSkipped());
+    assertEquals(0, SaveService.getSavesCoalesced());
+    assertEquals(0, SaveService.getSavesPerformed());
+  }
+
+  @Test
+  public void testSavesWhenSecretModified() {
+    SaveService.setSaved(secrets, cipher, SALT, ROUNDS);
+    secrets.get(1).setNote("changed");
+    SaveService.execute(context, secrets, cipher, SALT, ROUNDS);
+
+    assertEquals(0, SaveService.getSavesSkipped());
+  }
+
+  @Test
+  public void testSavesWhenAccessLogged() {
+    SaveService.setSaved(secrets, cipher, SALT, ROUNDS);
+    secrets.get(0).setExported();
+    SaveService.execute(context, secrets, cipher, SALT, ROUNDS);
+
+    assertEquals(0, SaveService.getSavesSkipped());
+  }
+
+  @Test
+  public void testSavesWhenListChanged() {
+    SaveService.setSaved(secrets, cipher, SALT, ROUNDS);
+    secrets.remove(2);
+    SaveService.execute(context, secrets, cipher, SALT, ROUNDS);
+
+    SaveService.setSaved(secrets, cipher, SALT, ROUNDS);
+    Secret secret = secrets.remove(0);
+    secrets.add(secret);
+    SaveService.execute(context, secrets, cipher, SALT, ROUNDS);
+
+    assertEquals(0, SaveService.getSavesSkipped());
+  }
+
+  @Test
+  public void testSavesWhenCipherChanged() throws Exception {
+    SaveService.setSaved(secrets, cipher, SALT, ROUNDS);
+    SaveService.execute(context, secrets,
+                        Cipher.getInstance("AES/CBC/PKCS5Padding"), SALT,
+                        ROUNDS);
+    SaveService.execute(context, secrets, cipher, new byte[SALT.length],
+                        ROUNDS);
+    SaveService.execute(context, secrets, cipher, SALT, ROUNDS + 1);
+
+    assertEquals(0, SaveService.getSavesSkipped());
+  }
+
+  @Test
+  public void testSavesAfterClearSaved() {
+    SaveService.setSaved(secrets, cipher, SALT, ROUNDS);
+    SaveService.clearSaved();
+    SaveService.execute(context, secrets, cipher, SALT, ROUNDS);
+
+    assertEquals(0, SaveService.getSavesSkipped());
+  }
+
+  @Test
+  public void testCoalescesRequestsWithinDebounce() {
+    SaveService.execute(context, secrets, cipher, SALT, ROUNDS);
+    assertEquals(0, SaveService.getSavesCoalesced());
+
+    // Each request replaces the one before it, which was not written yet.
+    for (int i = 0; i < 5; ++i) {
+      secrets.get(0).setNote("note " + i);
+      SaveService.execute(context, secrets, cipher, SALT, ROUNDS);
+    }
+
+    assertEquals(5, SaveService.getSavesCoalesced());
+    assertEquals(0, SaveService.getSavesSkipped());
+    assertEquals(0, SaveService.getSavesPerformed());
+  }
+
+  @Test
+  public void testSkippedRequestDoesNotReplacePending() {
+    SaveService.setSaved(secrets, cipher, SALT, ROUNDS);
+    secrets.get(2).setEmail("someone@example.com");
+    SaveService.execute(context, secrets, cipher, SALT, ROUNDS);
+
+    // The pending save is still needed, and another request for the same
+    // state replaces it rather than being skipped.
+    SaveService.execute(context, secrets, cipher, SALT, ROUNDS);
+
+    assertEquals(0, SaveService.getSavesSkipped());
+    assertEquals(1, SaveService.getSavesCoalesced());
+  }
+
+  @Test
+  public void testRevertedChangeDropsPending() {
+    SaveService.setSaved(secrets, cipher, SALT, ROUNDS);
+    Secret added = new Secret();
+    added.setDescription("added");
+    secrets.add(added);
+    SaveService.execute(context, secrets, cipher, SALT, ROUNDS);
+
+    // Undoing the change before the save is written leaves nothing to save,
+    // and the pending save of the added secret must not be written.
+    secrets.remove(added);
+    SaveService.execute(context, secrets, cipher, SALT, ROUNDS);
+    assertEquals(1, SaveService.getSavesSkipped());
+    assertEquals(1, SaveService.getSavesCoalesced());
+
+    // Nothing is pending any more, so a new change replaces nothing.
+    secrets.get(0).setNote("changed");
+    SaveService.execute(context, secrets, cipher, SALT, ROUNDS);
+    assertEquals(1, SaveService.getSavesCoalesced());
+  }
+
+  @Test
+  public void testIgnoresRequestsWithoutSecretsOrCipher() {
+    SaveService.execute(context, null, cipher, SALT, ROUNDS);
+    SaveService.execute(context, secrets, null, SALT, ROUNDS);
+    SaveService.execute(context, secrets, cipher, SALT, ROUNDS);
+
+    assertEquals(0, SaveService.getSavesCoalesced());
+    assertEquals(0, SaveService.getSavesSkipped());
+  }
+}
@@ -0,0 +1,333 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+/**
+ * Tests the content-defined chunks of SecretsBackupHelper, and that a backup
+ * only sends the chunks an edit changed, using a fake BackupDataOutput.
+ */
+public class SecretsBackupHelperTest {
+  private static final String FILE_NAME = "secrets";
+  private static final int FILE_SIZE = 1024 * 1024;
+
+  private File root;
+  private Context context;
+
+  /** A context whose files are kept in a directory of its own. */
+  private static class FileContext extends ContextWrapper {
+    private final File dir;
+
+    FileContext(File dir) {
+      super(null);
+      this.dir = dir;
+      dir.mkdirs();
+    }
+
+    @Override
+    public File getFileStreamPath(String name) {
+      return new File(dir, name);
+    }
+
+    @Override
+    public File getDir(String name, int mode) {
+      File subdir = new File(dir, "app_" + name);
+      subdir.mkdirs();
+      return subdir;
+    }
+  }
+
+  /**
+   * Records the entities of a backup, as the backup transport would.  A
+   * deleted entity is recorded with null data.
+   */
+  private static class FakeBackupOutput
+      implements SecretsBackupHelper.EntityOutput {
+    final Map<String, byte[]> entities = new LinkedHashMap<String, byte[]>();
+    int bytesSent;
+    private String key;
+
+    @Override
+    public void writeEntityHeader(String key, int size) {
+      this.key = key;
+      entities.put(key, null);
+    }
+
+    @Override
+    public void writeEntityData(byte[] data, int size) {
+      entities.put(key, Arrays.copyOf(data, size));
+      bytesSent += size;
+    }
+
+    Set<String> getDeleted() {
+      Set<String> deleted = new HashSet<String>();
+      for (Map.Entry<String, byte[]> entry : entities.entrySet()) {
+        if (null == entry.getValue())
+          deleted.add(entry.getKey());
+      }
+      return deleted;
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    root = File.createTempFile("backup", "");
+    root.delete();
+    context = new FileContext(new File(root, "device"));
+  }
+
+  @After
+  public void tearDown() {
+    delete(root);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (null != children) {
+      for (File child : children)
+        delete(child);
+    }
+    file.delete();
+  }
+
+  private static byte[] randomBytes(int length, long seed) {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static void writeFile(File file, byte[] data) throws IOException {
+    FileOutputStream output = new FileOutputStream(file);
+    try {
+      output.write(data);
+    } finally {
+      output.close();
+    }
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    byte[] data = new byte[(int) file.length()];
+    FileInputStream input = new FileInputStream(file);
+    try {
+      new DataInputStream(input).readFully(data);
+    } finally {
+      input.close();
+    }
+    return data;
+  }
+
+  /** Returns the sizes of the chunks the data is cut into. */
+  private ArrayList<Integer> chunkSizes(byte[] data) throws Exception {
+    File file = context.getFileStreamPath("chunked");
+    writeFile(file, data);
+    final ArrayList<Integer> sizes = new ArrayList<Integer>();
+    SecretsBackupHelper.FileChunks chunks = SecretsBackupHelper.chunkFile(
+        file, new SecretsBackupHelper.ChunkHandler() {
+          @Override
+          public void onChunk(byte[] id, byte[] chunk, int length) {
+            sizes.add(length);
+          }
+        });
+    assertEquals(data.length, chunks.length);
+    assertEquals(sizes.size(), chunks.ids.size());
+    return sizes;
+  }
+
+  /** Returns the ids of the chunks the data is cut into. */
+  private Set<ByteBuffer> chunkIds(byte[] data) throws Exception {
+    File file = context.getFileStreamPath("chunked");
+    writeFile(file, data);
+    Set<ByteBuffer> ids = new HashSet<ByteBuffer>();
+    for (byte[] id : SecretsBackupHelper.chunkFile(file,
+        new SecretsBackupHelper.ChunkHandler() {
+          @Override
+          public void onChunk(byte[] id, byte[] chunk, int length) {
+          }
+        }).ids) {
+      ids.add(ByteBuffer.wrap(id));
+    }
+    return ids;
+  }
+
+  /** Backs up with the given old state, and returns the new state. */
+  private static byte[] backup(SecretsBackupHelper helper, byte[] oldState,
+                               FakeBackupOutput output) {
+    ByteArrayOutputStream newState = new ByteArrayOutputStream();
+    helper.performBackup(
+        null == oldState ? null : new ByteArrayInputStream(oldState),
+        output, newState);
+    return newState.toByteArray();
+  }
+
+  @Test
+  public void testChunkSizesWithinBounds() throws Exception {
+    ArrayList<Integer> sizes = chunkSizes(randomBytes(FILE_SIZE, 1));
+    assertTrue(sizes.size() > FILE_SIZE / SecretsBackupHelper.MAX_CHUNK_SIZE);
+    int total = 0;
+    for (int i = 0; i < sizes.size(); ++i) {
+      int size = sizes.get(i);
+      assertTrue(size <= SecretsBackupHelper.MAX_CHUNK_SIZE);
+      if (i < sizes.size() - 1)
+        assertTrue(size >= SecretsBackupHelper.MIN_CHUNK_SIZE);
+      total += size;
+    }
+    assertEquals(FILE_SIZE, total);
+  }
+
+  @Test
+  public void testUniformDataIsCutAtMaximum() throws Exception {
+    // Without any variety in the content, no cut point is ever found.
+    int max = SecretsBackupHelper.MAX_CHUNK_SIZE;
+    byte[] data = new byte[3 * max + 10];
+    Arrays.fill(data, (byte) 0x55);
+    ArrayList<Integer> sizes = chunkSizes(data);
+    assertEquals(Arrays.asList(max, max, max, 10), sizes);
+  }
+
+  @Test
+  public void testSmallAndEmptyFiles() throws Exception {
+    assertEquals(0, chunkSizes(new byte[0]).size());
+    assertEquals(Arrays.asList(1), chunkSizes(new byte[1]));
+    int min = SecretsBackupHelper.MIN_CHUNK_SIZE;
+    assertEquals(Arrays.asList(min - 1), chunkSizes(randomBytes(min - 1, 2)));
+  }
+
+  @Test
+  public void testInsertOnlyChangesNearbyChunks() throws Exception {
+    byte[] data = randomBytes(FILE_SIZE, 3);
+    Set<ByteBuffer> before = chunkIds(data);
+
+    // Insert a few bytes in the middle, moving everything after them.
+    byte[] edited = new byte[data.length + 7];
+    System.arraycopy(data, 0, edited, 0, FILE_SIZE / 2);
+    System.arraycopy(data, FILE_SIZE / 2, edited, FILE_SIZE / 2 + 7,
+                     FILE_SIZE / 2);
+    Set<ByteBuffer> after = chunkIds(edited);
+
+    Set<ByteBuffer> changed = new HashSet<ByteBuffer>(after);
+    changed.removeAll(before);
+    assertTrue("changed " + changed.size(), changed.size() <= 2);
+  }
+
+  @Test
+  public void testBackupSendsOnlyChangedChunks() throws Exception {
+    byte[] data = randomBytes(FILE_SIZE, 4);
+    File file = context.getFileStreamPath(FILE_NAME);
+    writeFile(file, data);
+    SecretsBackupHelper helper = new SecretsBackupHelper(context, FILE_NAME);
+
+    // The first backup sends everything, and deletes the entity written by
+    // FileBackupHelper.
+    FakeBackupOutput first = new FakeBackupOutput();
+    byte[] state = backup(helper, null, first);
+    assertTrue(first.bytesSent > FILE_SIZE);
+    assertEquals(new HashSet<String>(Arrays.asList(FILE_NAME)),
+                 first.getDeleted());
+
+    // Nothing changed, so nothing is sent.
+    FakeBackupOutput unchanged = new FakeBackupOutput();
+    state = backup(helper, state, unchanged);
+    assertEquals(0, unchanged.entities.size());
+
+    // A small edit sends a few chunks and the manifest, and deletes the
+    // chunks that were replaced.
+    data[FILE_SIZE / 3] ^= 1;
+    writeFile(file, data);
+    FakeBackupOutput edited = new FakeBackupOutput();
+    backup(helper, state, edited);
+    assertTrue("sent " + edited.bytesSent,
+               edited.bytesSent < 2 * SecretsBackupHelper.MAX_CHUNK_SIZE);
+    assertTrue(edited.entities.containsKey("manifest"));
+    int deleted = edited.getDeleted().size();
+    assertTrue("deleted " + deleted, deleted >= 1 && deleted <= 2);
+  }
+
+  @Test
+  public void testRestore() throws Exception {
+    byte[] data = randomBytes(FILE_SIZE, 5);
+    writeFile(context.getFileStreamPath(FILE_NAME), data);
+    FakeBackupOutput output = new FakeBackupOutput();
+    backup(new SecretsBackupHelper(context, FILE_NAME), null, output);
+
+    Context device = new FileContext(new File(root, "restored"));
+    SecretsBackupHelper helper = new SecretsBackupHelper(device, FILE_NAME);
+    restore(helper, output);
+    ByteArrayOutputStream state = new ByteArrayOutputStream();
+    helper.writeNewStateDescription(state);
+    assertArrayEquals(data, readFile(device.getFileStreamPath(FILE_NAME)));
+
+    // The restored state knows the chunks, so the next backup sends nothing.
+    FakeBackupOutput next = new FakeBackupOutput();
+    backup(helper, state.toByteArray(), next);
+    assertEquals(0, next.entities.size());
+  }
+
+  @Test
+  public void testRestoreChecksFileHash() throws Exception {
+    writeFile(context.getFileStreamPath(FILE_NAME), randomBytes(FILE_SIZE, 6));
+    FakeBackupOutput output = new FakeBackupOutput();
+    backup(new SecretsBackupHelper(context, FILE_NAME), null, output);
+    for (byte[] value : output.entities.values()) {
+      if (null != value && value.length > 1000) {
+        value[100] ^= 1;
+        break;
+      }
+    }
+
+    Context device = new FileContext(new File(root, "restored"));
+    SecretsBackupHelper helper = new SecretsBackupHelper(device, FILE_NAME);
+    restore(helper, output);
+    helper.writeNewStateDescription(new ByteArrayOutputStream());
+    assertFalse(device.getFileStreamPath(FILE_NAME).exists());
+  }
+
+  private static void restore(SecretsBackupHelper helper,
+                              FakeBackupOutput output) {
+    for (Map.Entry<String, byte[]> entry : output.entities.entrySet()) {
+      byte[] value = entry.getValue();
+      if (null != value) {
+        helper.restoreEntity(entry.getKey(), value.length,
+                             new ByteArrayInputStream(value));
+      }
+    }
+  }
+}
@@ -0,0 +1,213 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that SecretsImporter gives the same secrets whether the file is
+ * parsed in one thread or in parallel chunks, and that it still detects the
+ * format of the file from its first line.
+ */
+public class SecretsImporterTest {
+  private static final String[] SECRETS_HEADERS = {
+      FileUtils.COL_DESCRIPTION, FileUtils.COL_USERNAME,
+      FileUtils.COL_PASSWORD, FileUtils.COL_EMAIL, FileUtils.COL_NOTES
+  };
+  private static final String[] OI_SAFE_HEADERS = {
+      "Category", "Description", "Website", "Username", "Password", "Notes"
+  };
+
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("import", ".csv");
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  /**
+   * Creates rows in the secrets format.  Many rows share a description, and
+   * the notes have line breaks and quotes, so that chunks are cut near
+   * quoted line breaks.
+   */
+  private static String[][] newRows(int count) {
+    String[][] rows = new String[count + 1][];
+    rows[0] = SECRETS_HEADERS;
+    for (int i = 0; i < count; ++i) {
+      rows[i + 1] = new String[] {
+          "Account " + (i * 7 % 1000), "user" + i, "p\"w\" " + i,
+          "mail" + i + "@example.com",
+          "Line one\nLine \"two\"\r\nCafé " + i
+      };
+    }
+    return rows;
+  }
+
+  private void writeFile(String[][] rows) throws Exception {
+    CsvWriter writer = new CsvWriter(new OutputStreamWriter(
+        new FileOutputStream(file), "UTF-8"));
+    for (String[] row : rows)
+      writer.writeRow(row);
+    writer.close();
+  }
+
+  private ArrayList<Secret> importFile(int threads, boolean complete) {
+    SecretsImporter importer = new SecretsImporter(file, null, null);
+    importer.setThreads(threads);
+    ArrayList<Secret> secrets = importer.run();
+    assertEquals(complete, importer.isComplete());
+    assertEquals(secrets.size(), importer.getRows());
+    return secrets;
+  }
+
+  /** Returns the secrets of the rows after the headers, sorted stably. */
+  private static ArrayList<Secret> expected(String[][] rows) {
+    ArrayList<Secret> secrets = new ArrayList<Secret>();
+    for (int i = 1; i < rows.length; ++i) {
+      Secret secret = new Secret();
+      secret.setDescription(rows[i][0]);
+      secret.setUsername(rows[i][1]);
+      secret.setPassword(rows[i][2], false);
+      secret.setEmail(rows[i][3]);
+      secret.setNote(rows[i][4]);
+      secrets.add(secret);
+    }
+    Collections.sort(secrets);
+    return secrets;
+  }
+
+  private static void assertSameFields(ArrayList<Secret> expected,
+                                       ArrayList<Secret> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); ++i) {
+      Secret e = expected.get(i);
+      Secret a = actual.get(i);
+      assertEquals(e.getDescription(), a.getDescription());
+      assertEquals(e.getUsername(), a.getUsername());
+      assertEquals(e.getPasswordForExport(), a.getPasswordForExport());
+      assertEquals(e.getEmail(), a.getEmail());
+      assertEquals(e.getNote(), a.getNote());
+    }
+  }
+
+  @Test
+  public void testParallelMatchesSingleThread() throws Exception {
+    // Several chunks, so that runs are merged.
+    String[][] rows = newRows(40000);
+    writeFile(rows);
+    assertTrue(file.length() > 8 * SecretsImporter.CHUNK_SIZE);
+
+    ArrayList<Secret> expected = expected(rows);
+    assertSameFields(expected, importFile(1, true));
+    assertSameFields(expected, importFile(4, true));
+  }
+
+  @Test
+  public void testRecordLongerThanChunk() throws Exception {
+    char[] chars = new char[3 * SecretsImporter.CHUNK_SIZE];
+    Arrays.fill(chars, '\n');
+    String[][] rows = newRows(3);
+    rows[2][4] = new String(chars);
+    writeFile(rows);
+    assertSameFields(expected(rows), importFile(4, true));
+  }
+
+  @Test
+  public void testCarriageReturnsAtChunkBoundaries() throws Exception {
+    // Records ending with CR LF or CR only, whatever the chunks split.
+    StringBuilder text = new StringBuilder();
+    text.append("Description,Id,PIN,Email,Notes\r\n");
+    String[][] rows = new String[30001][];
+    rows[0] = SECRETS_HEADERS;
+    for (int i = 1; i < rows.length; ++i) {
+      rows[i] = new String[] {"d" + i, "u", "p", "e", "n\r" + i};
+      text.append("d").append(i).append(",u,p,e,\"n\r").append(i)
+          .append(0 == i % 2 ? "\"\r\n" : "\"\r");
+    }
+    FileOutputStream output = new FileOutputStream(file);
+    output.write(text.toString().getBytes("UTF-8"));
+    output.close();
+    assertSameFields(expected(rows), importFile(4, true));
+  }
+
+  @Test
+  public void testOiSafeCsv() throws Exception {
+    String[][] rows = new String[20001][];
+    rows[0] = OI_SAFE_HEADERS;
+    for (int i = 1; i < rows.length; ++i) {
+      rows[i] = new String[] {
+          "Web", "Site " + i, 0 == i % 2 ? "" : "example.com", "user" + i,
+          "pw" + i, "note\n" + i
+      };
+    }
+    writeFile(rows);
+
+    ArrayList<Secret> secrets = importFile(4, true);
+    assertEquals(rows.length - 1, secrets.size());
+    for (Secret secret : secrets) {
+      int i = Integer.parseInt(secret.getDescription().substring(5));
+      assertEquals("user" + i, secret.getUsername());
+      assertEquals("pw" + i, secret.getPasswordForExport());
+      assertEquals("", secret.getEmail());
+      String note = "note\n" + i + "\n\nCategory: Web\n" +
+          (0 == i % 2 ? "" : "Website: example.com\n");
+      assertEquals(note, secret.getNote());
+    }
+  }
+
+  @Test
+  public void testUnknownFormat() throws Exception {
+    String[][] rows = newRows(10);
+    rows[0] = new String[] {"a", "b", "c", "d", "e"};
+    writeFile(rows);
+
+    // The rows are still imported, as a best effort, but the import is not
+    // reported as complete.
+    assertEquals(10, importFile(4, false).size());
+  }
+
+  @Test
+  public void testEmptyFile() throws Exception {
+    assertEquals(0, importFile(4, false).size());
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    writeFile(newRows(100));
+    SecretsImporter importer = new SecretsImporter(file, null, null);
+    importer.cancel();
+    assertNull(importer.run());
+    assertFalse(importer.isComplete());
+  }
+}
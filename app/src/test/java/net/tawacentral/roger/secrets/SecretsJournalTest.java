@@ -0,0 +1,253 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.zip.Deflater;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests appending to the journal and replaying it over the snapshot.  The
+ * snapshot is written with IndexedSecretsFile directly, like
+ * FileUtils.saveSecrets() does for the current format.
+ */
+public class SecretsJournalTest {
+  private File dir;
+  private File snapshot;
+  private SecurityUtils.CipherInfo info;
+  private ChunkedCipher chunkedCipher;
+  private ArrayList<Secret> secrets;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = File.createTempFile("journal", "");
+    assertTrue(dir.delete() && dir.mkdir());
+    snapshot = new File(dir, FileUtils.SECRETS_FILE_NAME);
+    info = SecretsTestUtils.newCiphers();
+    chunkedCipher = new ChunkedCipher(info.key);
+    secrets = SecretsTestUtils.newSecrets(20);
+    Collections.sort(secrets);
+    writeSnapshot(secrets);
+  }
+
+  @After
+  public void tearDown() {
+    SecretsJournal.clear();
+    for (File file : dir.listFiles())
+      file.delete();
+    dir.delete();
+  }
+
+  /** Writes a new snapshot, the way a full save does. */
+  private void writeSnapshot(ArrayList<Secret> secrets) throws IOException {
+    write(snapshot, secrets);
+    SecretsJournal.reset(snapshot, info.encryptCipher, info.key, info.salt,
+                         info.rounds, secrets);
+  }
+
+  private void write(File file, ArrayList<Secret> secrets)
+      throws IOException {
+    FileOutputStream output = new FileOutputStream(file);
+    try {
+      IndexedSecretsFile.write(output, chunkedCipher, secrets,
+                               Deflater.DEFAULT_COMPRESSION);
+    } finally {
+      output.close();
+    }
+  }
+
+  private ArrayList<Secret> read(File file) throws IOException {
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      byte[] data = new byte[(int) input.length()];
+      input.readFully(data);
+      return IndexedSecretsFile.read(ByteBuffer.wrap(data), chunkedCipher,
+                                     IndexedSecretsFile.VERSION);
+    } finally {
+      input.close();
+    }
+  }
+
+  private boolean append() {
+    return SecretsJournal.append(snapshot, info.encryptCipher, info.salt,
+                                 info.rounds, secrets);
+  }
+
+  /** Loads the snapshot and applies the journal, like FileUtils does. */
+  private ArrayList<Secret> load() throws IOException {
+    return SecretsJournal.replay(snapshot, info, read(snapshot));
+  }
+
+  private ArrayList<Secret> sorted(ArrayList<Secret> secrets) {
+    ArrayList<Secret> copy = new ArrayList<Secret>(secrets);
+    Collections.sort(copy);
+    return copy;
+  }
+
+  /**
+   * Returns the contents of the given secrets as a full save would write
+   * them, unaffected by later changes to the secrets.
+   */
+  private ArrayList<Secret> copy(ArrayList<Secret> secrets)
+      throws IOException {
+    File full = new File(dir, "full");
+    write(full, sorted(secrets));
+    return read(full);
+  }
+
+  @Test
+  public void testReplayMatchesFullSave() throws Exception {
+    secrets.get(3).setNote("changed");
+    secrets.remove(7);
+    secrets.add(SecretsTestUtils.newSecret(100));
+    assertTrue(append());
+    secrets.get(5).setPassword("new password", false);
+    secrets.remove(0);
+    assertTrue(append());
+
+    SecretsTestUtils.assertSecretsEqual(copy(secrets), load());
+  }
+
+  @Test
+  public void testReplayWithoutChanges() throws Exception {
+    assertTrue(append());
+    assertFalse(SecretsJournal.getJournalFile(snapshot).exists());
+    SecretsTestUtils.assertSecretsEqual(secrets, load());
+  }
+
+  @Test
+  public void testReplayedSecretsCanBeJournaled() throws Exception {
+    secrets.get(2).setNote("first");
+    assertTrue(append());
+
+    // After a load, the next save appends to the same journal.
+    secrets = load();
+    secrets.get(9).setNote("second");
+    secrets.add(SecretsTestUtils.newSecret(200));
+    assertTrue(append());
+
+    SecretsTestUtils.assertSecretsEqual(sorted(secrets), load());
+  }
+
+  @Test
+  public void testTornSaveIsDropped() throws Exception {
+    secrets.get(1).setNote("committed");
+    assertTrue(append());
+    ArrayList<Secret> committed = copy(secrets);
+    File journal = SecretsJournal.getJournalFile(snapshot);
+    long length = journal.length();
+
+    secrets.get(4).setNote("torn");
+    secrets.get(6).setNote("torn");
+    assertTrue(append());
+
+    // Cut the journal after the first record of the second save, so its
+    // COMMIT record is lost, like a save cut short by the app being killed.
+    RandomAccessFile file = new RandomAccessFile(journal, "rw");
+    try {
+      file.seek(length);
+      file.setLength(length + 4 + file.readInt());
+    } finally {
+      file.close();
+    }
+
+    SecretsTestUtils.assertSecretsEqual(committed, load());
+
+    // The journal is damaged, so the next save must be a full save.
+    assertFalse(append());
+  }
+
+  @Test
+  public void testDamagedRecordIsDropped() throws Exception {
+    secrets.get(1).setNote("committed");
+    assertTrue(append());
+    ArrayList<Secret> committed = copy(secrets);
+    File journal = SecretsJournal.getJournalFile(snapshot);
+    long length = journal.length();
+
+    secrets.get(4).setNote("damaged");
+    assertTrue(append());
+
+    RandomAccessFile file = new RandomAccessFile(journal, "rw");
+    try {
+      file.seek(length + 8);
+      int b = file.read();
+      file.seek(length + 8);
+      file.write(b ^ 1);
+    } finally {
+      file.close();
+    }
+
+    SecretsTestUtils.assertSecretsEqual(committed, load());
+    assertFalse(append());
+  }
+
+  @Test
+  public void testJournalOfOtherSnapshotIsIgnored() throws Exception {
+    secrets.get(1).setNote("journaled");
+    assertTrue(append());
+    File journal = SecretsJournal.getJournalFile(snapshot);
+    assertTrue(journal.exists());
+
+    // A new snapshot written without deleting the journal, like when the
+    // app dies between the two.  The BEGIN record no longer matches.
+    secrets = SecretsTestUtils.newSecrets(15);
+    Collections.sort(secrets);
+    write(snapshot, secrets);
+
+    SecretsTestUtils.assertSecretsEqual(secrets, load());
+    assertFalse(journal.exists());
+  }
+
+  @Test
+  public void testCompactionThreshold() throws Exception {
+    File journal = SecretsJournal.getJournalFile(snapshot);
+    assertFalse(SecretsJournal.isCompactionDue(info.encryptCipher));
+
+    // Small snapshots are only compacted once the journal reaches the
+    // minimum size of 16KB.
+    int saves = 0;
+    while (!SecretsJournal.isCompactionDue(info.encryptCipher)) {
+      assertTrue(journal.length() <= 16 * 1024);
+      secrets.get(saves % secrets.size()).setNote("save " + saves);
+      assertTrue(append());
+      ++saves;
+    }
+    assertTrue(journal.length() > 16 * 1024);
+    assertTrue(saves > 1);
+
+    // Only the cipher that wrote the journal may compact it.
+    assertFalse(SecretsJournal.isCompactionDue(
+        SecretsTestUtils.newCiphers().encryptCipher));
+
+    // Compaction writes a new snapshot, which starts a new journal.
+    writeSnapshot(sorted(secrets));
+    assertFalse(journal.exists());
+    assertFalse(SecretsJournal.isCompactionDue(info.encryptCipher));
+    SecretsTestUtils.assertSecretsEqual(sorted(secrets), load());
+  }
+}
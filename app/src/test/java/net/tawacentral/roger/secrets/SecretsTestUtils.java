@@ -0,0 +1,111 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.tawacentral.roger.secrets;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/** Secrets with known contents, shared by the tests and benchmarks. */
+final class SecretsTestUtils {
+  /** Time of the first access log entry of each secret. */
+  static final long START_TIME = 1262304000000L;
+
+  private SecretsTestUtils() {}
+
+  /**
+   * Creates the given number of secrets.  The fields include characters that
+   * need escaping in JSON and CSV, and non-ASCII text, and each secret has an
+   * access log of a few entries at fixed times.
+   */
+  static ArrayList<Secret> newSecrets(int count) {
+    ArrayList<Secret> secrets = new ArrayList<Secret>(count);
+    for (int i = 0; i < count; ++i)
+      secrets.add(newSecret(i));
+    return secrets;
+  }
+
+  /**
+   * Creates ciphers for a fixed password and salt, with the fewest rounds
+   * bcrypt allows.
+   */
+  static SecurityUtils.CipherInfo newCiphers() {
+    byte[] salt = new byte[16];
+    for (int i = 0; i < salt.length; ++i)
+      salt[i] = (byte) i;
+    return SecurityUtils.createCiphers("password", salt, 4);
+  }
+
+  /** Creates the secret with the given number, see newSecrets(). */
+  static Secret newSecret(int i) {
+    try {
+      JSONObject json = new JSONObject();
+      json.put("description", "Account " + i);
+      json.put("username", "user" + i + "@example.com");
+      json.put("password", "p@ss,\"word\" " + (i * 7919));
+      json.put("email", 0 == i % 3 ? "" : "mail" + i + "@example.com");
+      json.put("note", 0 == i % 2
+          ? "Line one\nLine two, with \"quotes\"\r\nCafé ☃ " + i
+          : "");
+      json.put("deleted", 0 == i % 10);
+
+      // Most recent first, like the access log of a real secret.
+      JSONArray log = new JSONArray();
+      int entries = 1 + i % 5;
+      for (int j = entries - 1; j >= 0; --j) {
+        JSONObject entry = new JSONObject();
+        entry.put("type", 0 == j ? Secret.LogEntry.CREATED
+                                 : Secret.LogEntry.VIEWED);
+        entry.put("time", START_TIME + i * 60000L + j * 3600000L);
+        log.put(entry);
+      }
+      json.put("log", log);
+      return Secret.fromJSON(json);
+    } catch (JSONException ex) {
+      throw new AssertionError(ex);
+    }
+  }
+
+  /** Checks that two secrets have the same fields and access log. */
+  static void assertSecretEquals(Secret expected, Secret actual) {
+    assertEquals(expected.getDescription(), actual.getDescription());
+    assertEquals(expected.getUsername(), actual.getUsername());
+    assertEquals(expected.getPasswordForExport(),
+                 actual.getPasswordForExport());
+    assertEquals(expected.getEmail(), actual.getEmail());
+    assertEquals(expected.getNote(), actual.getNote());
+    assertEquals(expected.isDeleted(), actual.isDeleted());
+
+    List<Secret.LogEntry> expectedLog = expected.getAccessLog();
+    List<Secret.LogEntry> actualLog = actual.getAccessLog();
+    assertEquals(expectedLog.size(), actualLog.size());
+    for (int i = 0; i < expectedLog.size(); ++i) {
+      assertEquals(expectedLog.get(i).getType(), actualLog.get(i).getType());
+      assertEquals(expectedLog.get(i).getTime(), actualLog.get(i).getTime());
+    }
+  }
+
+  /** Checks that two lists hold the same secrets, in the same order. */
+  static void assertSecretsEqual(List<Secret> expected, List<Secret> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); ++i)
+      assertSecretEquals(expected.get(i), actual.get(i));
+  }
+}
@@ -0,0 +1,83 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.mindrot.jbcrypt;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Compares the time crypt_raw() takes with the current Blowfish core and
+ * with BaselineBCrypt, at 4 to 14 rounds.  Like the benchmarks of the app
+ * package, it is a plain class with a main() method, run on a desktop JVM
+ * with the unit test classpath.  Each time is the median of a few runs, after
+ * warm-up runs that let the JIT compile both cores.
+ */
+public class BCryptBenchmark {
+  private static final int WARM_UP_RUNS = 3;
+  private static final int RUNS = 5;
+
+  private interface Core {
+    byte[] run(byte[] password, byte[] salt, int rounds, int[] plaintext);
+  }
+
+  public static void main(String[] args) {
+    final BCrypt current = new BCrypt();
+    final BaselineBCrypt baseline = new BaselineBCrypt();
+    Core currentCore = new Core() {
+      @Override
+      public byte[] run(byte[] password, byte[] salt, int rounds,
+                        int[] plaintext) {
+        return current.crypt_raw(password, salt, rounds, plaintext);
+      }
+    };
+    Core baselineCore = new Core() {
+      @Override
+      public byte[] run(byte[] password, byte[] salt, int rounds,
+                        int[] plaintext) {
+        return baseline.crypt_raw(password, salt, rounds, plaintext);
+      }
+    };
+
+    System.out.println(String.format(Locale.US, "%6s %12s %12s %8s",
+                                     "rounds", "baseline ms", "current ms",
+                                     "speedup"));
+    for (int rounds = 4; rounds <= 14; ++rounds) {
+      double before = time(baselineCore, rounds);
+      double after = time(currentCore, rounds);
+      System.out.println(String.format(Locale.US, "%6d %12.2f %12.2f %8.2f",
+                                       rounds, before, after, before / after));
+    }
+  }
+
+  /** Returns the median time of crypt_raw() with the given rounds, in ms. */
+  private static double time(Core core, int rounds) {
+    byte[] password = {'p', 'a', 's', 's', 'w', 'o', 'r', 'd'};
+    byte[] salt = new byte[BCrypt.BCRYPT_SALT_LEN];
+    int[] plaintext = {0x155cbf8e, 0x57f57513, 0x3da787b9, 0x71679d82,
+                       0x7cf72e93, 0x1ae25274, 0x64b54adc, 0x335cbd0b};
+
+    for (int i = 0; i < WARM_UP_RUNS; ++i)
+      core.run(password, salt, rounds, plaintext.clone());
+
+    long[] times = new long[RUNS];
+    for (int i = 0; i < RUNS; ++i) {
+      long start = System.nanoTime();
+      core.run(password, salt, rounds, plaintext.clone());
+      times[i] = System.nanoTime() - start;
+    }
+    Arrays.sort(times);
+    return times[RUNS / 2] / 1e6;
+  }
+}
@@ -0,0 +1,152 @@
+// Copyright (c) 2009, Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.mindrot.jbcrypt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Known answer tests for BCrypt.  The keys of existing vaults are derived
+ * with crypt_raw(), so its output must never change.  The expected values
+ * were computed with the implementation from before the Blowfish core was
+ * unrolled, which is also kept as BaselineBCrypt and compared against
+ * directly.
+ */
+public class BCryptTest {
+  /** The plain text SecurityUtils encrypts to derive the vault key. */
+  private static final int[] PLAINTEXT = {
+      0x155cbf8e, 0x57f57513, 0x3da787b9, 0x71679d82,
+      0x7cf72e93, 0x1ae25274, 0x64b54adc, 0x335cbd0b
+  };
+
+  // Password, salt, rounds and the result of crypt_raw() on PLAINTEXT.
+  private static final String[][] RAW_VECTORS = {
+      {"password", "000102030405060708090a0b0c0d0e0f", "4",
+       "4214e76817a76fb52ff1634ee9a8ba050fa87894fa76ce3d3729b278c121da34"},
+      {"password", "000102030405060708090a0b0c0d0e0f", "5",
+       "2ad8c2940c503375e60893dc82cb09bfda99be099ea3861745057e7cb4e8f20a"},
+      {"password", "73d51abbd89cb8196f0efb6892f94d68", "6",
+       "4185ad4d7f1484b5cd621cd3e35d8b88bf65273951b56076f4afcfb2c1eab131"},
+      {"correct horse battery staple", "39722cbbf8b91a4b9045c5e6175f1001",
+       "8",
+       "d8ec44292375b73618462d4963df270394c3563b92c098a6f60cf4189b3934f6"},
+      {"p\u00e4ssw\u00f6rd \u2603", "4c9326bb9805fa8f85882c12eae724ce", "4",
+       "3d5b33d9d108d3acaa445d4edbddba7fc602e5c0f7b98e96aaba8b13ee070c63"},
+      {"x", "ac3809bbb87f56e84fd730eb0d948bcf", "7",
+       "3cd23ffbdfc715fe904894afd057fdf530208142f9124f6c6273c92606f1c839"},
+      // Longer than the 72 bytes of key that Blowfish uses.
+      {"0123456789012345678901234567890123456789012345678901234567890123" +
+       "456789012345678", "bf5903bb58cb352d441a9816e01ca09c", "4",
+       "3fafda7d6b846a262911cc3587701120e58d16872ce05dd62397a6ea602e236b"},
+      {"secret", "86f614bb78e8975e6551629465826235", "10",
+       "626f13eaadced1ca53e671c4de055171543a3ac0070c492292b5b01e9d1d2d7a"},
+  };
+
+  // Password, salt and hash, from the test vectors of jBCrypt.
+  private static final String[][] HASH_VECTORS = {
+      {"", "$2a$06$DCq7YPn5Rq63x1Lad4cll.",
+       "$2a$06$DCq7YPn5Rq63x1Lad4cll.TV4S6ytwfsfvkgY8jIucDrjc8deX1s."},
+      {"a", "$2a$06$m0CrhHm10qJ3lXRY.5zDGO",
+       "$2a$06$m0CrhHm10qJ3lXRY.5zDGO3rS2KdeeWLuGmsfGlMfOxih58VYVfxe"},
+      {"abc", "$2a$06$If6bvum7DFjUnE9p2uDeDu",
+       "$2a$06$If6bvum7DFjUnE9p2uDeDu0YHzrHM6tf.iqN8.yx.jNN1ILEf7h0i"},
+      {"abcdefghijklmnopqrstuvwxyz", "$2a$06$.rCVZVOThsIa97pEDOxvGu",
+       "$2a$06$.rCVZVOThsIa97pEDOxvGuRRgzG64bvtJ0938xuqzv18d3ZpQhstC"},
+      {"~!@#$%^&*()      ~!@#$%^&*()PNBFRD", "$2a$06$fPIsBO8qRqkjj273rfaOI.",
+       "$2a$06$fPIsBO8qRqkjj273rfaOI.HtSV9jLDpTbZn782DC6/t7qT67P6FfO"},
+      {"abc", "$2a$08$Ro0CUfOqk6cXEKf3dyaM7O",
+       "$2a$08$Ro0CUfOqk6cXEKf3dyaM7OhSCvnwM9s4wIX9JeLapehKK5YdLxKcm"},
+  };
+
+  private static byte[] fromHex(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; ++i) {
+      bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return bytes;
+  }
+
+  @Test
+  public void testCryptRawKnownAnswers() throws Exception {
+    for (String[] vector : RAW_VECTORS) {
+      byte[] raw = new BCrypt().crypt_raw(vector[0].getBytes("UTF-8"),
+          fromHex(vector[1]), Integer.parseInt(vector[2]), PLAINTEXT.clone());
+      assertArrayEquals(vector[0] + " " + vector[2], fromHex(vector[3]), raw);
+    }
+  }
+
+  @Test
+  public void testCryptRawInstanceReused() throws Exception {
+    // KdfCalibration times several runs with one instance.
+    BCrypt bcrypt = new BCrypt();
+    for (int i = 0; i < 2; ++i) {
+      for (String[] vector : RAW_VECTORS) {
+        if (Integer.parseInt(vector[2]) > 6)
+          continue;
+        byte[] raw = bcrypt.crypt_raw(vector[0].getBytes("UTF-8"),
+            fromHex(vector[1]), Integer.parseInt(vector[2]),
+            PLAINTEXT.clone());
+        assertArrayEquals(fromHex(vector[3]), raw);
+      }
+    }
+  }
+
+  @Test
+  public void testCryptRawMatchesBaseline() throws Exception {
+    Random random = new Random(21);
+    for (int i = 0; i < 40; ++i) {
+      byte[] password = new byte[1 + random.nextInt(100)];
+      random.nextBytes(password);
+      byte[] salt = new byte[BCrypt.BCRYPT_SALT_LEN];
+      random.nextBytes(salt);
+      int rounds = 4 + i % 3;
+      int[] plaintext = new int[2 + 2 * random.nextInt(4)];
+      for (int j = 0; j < plaintext.length; ++j)
+        plaintext[j] = random.nextInt();
+
+      byte[] expected = new BaselineBCrypt().crypt_raw(password, salt, rounds,
+                                                       plaintext.clone());
+      byte[] actual = new BCrypt().crypt_raw(password, salt, rounds,
+                                             plaintext.clone());
+      assertArrayEquals("case " + i, expected, actual);
+    }
+  }
+
+  @Test
+  public void testHashpwKnownAnswers() {
+    for (String[] vector : HASH_VECTORS) {
+      assertEquals(vector[2], BCrypt.hashpw(vector[0], vector[1]));
+      assertTrue(BCrypt.checkpw(vector[0], vector[2]));
+      assertFalse(BCrypt.checkpw(vector[0] + "x", vector[2]));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCryptRawRejectsFewRounds() {
+    new BCrypt().crypt_raw(new byte[1], new byte[BCrypt.BCRYPT_SALT_LEN], 3,
+                           PLAINTEXT.clone());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCryptRawRejectsShortSalt() {
+    new BCrypt().crypt_raw(new byte[1], new byte[8], 4, PLAINTEXT.clone());
+  }
+}